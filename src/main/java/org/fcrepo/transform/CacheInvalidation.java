@@ -0,0 +1,44 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform;
+
+import java.util.function.Consumer;
+
+/**
+ * Carries the paths of changed resources to the {@link TransformCache}s of every node, e.g. over a message broker
+ * shared by a cluster. Each node publishes the changes its repository observes, and every node, including the one
+ * that published a change, hears of it once.
+ *
+ * @author agent
+ */
+public interface CacheInvalidation {
+
+    /**
+     * Tell every node that a resource changed
+     *
+     * @param path the path of the resource
+     */
+    void publish(String path);
+
+    /**
+     * Listen for changed resources published by any node
+     *
+     * @param listener called with the path of each changed resource
+     */
+    void subscribe(Consumer<String> listener);
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform;
+
+import static com.hp.hpl.jena.graph.NodeFactory.createURI;
+import static java.util.Collections.emptySet;
+import static java.util.Collections.unmodifiableSet;
+import static org.fcrepo.kernel.api.RdfLexicon.CONTAINS;
+import static org.fcrepo.kernel.api.RdfLexicon.REPOSITORY_NAMESPACE;
+import static org.fcrepo.kernel.api.RdfLexicon.isManagedNamespace;
+import static org.fcrepo.kernel.api.RequiredRdfContext.LDP_CONTAINMENT;
+import static org.fcrepo.kernel.api.RequiredRdfContext.LDP_MEMBERSHIP;
+import static org.fcrepo.kernel.api.RequiredRdfContext.PROPERTIES;
+import static org.fcrepo.kernel.api.RequiredRdfContext.SERVER_MANAGED;
+
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.fcrepo.kernel.api.RequiredRdfContext;
+
+import com.google.common.collect.ImmutableSet;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+/**
+ * Which of a resource's triples a transform needs, as found by analysing the transform before it runs: either
+ * every triple, or only those with certain predicates. A plan is translated into the kernel's triple contexts, so
+ * that a transform that never reads e.g. ldp:contains does not pay for listing a large container's children.
+ *
+ * Plans err on the side of fetching too much: any predicate the analysis can't rule out is assumed to be needed.
+ *
+ * @author agent
+ */
+public class FetchPlan {
+
+    /**
+     * The plan for transforms that may read any triple
+     */
+    public static final FetchPlan ALL = new FetchPlan(true, emptySet());
+
+    private static final String IANA_NAMESPACE = "http://www.iana.org/assignments/relation/";
+
+    /**
+     * Predicates of server-managed triples outside of the managed namespaces
+     */
+    private static final Set<String> SERVER_MANAGED_PREDICATES = ImmutableSet.of(RDF.type.getURI(),
+            IANA_NAMESPACE + "describes", IANA_NAMESPACE + "describedby");
+
+    private final boolean all;
+
+    private final Set<String> predicates;
+
+    private FetchPlan(final boolean all, final Set<String> predicates) {
+        this.all = all;
+        this.predicates = predicates;
+    }
+
+    /**
+     * @param predicates the URIs of the predicates a transform reads
+     * @return the plan for a transform that reads only those predicates
+     */
+    public static FetchPlan of(final Collection<String> predicates) {
+        return new FetchPlan(false, unmodifiableSet(new HashSet<>(predicates)));
+    }
+
+    /**
+     * @param other the plan of another transform over the same resource
+     * @return the plan fetching what either transform reads
+     */
+    public FetchPlan union(final FetchPlan other) {
+        if (all || other.all) {
+            return ALL;
+        }
+        final Set<String> both = new HashSet<>(predicates);
+        both.addAll(other.predicates);
+        return of(both);
+    }
+
+    /**
+     * @return whether the transform may read any triple
+     */
+    public boolean all() {
+        return all;
+    }
+
+    /**
+     * @return the URIs of the predicates the transform reads, unless it may read any triple
+     */
+    public Set<String> predicates() {
+        return predicates;
+    }
+
+    /**
+     * @return the triple contexts holding the triples the transform reads
+     */
+    public Set<RequiredRdfContext> contexts() {
+        if (all) {
+            return EnumSet.of(PROPERTIES, SERVER_MANAGED, LDP_CONTAINMENT, LDP_MEMBERSHIP);
+        }
+        final Set<RequiredRdfContext> contexts = EnumSet.of(PROPERTIES);
+        for (final String predicate : predicates) {
+            if (predicate.equals(CONTAINS.getURI())) {
+                contexts.add(LDP_CONTAINMENT);
+                continue;
+            }
+            if (SERVER_MANAGED_PREDICATES.contains(predicate) ||
+                    isManagedNamespace.test(createURI(predicate).getNameSpace())) {
+                contexts.add(SERVER_MANAGED);
+            }
+            // membership triples may use any predicate a container chooses, save the repository's own
+            if (!predicate.equals(RDF.type.getURI()) && !predicate.startsWith(REPOSITORY_NAMESPACE)) {
+                contexts.add(LDP_MEMBERSHIP);
+            }
+        }
+        return contexts;
+    }
+
+    @Override
+    public String toString() {
+        return all ? "all triples" : predicates.toString();
+    }
+}
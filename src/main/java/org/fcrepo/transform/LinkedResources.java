@@ -0,0 +1,180 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform;
+
+import static com.hp.hpl.jena.rdf.model.ModelFactory.createDefaultModel;
+import static java.lang.Integer.getInteger;
+import static java.util.Collections.newSetFromMap;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+
+/**
+ * The repository resources reachable from a transform's topic, loaded as the transform dereferences them. Each
+ * resource is loaded at most once per evaluation, into a model of its own: the topic's model is never changed, so
+ * a cached graph is not polluted, and what a path reads of a resource doesn't depend on which other resources
+ * earlier paths happened to load. Links are only followed up to a number of steps from the topic, and only a number
+ * of the resources linked from any one resource are followed.
+ *
+ * @author agent
+ */
+public class LinkedResources {
+
+    private static final Logger LOGGER = getLogger(LinkedResources.class);
+
+    /**
+     * System property for the most links followed from the topic to reach a resource; 0 disables traversal
+     */
+    public static final String DEPTH_PROPERTY = "fcrepo.transform.traversal.depth";
+
+    /**
+     * System property for the most resources followed from any one resource
+     */
+    public static final String FANOUT_PROPERTY = "fcrepo.transform.traversal.fanout";
+
+    private final ResourceLoader loader;
+
+    private final Model topicModel;
+
+    private final int depth;
+
+    private final int fanout;
+
+    /**
+     * Resources that are loaded or may be loaded, by their distance from the topic
+     */
+    private final Map<String, Integer> distances = new HashMap<>();
+
+    private final Map<String, Integer> followed = new HashMap<>();
+
+    private final Map<String, Model> loaded = new HashMap<>();
+
+    private final Set<Model> models = newSetFromMap(new IdentityHashMap<>());
+
+    /**
+     * @param loader the source of the resources' triples
+     * @param model the model holding the topic's triples
+     * @param topic the URI of the transform's topic
+     * @param depth the most links followed from the topic to reach a resource
+     * @param fanout the most resources followed from any one resource
+     */
+    public LinkedResources(final ResourceLoader loader, final Model model, final String topic, final int depth,
+            final int fanout) {
+        this.loader = loader;
+        this.topicModel = model;
+        this.depth = depth;
+        this.fanout = fanout;
+        distances.put(resourceOf(topic), 0);
+        loaded.put(resourceOf(topic), model);
+    }
+
+    /**
+     * @param loader the source of the resources' triples
+     * @param model the model holding the topic's triples
+     * @param topic the URI of the transform's topic
+     * @return the linked resources of the topic, within the configured limits
+     */
+    public static LinkedResources linkedResources(final ResourceLoader loader, final Model model,
+            final String topic) {
+        return new LinkedResources(loader, model, topic, getInteger(DEPTH_PROPERTY, 2),
+                getInteger(FANOUT_PROPERTY, 100));
+    }
+
+    /**
+     * Note nodes reached from a node, which may then be loaded within the limits
+     *
+     * @param from the node they were reached from
+     * @param nodes the nodes reached
+     */
+    public void reached(final RDFNode from, final Iterable<RDFNode> nodes) {
+        if (!from.isURIResource()) {
+            return;
+        }
+        final String source = resourceOf(from.asResource().getURI());
+        final Integer distance = distances.get(source);
+        if (distance == null || distance >= depth) {
+            return;
+        }
+        for (final RDFNode node : nodes) {
+            if (followed.getOrDefault(source, 0) >= fanout) {
+                LOGGER.debug("Not following more than {} links from {}", fanout, source);
+                return;
+            }
+            if (node.isURIResource()) {
+                final String target = resourceOf(node.asResource().getURI());
+                if (!distances.containsKey(target) && loader.contains(target)) {
+                    distances.put(target, distance + 1);
+                    followed.merge(source, 1, Integer::sum);
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the model describing a node about to be dereferenced, loading its resource if it was reached and is not
+     * loaded yet. A node of the topic's resource, or one that isn't a reached repository resource, is described by
+     * the topic's model; a blank node by the model it was read from.
+     *
+     * @param node the node about to be dereferenced
+     * @return the model holding the node's triples
+     */
+    public Model visit(final RDFNode node) {
+        if (!node.isURIResource()) {
+            return models.contains(node.getModel()) ? node.getModel() : topicModel;
+        }
+        final String resource = resourceOf(node.asResource().getURI());
+        if (!distances.containsKey(resource)) {
+            return topicModel;
+        }
+        return loaded.computeIfAbsent(resource, uri -> {
+            LOGGER.debug("Loading linked resource {}", uri);
+            final Model model = createDefaultModel();
+            final Graph graph = model.getGraph();
+            loader.load(uri).forEach(graph::add);
+            models.add(model);
+            return model;
+        });
+    }
+
+    /**
+     * @return the number of resources loaded besides the topic
+     */
+    public int loaded() {
+        return loaded.size() - 1;
+    }
+
+    /**
+     * Hash URIs are described by the triples of the resource they belong to
+     *
+     * @param uri the URI of a node
+     * @return the URI of the resource describing it
+     */
+    public static String resourceOf(final String uri) {
+        final int hash = uri.indexOf('#');
+        return hash < 0 ? uri : uri.substring(0, hash);
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform;
+
+import java.util.stream.Stream;
+
+import com.hp.hpl.jena.graph.Triple;
+
+/**
+ * Access to the triples of repository resources other than a transform's topic, for transforms that follow links
+ * from one resource to another
+ *
+ * @author agent
+ */
+public interface ResourceLoader {
+
+    /**
+     * @param uri the URI of a resource
+     * @return whether the URI names a resource in this repository
+     */
+    boolean contains(String uri);
+
+    /**
+     * Load a resource's triples, as seen by the requesting user
+     *
+     * @param uri the URI of a resource in this repository
+     * @return the resource's triples, or none if it doesn't exist or can't be read
+     */
+    Stream<Triple> load(String uri);
+}
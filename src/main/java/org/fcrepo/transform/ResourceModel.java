@@ -0,0 +1,219 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform;
+
+import static com.hp.hpl.jena.graph.Factory.createGraphMem;
+import static com.hp.hpl.jena.rdf.model.ModelFactory.createDefaultModel;
+import static com.hp.hpl.jena.rdf.model.ModelFactory.createModelForGraph;
+import static java.lang.Long.getLong;
+import static java.nio.file.Files.createTempDirectory;
+import static org.apache.commons.io.FileUtils.deleteQuietly;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.stream.Collector;
+
+import org.fcrepo.kernel.api.exception.RepositoryRuntimeException;
+import org.slf4j.Logger;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.compose.Union;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.sparql.util.Symbol;
+import com.hp.hpl.jena.tdb.TDBFactory;
+
+/**
+ * The model a transform evaluates against, built from a resource's triples. Small resources are held in memory;
+ * once a resource's triples pass a threshold, they spill into a TDB dataset in a temporary directory, which is
+ * memory-mapped rather than held on the heap. Either way the transform sees an ordinary {@link Model}, so large
+ * resources get slower rather than exhausting the heap.
+ *
+ * The model must be closed once the transform's output has been written, which removes any temporary store.
+ *
+ * @author agent
+ */
+public class ResourceModel implements AutoCloseable {
+
+    private static final Logger LOGGER = getLogger(ResourceModel.class);
+
+    /**
+     * System property for the number of triples past which a model spills to disk
+     */
+    public static final String SPILL_THRESHOLD_PROPERTY = "fcrepo.transform.spill.threshold";
+
+    /**
+     * Context symbol under which a query execution carries the model it runs against, to be closed with it
+     */
+    public static final Symbol RESOURCE_MODEL =
+            Symbol.create("http://fedora.info/definitions/v4/transform#resourceModel");
+
+    private final Model model;
+
+    private final Dataset dataset;
+
+    private final File directory;
+
+    private ResourceModel(final Model model, final Dataset dataset, final File directory) {
+        this.model = model;
+        this.dataset = dataset;
+        this.directory = directory;
+    }
+
+    /**
+     * @return the number of triples past which a model spills to disk
+     */
+    public static long spillThreshold() {
+        return getLong(SPILL_THRESHOLD_PROPERTY, 100000L);
+    }
+
+    /**
+     * A collector of triples into a model, spilling to disk past the configured threshold
+     *
+     * @return the collector
+     */
+    public static Collector<Triple, ?, ResourceModel> toResourceModel() {
+        return toResourceModel(spillThreshold());
+    }
+
+    /**
+     * A collector of triples into a model. It is meant for sequential streams, which RdfStreams are.
+     *
+     * @param threshold the number of triples past which the model spills to disk
+     * @return the collector
+     */
+    public static Collector<Triple, ?, ResourceModel> toResourceModel(final long threshold) {
+        return Collector.of(() -> new Builder(threshold), Builder::add, (left, right) -> {
+            right.model.model.listStatements().forEachRemaining(s -> left.add(s.asTriple()));
+            right.model.close();
+            return left;
+        }, builder -> builder.model);
+    }
+
+    /**
+     * A model over a graph shared with other transforms, e.g. one held in a cache. Triples the transform adds, such
+     * as those of linked resources it loads, go to a graph of its own laid over the shared one, which is left as it
+     * was; closing the model releases only the transform's own graph.
+     *
+     * @param shared the shared graph
+     * @return the model
+     */
+    public static ResourceModel overlay(final Graph shared) {
+        return new ResourceModel(createModelForGraph(new Overlay(shared)), null, null);
+    }
+
+    private static ResourceModel spill(final ResourceModel memory) {
+        final File directory;
+        try {
+            directory = createTempDirectory("fcrepo-transform").toFile();
+        } catch (final IOException e) {
+            throw new RepositoryRuntimeException(e);
+        }
+        LOGGER.info("Spilling transform model past {} triples to {}", memory.model.size(), directory);
+        final Dataset dataset = TDBFactory.createDataset(directory.getAbsolutePath());
+        final ResourceModel spilled = new ResourceModel(dataset.getDefaultModel(), dataset, directory);
+        try {
+            spilled.model.add(memory.model);
+        } catch (final RuntimeException e) {
+            spilled.close();
+            throw e;
+        }
+        memory.close();
+        return spilled;
+    }
+
+    /**
+     * Accumulates triples in memory until the threshold, then on disk
+     */
+    private static class Builder {
+
+        private final long threshold;
+
+        private ResourceModel model = new ResourceModel(createDefaultModel(), null, null);
+
+        private Graph graph = model.model.getGraph();
+
+        private long count = 0;
+
+        private Builder(final long threshold) {
+            this.threshold = threshold;
+        }
+
+        private void add(final Triple triple) {
+            if (count++ == threshold) {
+                model = spill(model);
+                graph = model.model.getGraph();
+            }
+            try {
+                graph.add(triple);
+            } catch (final RuntimeException e) {
+                model.close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * A union of a transform's own graph over a shared graph, which is never changed or closed through it
+     */
+    private static class Overlay extends Union {
+
+        private Overlay(final Graph shared) {
+            super(createGraphMem(), shared);
+        }
+
+        @Override
+        public void performDelete(final Triple triple) {
+            L.delete(triple);
+        }
+
+        @Override
+        public void close() {
+            L.close();
+        }
+    }
+
+    /**
+     * @return the model
+     */
+    public Model model() {
+        return model;
+    }
+
+    /**
+     * @return whether the model spilled to disk
+     */
+    public boolean spilled() {
+        return dataset != null;
+    }
+
+    /**
+     * Release the model and remove any temporary store
+     */
+    @Override
+    public void close() {
+        if (dataset == null) {
+            model.close();
+        } else {
+            TDBFactory.release(dataset);
+            deleteQuietly(directory);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform;
+
+/**
+ * A cache of anything computed from repository resources, such as their graphs or the outputs of programs. Caches are
+ * told of changed resources by a {@link CacheInvalidation}, which reaches every node of a cluster, so that no node
+ * keeps serving what another node's change made stale.
+ *
+ * @author agent
+ */
+public interface TransformCache {
+
+    /**
+     * Drop, or refresh, whatever this cache holds that was computed from a resource that changed
+     *
+     * @param path the path of the resource
+     */
+    void invalidate(String path);
+}
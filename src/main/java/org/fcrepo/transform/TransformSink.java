@@ -0,0 +1,60 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Where the outputs of transforms run in reaction to repository changes are sent, e.g. a spool file read by an
+ * indexer
+ *
+ * @author agent
+ */
+public interface TransformSink {
+
+    /**
+     * Record a program's output for a resource, replacing any earlier output for the same resource and program
+     *
+     * @param uri the URI of the resource
+     * @param program the key of the program
+     * @param output the program's output
+     * @throws IOException if the output can't be written
+     */
+    void write(String uri, String program, Object output) throws IOException;
+
+    /**
+     * Record the fields of a program's output that changed since it was last written or updated, in the style of an
+     * atomic update: each changed field maps to {@code {"set": values}}, and a field no longer in the output to
+     * {@code {"set": null}}. The fields that are not in the delta are unchanged, and must be kept.
+     *
+     * @param uri the URI of the resource
+     * @param program the key of the program
+     * @param delta the changed fields
+     * @throws IOException if the update can't be written
+     */
+    void update(String uri, String program, Map<String, Object> delta) throws IOException;
+
+    /**
+     * Record that a resource is gone, so any output for it should be dropped
+     *
+     * @param uri the URI of the resource
+     * @throws IOException if the deletion can't be written
+     */
+    void delete(String uri) throws IOException;
+}
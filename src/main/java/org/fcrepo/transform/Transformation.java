@@ -17,8 +17,13 @@
  */
 package org.fcrepo.transform;
 
+import static org.fcrepo.kernel.api.rdf.DefaultRdfStream.fromModel;
+
 import org.fcrepo.kernel.api.RdfStream;
 
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.rdf.model.Model;
+
 import java.util.function.Function;
 
 /**
@@ -29,4 +34,40 @@ import java.util.function.Function;
  */
 public interface Transformation<T> extends Function<RdfStream, T> {
 
+    /**
+     * Find out which of a resource's triples this transform needs, before they are fetched
+     *
+     * @return the triples this transform needs, by default all of them
+     */
+    default FetchPlan fetchPlan() {
+        return FetchPlan.ALL;
+    }
+
+    /**
+     * Evaluate this transform against a model that has already been built, e.g. one shared by several transforms
+     * or held in a cache. The model stays open, and belongs to the caller.
+     *
+     * @param model the model of the resource's triples
+     * @param topic the resource
+     * @return the transform's output
+     */
+    default T evaluate(final Model model, final Node topic) {
+        return apply(fromModel(topic, model));
+    }
+
+    /**
+     * @return the content-addressed identity of this transform's program: transforms compiled from the same program
+     *         have the same digest, and compute the same output from the same triples
+     */
+    String digest();
+
+    /**
+     * Let this transform follow links from its topic to other repository resources
+     *
+     * @param loader the source of the linked resources' triples
+     * @return a transform that may follow links, by default this transform, which doesn't
+     */
+    default Transformation<T> withResources(final ResourceLoader loader) {
+        return this;
+    }
 }
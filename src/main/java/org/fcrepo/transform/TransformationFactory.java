@@ -22,11 +22,22 @@ import org.fcrepo.transform.transformations.SparqlQueryTransform;
 
 import javax.ws.rs.core.MediaType;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.function.Function;
 
+import org.apache.commons.io.IOUtils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import static com.google.common.hash.Hashing.sha256;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toList;
 import static org.apache.jena.riot.WebContent.contentTypeSPARQLQuery;
 import static org.fcrepo.transform.transformations.LDPathTransform.APPLICATION_RDF_LDPATH;
 
@@ -38,8 +49,19 @@ import static org.fcrepo.transform.transformations.LDPathTransform.APPLICATION_R
  */
 public class TransformationFactory {
 
-    @SuppressWarnings("rawtypes")
-    private final Map<String, Function<InputStream, Transformation>> mimeToTransform = new HashMap<>();
+    /**
+     * Most compiled transforms kept for reuse
+     */
+    private static final int COMPILED_TRANSFORMS = 256;
+
+    /**
+     * Compiled transforms by digest, shared by every factory, so that a program is parsed once however many
+     * resources it is applied to
+     */
+    private static final Cache<String, Compiled> compiled =
+            CacheBuilder.newBuilder().maximumSize(COMPILED_TRANSFORMS).build();
+
+    private final Map<String, Function<String, Transformation<?>>> mimeToTransform = new HashMap<>();
 
     /**
      * Get a new TransformationFactory with the default classes
@@ -52,7 +74,8 @@ public class TransformationFactory {
 
     /**
      * Get a Transformation from a MediaType and an InputStream with
-     * the transform program
+     * the transform program. The program is compiled once, and the compiled transform is shared by every request
+     * for the same program.
      * @param <T> the transformation type
      * @param contentType the content type
      * @param inputStream the input stream
@@ -62,9 +85,75 @@ public class TransformationFactory {
     public <T> Transformation<T> getTransform(final MediaType contentType, final InputStream inputStream) {
         final String mimeType = contentType.toString();
         if (mimeToTransform.containsKey(mimeType)) {
-            return mimeToTransform.get(contentType.toString()).apply(inputStream);
+            return compiled(mimeType, read(inputStream), mimeToTransform.get(mimeType));
         }
         throw new UnsupportedOperationException(
                 "No transform type exists for media type " + mimeType + "!");
     }
+
+    /**
+     * Find the compiled transform of a program, compiling it if it hasn't been compiled recently
+     * @param <T> the transformation type
+     * @param mimeType the program's media type
+     * @param program the text of the program
+     * @param compiler compiles the program
+     * @return the compiled transform
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends Transformation<?>> T compiled(final String mimeType, final String program,
+            final Function<String, ? extends Transformation<?>> compiler) {
+        final String digest = digest(mimeType, program);
+        Compiled transform = compiled.getIfPresent(digest);
+        if (transform == null) {
+            transform = new Compiled(mimeType, program, compiler.apply(program));
+            compiled.put(digest, transform);
+        }
+        return (T) transform.transform;
+    }
+
+    /**
+     * @return the media types and texts of the programs compiled recently
+     */
+    public static List<Map.Entry<String, String>> compiledPrograms() {
+        return compiled.asMap().values().stream()
+                .map(transform -> new SimpleImmutableEntry<>(transform.mimeType, transform.program))
+                .collect(toList());
+    }
+
+    /**
+     * @param mimeType the program's media type
+     * @param program the text of the program
+     * @return the content-addressed identity of the program
+     */
+    public static String digest(final String mimeType, final String program) {
+        return sha256().newHasher().putString(mimeType, UTF_8).putByte((byte) 0).putString(program, UTF_8).hash()
+                .toString();
+    }
+
+    /**
+     * @param inputStream the input stream holding a program
+     * @return the text of the program
+     */
+    public static String read(final InputStream inputStream) {
+        try {
+            return IOUtils.toString(inputStream, UTF_8);
+        } catch (final IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Compiled {
+
+        private final String mimeType;
+
+        private final String program;
+
+        private final Transformation<?> transform;
+
+        private Compiled(final String mimeType, final String program, final Transformation<?> transform) {
+            this.mimeType = mimeType;
+            this.program = program;
+            this.transform = transform;
+        }
+    }
 }
@@ -0,0 +1,38 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform;
+
+import javax.jcr.Session;
+
+/**
+ * Opens repository sessions for users outside of their requests, e.g. to warm the caches on a user's behalf after a
+ * restart. A session opened here must be subject to the same access control as the user's requests, as the
+ * repository's internal session is not. Deployments that can reproduce their users' sessions define a Spring bean
+ * implementing this; without one, such work is skipped.
+ *
+ * @author agent
+ */
+public interface UserSessions {
+
+    /**
+     * @param user the user, as named by the sessions of their requests
+     * @return a session reading the repository as the user's requests do, to be logged out once used, or null if
+     *         none can be opened for the user
+     */
+    Session login(String user);
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.http;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static java.util.Collections.emptyList;
+import static org.fcrepo.transform.http.RepositoryIndex.resourcePath;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.List;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.fcrepo.kernel.api.observer.FedoraEvent;
+import org.fcrepo.metrics.RegistryService;
+import org.fcrepo.transform.CacheInvalidation;
+import org.fcrepo.transform.TransformCache;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
+
+/**
+ * Keeps the module's caches consistent across a cluster: the repository changes this node observes are published
+ * through the {@link CacheInvalidation}, and every change it delivers, from this node or any other, is applied to
+ * each {@link TransformCache}.
+ *
+ * The invalidation is the Spring bean implementing {@link CacheInvalidation}, if there is one, and otherwise a
+ * {@link LocalCacheInvalidation}, which reaches this node only.
+ *
+ * @author agent
+ */
+@Component
+public class CacheInvalidator {
+
+    private static final Logger LOGGER = getLogger(CacheInvalidator.class);
+
+    private static final MetricRegistry registry = RegistryService.getInstance().getMetrics();
+
+    @Autowired(required = false)
+    private EventBus eventBus;
+
+    @Autowired(required = false)
+    private CacheInvalidation invalidation;
+
+    @Autowired(required = false)
+    private List<TransformCache> caches = emptyList();
+
+    private final Counter invalidations = registry.counter(name(CacheInvalidator.class, "invalidations"));
+
+    /**
+     * Start publishing this node's changes, and applying every node's
+     */
+    @PostConstruct
+    public void start() {
+        if (invalidation == null) {
+            invalidation = new LocalCacheInvalidation();
+        }
+        LOGGER.info("Invalidating {} caches through {}", caches.size(), invalidation);
+        invalidation.subscribe(this::invalidate);
+        if (eventBus != null) {
+            eventBus.register(this);
+        }
+    }
+
+    /**
+     * Stop publishing this node's changes
+     */
+    @PreDestroy
+    public void stop() {
+        if (eventBus != null) {
+            eventBus.unregister(this);
+        }
+    }
+
+    /**
+     * Publish the resource a repository event concerns as changed
+     *
+     * @param event the event
+     */
+    @Subscribe
+    public void onEvent(final FedoraEvent event) {
+        invalidation.publish(resourcePath(event.getPath()));
+    }
+
+    /**
+     * Apply a change to every cache
+     *
+     * @param path the path of the changed resource
+     */
+    void invalidate(final String path) {
+        LOGGER.trace("Invalidating cached transforms of {}", path);
+        invalidations.inc();
+        for (final TransformCache cache : caches) {
+            try {
+                cache.invalidate(path);
+            } catch (final RuntimeException e) {
+                LOGGER.warn("Could not invalidate {} in {}", path, cache, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.http;
+
+import static java.lang.Long.getLong;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.commons.io.IOUtils.toInputStream;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.jcr.Session;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.UriBuilder;
+
+import org.fcrepo.http.api.FedoraLdp;
+import org.fcrepo.http.commons.api.rdf.HttpResourceConverter;
+import org.fcrepo.kernel.api.RequiredRdfContext;
+import org.fcrepo.kernel.api.identifiers.IdentifierConverter;
+import org.fcrepo.kernel.api.models.FedoraBinary;
+import org.fcrepo.kernel.api.models.FedoraResource;
+import org.fcrepo.kernel.api.services.NodeService;
+import org.fcrepo.transform.TransformationFactory;
+import org.fcrepo.transform.UserSessions;
+import org.fcrepo.transform.http.ResourceGraphCache.CachedGraph;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.rdf.model.Resource;
+
+/**
+ * Saves the hot contents of the module's caches to local disk, periodically and on shutdown, and restores them in
+ * the background on startup, so that a restart doesn't leave every cache cold at once. The snapshot holds the texts
+ * of the programs and queries compiled recently, and the keys of the graphs cached for transforms: the path and URI
+ * of each resource, the triple contexts fetched and the user they were fetched for.
+ *
+ * No triples are saved. On startup each graph is fetched afresh, in a session opened for its user by the
+ * deployment's {@link UserSessions}, so it holds only what the user may read now; without {@link UserSessions}, only
+ * the programs are restored. Materialized views are kept on disk already, and aren't saved.
+ *
+ * The snapshot is a gzipped file of JSON lines, one per program or graph, readable by the repository's own account
+ * alone, as it names the users and the resources they read.
+ *
+ * @author agent
+ */
+@Component
+public class CacheSnapshot {
+
+    private static final Logger LOGGER = getLogger(CacheSnapshot.class);
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * System property for the file holding the snapshot; snapshots are disabled unless it is set
+     */
+    public static final String FILE_PROPERTY = "fcrepo.transform.snapshot";
+
+    /**
+     * System property for the seconds between snapshots
+     */
+    public static final String INTERVAL_PROPERTY = "fcrepo.transform.snapshot.interval";
+
+    @Autowired(required = false)
+    private ResourceGraphCache graphCache;
+
+    @Autowired(required = false)
+    private UserSessions userSessions;
+
+    @Autowired(required = false)
+    private NodeService nodeService;
+
+    private final Path file;
+
+    private final long interval;
+
+    private ScheduledExecutorService timer;
+
+    private volatile boolean restored;
+
+    /**
+     * Create a snapshot configured from system properties
+     */
+    public CacheSnapshot() {
+        this(System.getProperty(FILE_PROPERTY) == null ? null : Paths.get(System.getProperty(FILE_PROPERTY)),
+                getLong(INTERVAL_PROPERTY, 300));
+    }
+
+    /**
+     * @param file the file holding the snapshot, or null to disable snapshots
+     * @param interval the seconds between snapshots
+     */
+    public CacheSnapshot(final Path file, final long interval) {
+        this.file = file;
+        this.interval = interval;
+    }
+
+    /**
+     * Restore the caches from the last snapshot, in the background, and save them periodically from then on
+     */
+    @PostConstruct
+    public void start() {
+        if (file == null) {
+            return;
+        }
+        timer = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactoryBuilder().setNameFormat("fcrepo-transform-snapshot").setDaemon(true).build());
+        timer.execute(this::restore);
+        timer.scheduleWithFixedDelay(this::save, interval, interval, SECONDS);
+    }
+
+    /**
+     * Save the caches one last time, unless they haven't been restored yet
+     */
+    @PreDestroy
+    public void stop() {
+        if (timer != null) {
+            timer.shutdownNow();
+            if (restored) {
+                save();
+            }
+        }
+    }
+
+    /**
+     * Restore the caches from the snapshot, if there is one
+     */
+    void restore() {
+        int programs = 0;
+        int graphs = 0;
+        final Map<String, Session> sessions = new HashMap<>();
+        try (final BufferedReader in = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(Files.newInputStream(file)), UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null && !Thread.currentThread().isInterrupted()) {
+                final JsonNode entry = MAPPER.readTree(line);
+                try {
+                    if (entry.has("program")) {
+                        new TransformationFactory().getTransform(MediaType.valueOf(entry.get("type").asText()),
+                                toInputStream(entry.get("program").asText(), UTF_8));
+                        programs++;
+                    } else if (entry.has("path") && entry.hasNonNull("user") && graphCache != null &&
+                            userSessions != null && nodeService != null) {
+                        final String user = entry.get("user").asText();
+                        final Session session = sessions.computeIfAbsent(user, userSessions::login);
+                        if (session != null && fetch(session, entry)) {
+                            graphs++;
+                        }
+                    }
+                } catch (final RuntimeException e) {
+                    LOGGER.debug("Could not restore {} from the cache snapshot", line, e);
+                }
+            }
+            LOGGER.info("Restored {} programs and {} graphs from {}", programs, graphs, file);
+        } catch (final NoSuchFileException e) {
+            LOGGER.debug("No cache snapshot at {}", file);
+        } catch (final IOException e) {
+            LOGGER.warn("Could not restore the caches from {}", file, e);
+        } finally {
+            sessions.values().stream().filter(Objects::nonNull).forEach(Session::logout);
+            restored = true;
+        }
+    }
+
+    /**
+     * Fetch a saved graph's triples into the graph cache, as the session's user sees them now
+     *
+     * @param session the session of the graph's user
+     * @param entry the graph's key
+     * @return whether the graph was fetched
+     */
+    private boolean fetch(final Session session, final JsonNode entry) {
+        final String path = entry.get("path").asText();
+        final String uri = entry.get("uri").asText();
+        if (!uri.endsWith(path.equals("/") ? "" : path)) {
+            return false;
+        }
+        final Set<RequiredRdfContext> contexts = EnumSet.noneOf(RequiredRdfContext.class);
+        entry.get("contexts").forEach(context -> contexts.add(RequiredRdfContext.valueOf(context.asText())));
+        final IdentifierConverter<Resource, FedoraResource> translator = new HttpResourceConverter(session,
+                UriBuilder.fromUri(uri.substring(0, uri.length() - (path.equals("/") ? 1 : path.length())))
+                        .path(FedoraLdp.class));
+        final FedoraResource resource = nodeService.find(session, path);
+        final Node topic = translator.reverse().convert(resource).asNode();
+        // the graph is cached under the URI of its key, which must be the one this translator gives the resource
+        if (resource instanceof FedoraBinary || !topic.getURI().equals(uri)) {
+            return false;
+        }
+        graphCache.model(path, uri, contexts, session.getUserID(), resource.getEtagValue(),
+                () -> ResourceGraphCache.triples(resource, topic, translator, contexts)).close();
+        return true;
+    }
+
+    /**
+     * Save the caches one last time, unless they haven't been restored yet
+     */
+    @PreDestroy
+    public void stop() {
+        if (timer != null) {
+            timer.shutdownNow();
+            if (restored) {
+                save();
+            }
+        }
+    }
+
+    /**
+     * Restore the caches from the snapshot, if there is one
+     */
+    void restore() {
+        int programs = 0;
+        int graphs = 0;
+        try (final BufferedReader in = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(Files.newInputStream(file)), UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null && !Thread.currentThread().isInterrupted()) {
+                final JsonNode entry = MAPPER.readTree(line);
+                try {
+                    if (entry.has("program")) {
+                        new TransformationFactory().getTransform(MediaType.valueOf(entry.get("type").asText()),
+                                toInputStream(entry.get("program").asText(), UTF_8));
+                        programs++;
+                    } else if (entry.has("graph") && entry.has("user") && graphCache != null) {
+                        graphCache.restore(graph(entry));
+                        graphs++;
+                    }
+                } catch (final RuntimeException e) {
+                    LOGGER.debug("Could not restore {} from the cache snapshot", line, e);
+                }
+            }
+            LOGGER.info("Restored {} programs and {} graphs from {}", programs, graphs, file);
+        } catch (final NoSuchFileException e) {
+            LOGGER.debug("No cache snapshot at {}", file);
+        } catch (final IOException e) {
+            LOGGER.warn("Could not restore the caches from {}", file, e);
+        } finally {
+            restored = true;
+        }
+    }
+
+    /**
+     * Save the caches' contents, replacing the previous snapshot
+     */
+    void save() {
+        final Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            // the graphs' keys name the users and the resources they read
+            OwnerOnlyFiles.createFile(temp);
+            try (final Writer out = new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(temp)),
+                    UTF_8)) {
+                for (final Map.Entry<String, String> program : TransformationFactory.compiledPrograms()) {
+                    final Map<String, Object> entry = new LinkedHashMap<>();
+                    entry.put("type", program.getKey());
+                    entry.put("program", program.getValue());
+                    out.write(MAPPER.writeValueAsString(entry));
+                    out.write('\n');
+                }
+                if (graphCache != null) {
+                    for (final CachedGraph graph : graphCache.graphs()) {
+                        out.write(MAPPER.writeValueAsString(entry(graph)));
+                        out.write('\n');
+                    }
+                }
+            }
+            Files.move(temp, file, ATOMIC_MOVE, REPLACE_EXISTING);
+            LOGGER.debug("Saved the caches to {}", file);
+        } catch (final IOException e) {
+            LOGGER.warn("Could not save the caches to {}", file, e);
+        }
+    }
+
+    private static Map<String, Object> entry(final CachedGraph graph) {
+        final Map<String, Object> entry = new LinkedHashMap<>();
+        entry.put("path", graph.path());
+        entry.put("uri", graph.uri());
+        entry.put("contexts", graph.contexts());
+        entry.put("user", graph.user());
+        return entry;
+    }
+}
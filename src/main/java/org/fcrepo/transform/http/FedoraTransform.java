@@ -18,8 +18,19 @@
 package org.fcrepo.transform.http;
 
 import static com.google.common.collect.ImmutableMap.of;
+import static com.hp.hpl.jena.rdf.model.ModelFactory.createDefaultModel;
+import static com.hp.hpl.jena.rdf.model.ResourceFactory.createResource;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptySet;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
+import static java.util.stream.Stream.concat;
+import static javax.ws.rs.core.MediaType.APPLICATION_FORM_URLENCODED;
 import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
+import static javax.ws.rs.core.MediaType.APPLICATION_JSON_TYPE;
 import static javax.ws.rs.core.Response.ok;
+import static javax.ws.rs.core.Response.Status.CONFLICT;
 import static org.apache.jena.riot.WebContent.contentTypeN3;
 import static org.apache.jena.riot.WebContent.contentTypeNTriples;
 import static org.apache.jena.riot.WebContent.contentTypeRDFXML;
@@ -32,43 +43,110 @@ import static org.apache.jena.riot.WebContent.contentTypeTextCSV;
 import static org.apache.jena.riot.WebContent.contentTypeTextPlain;
 import static org.apache.jena.riot.WebContent.contentTypeTextTSV;
 import static org.apache.jena.riot.WebContent.contentTypeTurtle;
+import static org.fcrepo.http.commons.domain.PreferTag.emptyTag;
+import static org.fcrepo.kernel.api.RequiredRdfContext.EMBED_RESOURCES;
+import static org.fcrepo.kernel.api.RequiredRdfContext.INBOUND_REFERENCES;
+import static org.fcrepo.kernel.api.RequiredRdfContext.LDP_CONTAINMENT;
+import static org.fcrepo.kernel.api.RequiredRdfContext.LDP_MEMBERSHIP;
+import static org.fcrepo.kernel.api.RequiredRdfContext.PROPERTIES;
+import static org.fcrepo.kernel.api.RequiredRdfContext.SERVER_MANAGED;
+import static org.fcrepo.transform.ResourceModel.toResourceModel;
+import static org.fcrepo.transform.http.TransformPriority.BULK;
+import static org.fcrepo.transform.http.TransformPriority.INTERACTIVE;
+import static org.fcrepo.transform.http.TransformPriority.PRIORITY_HEADER;
 import static org.fcrepo.transform.transformations.LDPathTransform.APPLICATION_RDF_LDPATH;
 import static org.fcrepo.transform.transformations.LDPathTransform.CONFIGURATION_FOLDER;
+import static org.fcrepo.transform.transformations.LDPathTransform.getProgramTransform;
 import static org.fcrepo.transform.transformations.LDPathTransform.getResourceTransform;
 import static org.fcrepo.transform.transformations.LDPathTransform.DEFAULT_TRANSFORM_RESOURCE;
+import static org.fcrepo.transform.transformations.SparqlQueryTransform.QUERY_FOLDER;
+import static org.fcrepo.transform.transformations.SparqlQueryTransform.getStoredTransform;
 import static org.slf4j.LoggerFactory.getLogger;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
 
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.ClientErrorException;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.ForbiddenException;
 import javax.ws.rs.GET;
 import javax.ws.rs.HeaderParam;
+import javax.ws.rs.NotFoundException;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.CompletionCallback;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.core.UriBuilder;
+
+import org.apache.commons.io.IOUtils;
 
 import org.fcrepo.http.api.ContentExposingResource;
+import org.fcrepo.http.commons.domain.PreferTag;
+import org.fcrepo.http.commons.domain.ldp.LdpPreferTag;
+import org.fcrepo.kernel.api.RdfStream;
+import org.fcrepo.kernel.api.RequiredRdfContext;
 import org.fcrepo.kernel.api.exception.InvalidChecksumException;
 import org.fcrepo.kernel.api.exception.RepositoryRuntimeException;
+import org.fcrepo.kernel.api.identifiers.IdentifierConverter;
 import org.fcrepo.kernel.api.models.FedoraBinary;
 import org.fcrepo.kernel.api.models.FedoraResource;
+import org.fcrepo.kernel.api.rdf.DefaultRdfStream;
+import org.fcrepo.transform.FetchPlan;
+import org.fcrepo.transform.ResourceLoader;
+import org.fcrepo.transform.ResourceModel;
+import org.fcrepo.transform.Transformation;
 import org.fcrepo.transform.TransformationFactory;
+import org.fcrepo.transform.http.RepositoryIndex.Results;
+import org.fcrepo.transform.http.ResultCursors.Cursor;
+import org.fcrepo.transform.http.ResultCursors.Token;
+import org.fcrepo.transform.http.TransformMemoryBudget.Reservation;
+import org.fcrepo.transform.http.responses.JsonObjectProvider;
+import org.fcrepo.transform.transformations.LDPathTransform;
+import org.fcrepo.transform.transformations.SparqlQueryTransform;
 import org.jvnet.hk2.annotations.Optional;
 import org.slf4j.Logger;
 import org.springframework.context.annotation.Scope;
 
 import com.codahale.metrics.annotation.Timed;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.annotations.VisibleForTesting;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.sparql.engine.ResultSetStream;
 
 /**
  * Endpoint for transforming object properties using stored
@@ -85,10 +163,65 @@ public class FedoraTransform extends ContentExposingResource {
 
     private static final Logger LOGGER = getLogger(FedoraTransform.class);
 
+    /**
+     * The value of the scope parameter under which a POSTed query runs against the repository index
+     */
+    public static final String REPOSITORY_SCOPE = "repository";
+
+    /**
+     * The prefix of the query parameters and form fields whose values bind a SPARQL query's variables
+     */
+    public static final String PARAMETER_PREFIX = "param.";
+
+    /**
+     * The number of rows in a page of a query's results when a client asks for a page without saying how many
+     */
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    private static final ObjectMapper MAPPER = new JsonObjectProvider().getContext(FedoraTransform.class);
+
     @Inject
     @Optional
     private TransformationFactory transformationFactory;
 
+    @Inject
+    @Optional
+    private TransformScheduler transformScheduler;
+
+    @Inject
+    @Optional
+    private TransformCoalescer transformCoalescer;
+
+    @Inject
+    @Optional
+    private TransformMemoryBudget memoryBudget;
+
+    @Inject
+    @Optional
+    private RepositoryIndex repositoryIndex;
+
+    @Inject
+    @Optional
+    private TransformViews transformViews;
+
+    @Inject
+    @Optional
+    private ResourceGraphCache graphCache;
+
+    @Inject
+    @Optional
+    private ResultCursors resultCursors;
+
+    @HeaderParam(PRIORITY_HEADER) protected String priority;
+
+    @QueryParam("scope") protected String scope;
+
+    @QueryParam("pageSize") protected String pageSize;
+
+    @QueryParam("page") protected String page;
+
+    @Context protected SecurityContext securityContext;
+
     @PathParam("path") protected String externalPath;
 
     /**
@@ -144,6 +277,17 @@ public class FedoraTransform extends ContentExposingResource {
                 }
             });
 
+            containerService.findOrCreate(internalSession, QUERY_FOLDER.substring(0, QUERY_FOLDER.length() - 1));
+            if (!nodeService.exists(internalSession, QUERY_FOLDER + "default")) {
+                final FedoraBinary query = binaryService.findOrCreate(internalSession, QUERY_FOLDER + "default");
+                try {
+                    query.setContent(getClass().getResourceAsStream("/sparql/default.rq"), contentTypeSPARQLQuery,
+                            null, null, null);
+                } catch (final InvalidChecksumException e) {
+                    throw new RepositoryRuntimeException(e);
+                }
+            }
+
             internalSession.save();
         } finally {
             internalSession.logout();
@@ -153,32 +297,118 @@ public class FedoraTransform extends ContentExposingResource {
     /**
      * Execute an LDpath program transform
      *
-     * @param program the LDpath program
-     * @return Binary blob
+     * @param program the LDpath program, or several separated by commas to be evaluated together
+     * @param fields the names of the program's fields to evaluate, repeated or comma-separated; all if none
+     * @param asyncResponse the suspended response, resumed with the transform's binary blob
      * @throws RepositoryException if repository exception occurred
      */
     @GET
     @Path("{program}")
     @Produces({APPLICATION_JSON})
     @Timed
-    public Response evaluateLdpathProgram(@PathParam("program") final String program)
+    public void evaluateLdpathProgram(@PathParam("program") final String program,
+                                      @QueryParam("fields") final List<String> fields,
+                                      @Suspended final AsyncResponse asyncResponse)
             throws RepositoryException {
         LOGGER.info("GET transform, '{}', for '{}'", program, externalPath);
 
-        return ok()
-            .entity(getResourceTransform(resource(), session, nodeService, program).apply(getResourceTriples()))
-            .header("Warning", "The fcr:transform endpoint is deprecated and will be removed" +
-                    "in a future version of Fedora")
-            .build();
+        final FedoraResource resource = resource();
+        final TransformMemoryBudget budget = memoryBudget();
+        final Set<String> selected = fields == null ? emptySet() : fields.stream()
+                .flatMap(value -> Stream.of(value.split(","))).map(String::trim).filter(name -> !name.isEmpty())
+                .collect(toSet());
+        final List<String> keys = Stream.of(program.split(",")).map(String::trim).filter(key -> !key.isEmpty())
+                .distinct().collect(toList());
+
+        // a materialized view computed from the current state of the resource and program is served as is
+        final FedoraBinary viewed = keys.size() == 1 && selected.isEmpty() && !preferSent() &&
+                transformViews != null && transformViews.enabled() ?
+                transformViews.program(resource, session, keys.get(0)) : null;
+        final String viewState = viewed == null ? null : TransformViews.state(resource, viewed);
+        if (viewed != null) {
+            final byte[] view = transformViews.read(resource.getPath(),
+                    translator().reverse().convert(resource).getURI(), keys.get(0), session.getUserID(), viewState);
+            if (view != null) {
+                asyncResponse.resume(ok(view, APPLICATION_JSON_TYPE)
+                        .header("Warning", "The fcr:transform endpoint is deprecated and will be removed" +
+                                "in a future version of Fedora")
+                        .build());
+                return;
+            }
+        }
+
+        final Map<String, LDPathTransform> transforms = new LinkedHashMap<>();
+        final Fetch fetch;
+        try {
+            for (final String key : keys) {
+                // a view is computed from the program its state names
+                final LDPathTransform stored = viewed == null ?
+                        getResourceTransform(resource, session, nodeService, key) : getProgramTransform(viewed);
+                transforms.put(key, selected.isEmpty() ? stored : stored.withFields(selected));
+            }
+            final Fetch planned = fetch(resource, transforms.values().stream().map(LDPathTransform::fetchPlan)
+                    .reduce(FetchPlan::union).orElse(FetchPlan.ALL));
+            // views hold the resource's own triples only, as their state covers no other resource
+            fetch = viewed == null ? planned : planned.withoutMembership();
+        } catch (final RuntimeException e) {
+            asyncResponse.resume(e);
+            return;
+        }
+
+        final Consumer<CompletableFuture<byte[]>> computation = result -> execute(result, INTERACTIVE, () -> {
+            try (final Reservation reservation = budget.reserve();
+                    final ResourceModel model = resourceModel(fetch, budget, reservation)) {
+                if (viewed != null) {
+                    final byte[] output = MAPPER.writeValueAsBytes(
+                            transforms.get(keys.get(0)).evaluate(model.model(), fetch.topic));
+                    transformViews.write(resource.getPath(), fetch.topic.getURI(), keys.get(0), fetch.user,
+                            viewState, output);
+                    return output;
+                }
+                final ResourceLoader loader = resourceLoader(fetch, budget, reservation);
+                if (keys.size() == 1) {
+                    return MAPPER.writeValueAsBytes(
+                            transforms.get(keys.get(0)).withResources(loader).evaluate(model.model(), fetch.topic));
+                }
+                // several programs are evaluated against one model, and their outputs keyed by program
+                final Map<String, Object> outputs = new LinkedHashMap<>();
+                transforms.forEach((key, transform) -> outputs.put(key,
+                        transform.withResources(loader).evaluate(model.model(), fetch.topic)));
+                return MAPPER.writeValueAsBytes(outputs);
+            }
+        });
+
+        final CompletableFuture<byte[]> output;
+        if (transformCoalescer == null || preferSent()) {
+            // a Prefer header sent by the client decides which triples the model holds, so such requests run alone
+            output = new CompletableFuture<>();
+            computation.accept(output);
+        } else {
+            // identical requests from the same user against the same state of the resource share one computation
+            output = transformCoalescer.coalesce(
+                    asList(resource.getPath(), resource.getEtagValue(), program, selected, session.getUserID()),
+                    computation);
+        }
+        output.whenComplete((bytes, e) -> {
+            if (e == null) {
+                asyncResponse.resume(ok(bytes, APPLICATION_JSON_TYPE)
+                        .header("Warning", "The fcr:transform endpoint is deprecated and will be removed" +
+                                "in a future version of Fedora")
+                        .build());
+            } else {
+                asyncResponse.resume(e instanceof CompletionException ? e.getCause() : e);
+            }
+        });
 
     }
 
     /**
-     * Get the LDPath output as a JSON stream appropriate for e.g. Solr
+     * Get the LDPath output as a JSON stream appropriate for e.g. Solr. A SPARQL query sent with
+     * {@code ?scope=repository} runs against the repository index rather than against this resource.
      *
      * @param contentType the content type
      * @param requestBodyStream the request body stream
-     * @return LDPath as a JSON stream
+     * @param asyncResponse the suspended response, resumed with the LDPath output as a JSON stream
      */
     @POST
     @Consumes({APPLICATION_RDF_LDPATH, contentTypeSPARQLQuery})
@@ -187,20 +417,533 @@ public class FedoraTransform extends ContentExposingResource {
             contentTypeResultsXML, contentTypeResultsBIO, contentTypeTurtle,
             contentTypeN3, contentTypeNTriples, contentTypeRDFXML})
     @Timed
-    public Response evaluateTransform(@HeaderParam("Content-Type") final MediaType contentType,
-                                    final InputStream requestBodyStream) {
+    public void evaluateTransform(@HeaderParam("Content-Type") final MediaType contentType,
+                                  final InputStream requestBodyStream,
+                                  @Suspended final AsyncResponse asyncResponse) {
 
         if (transformationFactory == null) {
             transformationFactory = new TransformationFactory();
         }
         LOGGER.info("POST transform for '{}'", externalPath);
 
-        return ok()
-            .entity(transformationFactory.getTransform(contentType, requestBodyStream).apply(getResourceTriples()))
-            .header("Warning", "The fcr:transform endpoint is deprecated and will be removed" +
-                    "in a future version of Fedora")
-            .build();
+        if (REPOSITORY_SCOPE.equals(scope)) {
+            resource();
+            evaluateIndexQuery(contentType, requestBodyStream, asyncResponse);
+            return;
+        }
+        evaluate(resource(), BULK, () -> transformationFactory.getTransform(contentType, requestBodyStream),
+                parameters(uriInfo.getQueryParameters()), false, asyncResponse);
+    }
+
+    /**
+     * Run a stored SPARQL query against this resource. The query's results are negotiated like those of a POSTed
+     * query.
+     *
+     * @param query the name of the stored query
+     * @param asyncResponse the suspended response, resumed with the query's results
+     */
+    @GET
+    @Path("sparql/{query}")
+    @Produces({contentTypeTextTSV, contentTypeTextCSV,
+            contentTypeSSE, contentTypeTextPlain, contentTypeResultsJSON,
+            contentTypeResultsXML, contentTypeResultsBIO, contentTypeTurtle,
+            contentTypeN3, contentTypeNTriples, contentTypeRDFXML})
+    @Timed
+    public void evaluateStoredQuery(@PathParam("query") final String query,
+                                    @Suspended final AsyncResponse asyncResponse) {
+        LOGGER.info("GET SPARQL query, '{}', for '{}'", query, externalPath);
+        evaluate(resource(), INTERACTIVE, () -> getStoredTransform(session, nodeService, query),
+                parameters(uriInfo.getQueryParameters()), true, asyncResponse);
+    }
+
+    /**
+     * Run a stored SPARQL query against this resource, with the values of its parameters sent as a form
+     *
+     * @param query the name of the stored query
+     * @param form the form, whose {@code param.<variable>} fields bind the query's variables
+     * @param asyncResponse the suspended response, resumed with the query's results
+     */
+    @POST
+    @Path("sparql/{query}")
+    @Consumes({APPLICATION_FORM_URLENCODED})
+    @Produces({contentTypeTextTSV, contentTypeTextCSV,
+            contentTypeSSE, contentTypeTextPlain, contentTypeResultsJSON,
+            contentTypeResultsXML, contentTypeResultsBIO, contentTypeTurtle,
+            contentTypeN3, contentTypeNTriples, contentTypeRDFXML})
+    @Timed
+    public void evaluateStoredQuery(@PathParam("query") final String query,
+                                    final MultivaluedMap<String, String> form,
+                                    @Suspended final AsyncResponse asyncResponse) {
+        LOGGER.info("POST SPARQL query, '{}', for '{}'", query, externalPath);
+        evaluate(resource(), INTERACTIVE, () -> getStoredTransform(session, nodeService, query), parameters(form),
+                true, asyncResponse);
+    }
+
+    /**
+     * @param values the query parameters or form fields of a request
+     * @return the values of the SPARQL variables they bind, by the variables' names
+     */
+    private static Map<String, String> parameters(final MultivaluedMap<String, String> values) {
+        final Map<String, String> parameters = new HashMap<>();
+        values.forEach((name, value) -> {
+            if (name.startsWith(PARAMETER_PREFIX) && !value.isEmpty()) {
+                parameters.put(name.substring(PARAMETER_PREFIX.length()), value.get(0));
+            }
+        });
+        return parameters;
+    }
+
+    /**
+     * Bind a SPARQL query's variables to the values of a request's parameters
+     *
+     * @param transform the transform
+     * @param parameters the values of the query's variables
+     * @return the transform, with its variables bound
+     */
+    private static Transformation<?> bind(final Transformation<?> transform, final Map<String, String> parameters) {
+        if (parameters.isEmpty()) {
+            return transform;
+        }
+        if (!(transform instanceof SparqlQueryTransform)) {
+            throw new BadRequestException("Only SPARQL queries take parameters");
+        }
+        try {
+            return ((SparqlQueryTransform) transform).withParameters(parameters);
+        } catch (final IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        }
+    }
+
+    /**
+     * Evaluate a transform against a resource, or a page of a SPARQL query's results if the client asked for one
+     *
+     * @param resource the resource
+     * @param endpointPriority the priority class of the transform, unless the client asked for another
+     * @param transformation supplies the transform
+     * @param parameters the values of a SPARQL query's variables
+     * @param stored whether the transform is stored, and so can be named by the URL of a page
+     * @param asyncResponse the suspended response, resumed with the transform's output
+     */
+    private void evaluate(final FedoraResource resource, final TransformPriority endpointPriority,
+            final Supplier<Transformation<?>> transformation, final Map<String, String> parameters,
+            final boolean stored, final AsyncResponse asyncResponse) {
+        if (pageSize != null || page != null) {
+            if (!stored) {
+                throw new BadRequestException("Only stored queries can be read in pages");
+            }
+            evaluatePage(resource, endpointPriority, transformation, parameters, asyncResponse);
+            return;
+        }
+        final Transformation<?> transform;
+        final Fetch fetch;
+        try {
+            transform = bind(transformation.get(), parameters);
+            fetch = fetch(resource, transform.fetchPlan());
+        } catch (final RuntimeException e) {
+            asyncResponse.resume(e);
+            return;
+        }
+        final TransformMemoryBudget budget = memoryBudget();
+        // the model backing the output is held until the output has been written
+        final Reservation reservation = budget.reserve();
+        final AtomicReference<ResourceModel> model = new AtomicReference<>();
+        asyncResponse.register((CompletionCallback) throwable -> {
+            if (model.get() != null) {
+                model.get().close();
+            }
+            reservation.close();
+        });
+        execute(asyncResponse, endpointPriority, () -> {
+            model.set(resourceModel(fetch, budget, reservation));
+            return ok()
+                .entity(transform.withResources(resourceLoader(fetch, budget, reservation))
+                        .evaluate(model.get().model(), fetch.topic))
+                .header("Warning", "The fcr:transform endpoint is deprecated and will be removed" +
+                        "in a future version of Fedora")
+                .build();
+        });
+    }
+
+    /**
+     * Answer one page of a SPARQL SELECT query's results, with a link to the next page unless it is the last. The
+     * link is a GET of the stored query, carrying its parameters, also when they were sent as a form. The
+     * results stay open between pages, so that the next page continues where this one stopped, while the resource is
+     * unchanged. Paged queries run over the resource's own triples, as their results are read across requests.
+     *
+     * @param resource the resource
+     * @param endpointPriority the priority class of the query, unless the client asked for another
+     * @param transformation supplies the query
+     * @param parameters the values of the query's variables
+     * @param asyncResponse the suspended response, resumed with the page
+     */
+    private void evaluatePage(final FedoraResource resource, final TransformPriority endpointPriority,
+            final Supplier<Transformation<?>> transformation, final Map<String, String> parameters,
+            final AsyncResponse asyncResponse) {
+        final int size;
+        final Token token;
+        try {
+            size = pageSize == null ? DEFAULT_PAGE_SIZE : Integer.parseInt(pageSize);
+            token = page == null ? null : Token.decode(page);
+        } catch (final IllegalArgumentException e) {
+            throw new BadRequestException("Not a page size or page token: " + e.getMessage());
+        }
+        if (size < 1) {
+            throw new BadRequestException("Pages hold at least one row");
+        }
+        final String state = resource.getEtagValue();
+        if (token != null && !token.state().equals(state)) {
+            throw new ClientErrorException("The resource has changed since the first page was read", CONFLICT);
+        }
+        final String user = session.getUserID();
+        final UriBuilder nextPage = uriInfo.getRequestUriBuilder();
+        // the parameters' values are substituted into the URL as templates, so that they are encoded as values
+        final Map<String, Object> values = new HashMap<>();
+        parameters.forEach((name, value) -> {
+            nextPage.replaceQueryParam(PARAMETER_PREFIX + name, "{p" + values.size() + "}");
+            values.put("p" + values.size(), value);
+        });
+        final Transformation<?> transform;
+        final Fetch fetch;
+        try {
+            transform = bind(transformation.get(), parameters);
+            fetch = fetch(resource, transform.fetchPlan());
+        } catch (final RuntimeException e) {
+            asyncResponse.resume(e);
+            return;
+        }
+        execute(asyncResponse, endpointPriority, () -> {
+            final String digest = TransformationFactory.digest(transform.digest(),
+                    new TreeMap<>(parameters).toString());
+            if (token != null && !token.digest().equals(digest)) {
+                throw new BadRequestException("The page token belongs to another query");
+            }
+            Cursor cursor = token == null || resultCursors == null ? null : resultCursors.resume(token, user,
+                    memoryBudget());
+            if (cursor == null) {
+                cursor = open(fetch, transform);
+                cursor.skip(token == null ? 0 : token.offset());
+            }
+            try {
+                final List<String> vars = cursor.vars();
+                final ResponseBuilder response = ok(new ResultSetStream(vars, createDefaultModel(),
+                        cursor.next(size).iterator()))
+                        .header("Warning", "The fcr:transform endpoint is deprecated and will be removed" +
+                                "in a future version of Fedora");
+                if (cursor.hasNext()) {
+                    final Token next = Token.next(digest, state, cursor.offset());
+                    response.link(nextPage.replaceQueryParam("page", next.encode()).buildFromMap(values), "next");
+                    if (resultCursors != null) {
+                        resultCursors.park(next, cursor);
+                        cursor = null;
+                    }
+                }
+                return response.build();
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Run a SPARQL SELECT query over a resource's own triples, and hold its results open
+     *
+     * @param fetch the resource and the request it is read for
+     * @param transform the query
+     * @return the query's results, holding the model and memory they read until they are closed
+     */
+    private Cursor open(final Fetch fetch, final Transformation<?> transform) {
+        final TransformMemoryBudget budget = memoryBudget();
+        final Reservation reservation = budget.reserve();
+        ResourceModel model = null;
+        try {
+            model = resourceModel(fetch, budget, reservation);
+            final Object output = transform.evaluate(model.model(), fetch.topic);
+            if (!(output instanceof QueryExecution) || !((QueryExecution) output).getQuery().isSelectType()) {
+                if (output instanceof QueryExecution) {
+                    ((QueryExecution) output).close();
+                }
+                throw new BadRequestException("Only the results of SPARQL SELECT queries can be paged");
+            }
+            final QueryExecution execution = (QueryExecution) output;
+            final ResourceModel held = model;
+            return new Cursor(execution, execution.execSelect(), held::close, reservation, fetch.user);
+        } catch (final RuntimeException e) {
+            if (model != null) {
+                model.close();
+            }
+            reservation.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Run a SPARQL SELECT query against the repository index. Its results are copied out of the index before they
+     * are written, and removed once they have been.
+     *
+     * @param contentType the content type
+     * @param requestBodyStream the request body stream
+     * @param asyncResponse the suspended response, resumed with the query's results
+     */
+    private void evaluateIndexQuery(final MediaType contentType, final InputStream requestBodyStream,
+            final AsyncResponse asyncResponse) {
+        if (repositoryIndex == null || !repositoryIndex.enabled()) {
+            throw new NotFoundException("No repository index is configured");
+        }
+        if (contentType == null || !contentType.isCompatible(MediaType.valueOf(contentTypeSPARQLQuery))) {
+            throw new BadRequestException("Only SPARQL queries can run against the repository index");
+        }
+        if (!repositoryIndex.permits(securityContext)) {
+            throw new ForbiddenException("Not permitted to query the repository index");
+        }
+        final AtomicReference<Results> results = new AtomicReference<>();
+        asyncResponse.register((CompletionCallback) throwable -> {
+            if (results.get() != null) {
+                results.get().close();
+            }
+        });
+        execute(asyncResponse, BULK, () -> {
+            final Query query = QueryFactory.create(IOUtils.toString(requestBodyStream));
+            if (!query.isSelectType()) {
+                throw new BadRequestException("Only SELECT queries can run against the repository index");
+            }
+            results.set(repositoryIndex.select(query));
+            return ok()
+                .entity(results.get().resultSet())
+                .header("Warning", "The fcr:transform endpoint is deprecated and will be removed" +
+                        "in a future version of Fedora")
+                .build();
+        });
+    }
+
+    /**
+     * Resolve what fetching a resource's triples needs of the request. Unless the client sent a Prefer header, only
+     * the triple contexts the transforms read are fetched; a Prefer header sent by the client is honoured as is.
+     *
+     * @param resource the resource
+     * @param plan the transforms' fetch plan
+     * @return the fetch, for the transforms to run with on the scheduler's threads
+     */
+    private Fetch fetch(final FedoraResource resource, final FetchPlan plan) {
+        final IdentifierConverter<Resource, FedoraResource> translator = translator();
+        final Node topic = translator.reverse().convert(resource).asNode();
+        final boolean preferSent = preferSent();
+        final Set<RequiredRdfContext> contexts = preferSent ? preferred() : plan.contexts();
+        LOGGER.debug("Transform reads {}", contexts);
+        // the triples describing the resource's HTTP interface are built from the request's URI
+        final List<Triple> httpTriples = httpTripleUtil == null || !contexts.contains(SERVER_MANAGED) ? emptyList() :
+                httpTripleUtil.addHttpComponentModelsForResourceToStream(new DefaultRdfStream(topic), resource,
+                        uriInfo, translator).collect(toList());
+        return new Fetch(resource, topic, translator, contexts, preferSent, httpTriples, session.getUserID());
+    }
+
+    /**
+     * @return the triple contexts the client's Prefer header asks for
+     */
+    private Set<RequiredRdfContext> preferred() {
+        final PreferTag preference;
+        if (prefer != null && prefer.hasReturn()) {
+            preference = prefer.getReturn();
+        } else if (prefer != null && prefer.hasHandling()) {
+            preference = prefer.getHandling();
+        } else {
+            preference = emptyTag();
+        }
+        final LdpPreferTag preferences = new LdpPreferTag(preference);
+        final Set<RequiredRdfContext> contexts = EnumSet.of(PROPERTIES);
+        if (preferences.prefersServerManaged()) {
+            contexts.add(SERVER_MANAGED);
+        }
+        if (preferences.prefersContainment()) {
+            contexts.add(LDP_CONTAINMENT);
+        }
+        if (preferences.prefersMembership()) {
+            contexts.add(LDP_MEMBERSHIP);
+        }
+        if (preferences.prefersReferences()) {
+            contexts.add(INBOUND_REFERENCES);
+        }
+        if (preferences.prefersEmbed()) {
+            contexts.add(EMBED_RESOURCES);
+        }
+        return contexts;
+    }
 
+    /**
+     * The model a request's transforms evaluate against, holding the triples their plan needs. Unless the client
+     * sent a Prefer header, a container's own triples come from the graph cache while the container is unchanged;
+     * its membership triples, which other resources determine, are always fetched afresh, and the triples describing
+     * its HTTP interface are those built for this request.
+     *
+     * @param fetch the resource and the request it is read for
+     * @param budget the memory budget
+     * @param reservation the request's reservation
+     * @return the model, to be closed once the transforms' output has been written
+     */
+    private ResourceModel resourceModel(final Fetch fetch, final TransformMemoryBudget budget,
+            final Reservation reservation) {
+        if (graphCache == null || !graphCache.enabled() || fetch.preferSent ||
+                fetch.resource instanceof FedoraBinary) {
+            return budget.track(reservation, fetch.triples(fetch.contexts)).collect(toResourceModel());
+        }
+        final Set<RequiredRdfContext> own = EnumSet.copyOf(fetch.contexts);
+        own.remove(LDP_MEMBERSHIP);
+        final ResourceModel model = graphCache.model(fetch.resource.getPath(), fetch.topic.getURI(), own,
+                fetch.user, fetch.resource.getEtagValue(), () -> budget.track(reservation,
+                        ResourceGraphCache.triples(fetch.resource, fetch.topic, fetch.translator, own)));
+        try {
+            final Graph graph = model.model().getGraph();
+            budget.track(reservation, new DefaultRdfStream(fetch.topic, fetch.httpTriples.stream()))
+                    .forEach(graph::add);
+            if (fetch.contexts.contains(LDP_MEMBERSHIP)) {
+                budget.track(reservation, fetch.triples(EnumSet.of(LDP_MEMBERSHIP))).forEach(graph::add);
+            }
+        } catch (final RuntimeException e) {
+            model.close();
+            throw e;
+        }
+        return model;
+    }
+
+    /**
+     * The loader through which transforms reach other repository resources, as the requesting user sees them. Each
+     * resource is read from the repository once per request, and its triples are charged to the request's memory
+     * reservation; transforms that load it again, each into a model of their own, are given the same triples.
+     *
+     * @param fetch the request's fetch, whose triple contexts are read of the other resources too
+     * @param budget the memory budget
+     * @param reservation the request's reservation
+     * @return the loader
+     */
+    private static ResourceLoader resourceLoader(final Fetch fetch, final TransformMemoryBudget budget,
+            final Reservation reservation) {
+        final IdentifierConverter<Resource, FedoraResource> translator = fetch.translator;
+        final Set<RequiredRdfContext> contexts = fetch.contexts;
+        final Map<String, List<Triple>> loaded = new HashMap<>();
+        return new ResourceLoader() {
+
+            @Override
+            public boolean contains(final String uri) {
+                return translator.inDomain(createResource(uri));
+            }
+
+            @Override
+            public Stream<Triple> load(final String uri) {
+                return loaded.computeIfAbsent(uri, resource -> {
+                    try {
+                        return budget.track(reservation, translator.convert(createResource(resource))
+                                .getTriples(translator, contexts)).collect(toList());
+                    } catch (final RepositoryRuntimeException e) {
+                        LOGGER.debug("Not following link to {}: {}", resource, e.getMessage());
+                        return emptyList();
+                    }
+                }).stream();
+            }
+        };
+    }
+
+    /**
+     * @return whether the client sent a Prefer header, as the injected preference is never null in a request
+     */
+    private boolean preferSent() {
+        return headers == null ? prefer != null : headers.getHeaderString("Prefer") != null;
+    }
+
+    private TransformMemoryBudget memoryBudget() {
+        if (memoryBudget == null) {
+            memoryBudget = new TransformMemoryBudget(Long.MAX_VALUE, 0, 0);
+        }
+        return memoryBudget;
+    }
+
+    /**
+     * Hand transform work to the transform scheduler, or run it here when no scheduler is configured. The work
+     * reaches the request only through what was resolved before this is called, such as a {@link Fetch}.
+     *
+     * @param asyncResponse the suspended response
+     * @param endpointPriority the priority class of the work, unless the client asked for another
+     * @param work the transform work
+     */
+    private void execute(final AsyncResponse asyncResponse, final TransformPriority endpointPriority,
+            final Callable<Response> work) {
+        if (transformScheduler == null) {
+            TransformScheduler.run(asyncResponse, work);
+        } else {
+            transformScheduler.submit(asyncResponse, TransformPriority.fromHeader(priority, endpointPriority), work);
+        }
+    }
+
+    /**
+     * Hand transform work producing a bare result to the transform scheduler, or run it here when no scheduler is
+     * configured.
+     *
+     * @param result the future to complete with the work's result
+     * @param endpointPriority the priority class of the work, unless the client asked for another
+     * @param work the transform work
+     * @param <T> the type of the work's result
+     */
+    private <T> void execute(final CompletableFuture<T> result, final TransformPriority endpointPriority,
+            final Callable<T> work) {
+        if (transformScheduler == null) {
+            TransformScheduler.run(result, work);
+        } else {
+            transformScheduler.submit(TransformPriority.fromHeader(priority, endpointPriority), result, work);
+        }
+    }
+
+    /**
+     * What fetching a resource's triples needs of the request, resolved on the container thread while the request
+     * scope is current. Transform work runs on the scheduler's threads, where the request's injected proxies are
+     * not to be used.
+     */
+    private static final class Fetch {
+
+        private final FedoraResource resource;
+
+        private final Node topic;
+
+        private final IdentifierConverter<Resource, FedoraResource> translator;
+
+        private final Set<RequiredRdfContext> contexts;
+
+        private final boolean preferSent;
+
+        private final List<Triple> httpTriples;
+
+        private final String user;
+
+        private Fetch(final FedoraResource resource, final Node topic,
+                final IdentifierConverter<Resource, FedoraResource> translator,
+                final Set<RequiredRdfContext> contexts, final boolean preferSent, final List<Triple> httpTriples,
+                final String user) {
+            this.resource = resource;
+            this.topic = topic;
+            this.translator = translator;
+            this.contexts = contexts;
+            this.preferSent = preferSent;
+            this.httpTriples = httpTriples;
+            this.user = user;
+        }
+
+        /**
+         * @return this fetch, less the membership triples, which other resources determine
+         */
+        private Fetch withoutMembership() {
+            final Set<RequiredRdfContext> own = EnumSet.copyOf(contexts);
+            own.remove(LDP_MEMBERSHIP);
+            return new Fetch(resource, topic, translator, own, preferSent, httpTriples, user);
+        }
+
+        /**
+         * @param fetched the triple contexts to fetch
+         * @return the resource's triples in those contexts
+         */
+        private RdfStream triples(final Set<RequiredRdfContext> fetched) {
+            final RdfStream triples = ResourceGraphCache.triples(resource, topic, translator, fetched);
+            return fetched.contains(SERVER_MANAGED) ?
+                    new DefaultRdfStream(topic, concat(triples, httpTriples.stream())) : triples;
+        }
     }
 
     @Override
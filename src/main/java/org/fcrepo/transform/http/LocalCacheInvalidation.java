@@ -0,0 +1,50 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.http;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import org.fcrepo.transform.CacheInvalidation;
+
+/**
+ * Invalidation within a single node: changes are delivered to this node's listeners only. This is the invalidation
+ * used unless a Spring bean implementing {@link CacheInvalidation} is configured.
+ *
+ * @author agent
+ */
+public class LocalCacheInvalidation implements CacheInvalidation {
+
+    private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void publish(final String path) {
+        listeners.forEach(listener -> listener.accept(path));
+    }
+
+    @Override
+    public void subscribe(final Consumer<String> listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public String toString() {
+        return "local invalidation";
+    }
+}
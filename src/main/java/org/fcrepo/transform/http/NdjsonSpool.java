@@ -0,0 +1,108 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.http;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.fcrepo.transform.TransformSink;
+import org.fcrepo.transform.http.responses.JsonObjectProvider;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A sink appending each output to a local file as one line of JSON (newline-delimited JSON), e.g.
+ * <pre>{"id":"http://localhost:8080/rest/a","program":"default","output":[{...}]}
+ * {"id":"http://localhost:8080/rest/a","program":"default","delta":{"title":{"set":["A"]}}}
+ * {"id":"http://localhost:8080/rest/b","deleted":true}</pre>
+ * Later lines for a resource supersede earlier ones, so a reader may replay the file from any point.
+ *
+ * @author agent
+ */
+public class NdjsonSpool implements TransformSink {
+
+    private static final ObjectMapper MAPPER = new JsonObjectProvider().getContext(NdjsonSpool.class);
+
+    private static final byte[] NEWLINE = "\n".getBytes(UTF_8);
+
+    private final Path file;
+
+    /**
+     * @param file the spool file, created readable by its owner alone if it doesn't exist, and appended to if it does
+     */
+    public NdjsonSpool(final Path file) {
+        this.file = file;
+    }
+
+    @Override
+    public void write(final String uri, final String program, final Object output) throws IOException {
+        final Map<String, Object> record = new LinkedHashMap<>();
+        record.put("id", uri);
+        record.put("program", program);
+        record.put("output", output);
+        append(record);
+    }
+
+    @Override
+    public void update(final String uri, final String program, final Map<String, Object> delta) throws IOException {
+        final Map<String, Object> record = new LinkedHashMap<>();
+        record.put("id", uri);
+        record.put("program", program);
+        record.put("delta", delta);
+        append(record);
+    }
+
+    @Override
+    public void delete(final String uri) throws IOException {
+        final Map<String, Object> record = new LinkedHashMap<>();
+        record.put("id", uri);
+        record.put("deleted", true);
+        append(record);
+    }
+
+    private synchronized void append(final Map<String, Object> record) throws IOException {
+        if (!Files.exists(file)) {
+            final Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) {
+                OwnerOnlyFiles.createDirectories(parent);
+            }
+            OwnerOnlyFiles.createFile(file);
+        }
+        try (final OutputStream out = Files.newOutputStream(file, CREATE, APPEND)) {
+            // one write per line, so that readers never see half a record
+            final byte[] line = MAPPER.writeValueAsBytes(record);
+            final byte[] bytes = new byte[line.length + NEWLINE.length];
+            System.arraycopy(line, 0, bytes, 0, line.length);
+            System.arraycopy(NEWLINE, 0, bytes, line.length, NEWLINE.length);
+            out.write(bytes);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "NDJSON spool " + file;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.http;
+
+import static com.google.common.hash.Hashing.sha1;
+import static com.google.common.hash.Hashing.sipHash24;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.singletonMap;
+import static java.util.stream.Collectors.toList;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.fcrepo.transform.http.responses.JsonObjectProvider;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Finds the fields of a program's output that changed since the output was last sent for a resource, so that
+ * downstream indexes receive only those fields. The previous output is remembered as one compact hash per field, in
+ * a small file per resource and program. A delta's hashes are remembered only once it is committed, after it was
+ * sent, so that a delta that could not be sent is computed again for the next output.
+ *
+ * Callers must not compute or commit deltas for the same resource and program concurrently.
+ *
+ * @author agent
+ */
+public class OutputDeltas {
+
+    private static final ObjectMapper MAPPER = new JsonObjectProvider().getContext(OutputDeltas.class);
+
+    private final Path directory;
+
+    /**
+     * @param directory the directory holding the hashes of previous outputs
+     */
+    public OutputDeltas(final Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Compare an output with the previous one for the resource and program
+     *
+     * @param uri the URI of the resource
+     * @param program the key of the program
+     * @param document the program's output
+     * @return the changed fields, and the hashes to commit in place of the previous output's once they are sent
+     * @throws IOException if the previous output's hashes can't be read
+     */
+    public Delta delta(final String uri, final String program, final Map<String, Collection<Object>> document)
+            throws IOException {
+        final Map<String, String> previous = read(file(uri, program));
+        final Map<String, String> current = new TreeMap<>();
+        final Map<String, Object> delta = new LinkedHashMap<>();
+        for (final Map.Entry<String, Collection<Object>> field : new TreeMap<>(document).entrySet()) {
+            final String hash = sipHash24().hashBytes(MAPPER.writeValueAsBytes(field.getValue())).toString();
+            current.put(field.getKey(), hash);
+            if (!hash.equals(previous.remove(field.getKey()))) {
+                delta.put(field.getKey(), singletonMap("set", field.getValue()));
+            }
+        }
+        // fields left over were in the previous output only
+        previous.keySet().forEach(field -> delta.put(field, singletonMap("set", null)));
+        return new Delta(delta, current);
+    }
+
+    /**
+     * Remember an output in place of the previous one for the resource and program, once its delta was sent
+     *
+     * @param uri the URI of the resource
+     * @param program the key of the program
+     * @param hashes the hashes of the output, from its {@link Delta}
+     * @throws IOException if the hashes can't be written
+     */
+    public void commit(final String uri, final String program, final Map<String, String> hashes) throws IOException {
+        write(file(uri, program), hashes);
+    }
+
+    /**
+     * Forget the previous outputs for a resource, e.g. once it is deleted
+     *
+     * @param uri the URI of the resource
+     * @param programs the keys of the programs
+     * @throws IOException if the hashes can't be removed
+     */
+    public void forget(final String uri, final Collection<String> programs) throws IOException {
+        for (final String program : programs) {
+            Files.deleteIfExists(file(uri, program));
+        }
+    }
+
+    private static Map<String, String> read(final Path file) throws IOException {
+        final Map<String, String> hashes = new HashMap<>();
+        try {
+            for (final String line : Files.readAllLines(file, UTF_8)) {
+                final int tab = line.lastIndexOf('\t');
+                if (tab > 0) {
+                    hashes.put(line.substring(0, tab), line.substring(tab + 1));
+                }
+            }
+        } catch (final NoSuchFileException e) {
+            // nothing has been sent for this resource and program
+        }
+        return hashes;
+    }
+
+    private static void write(final Path file, final Map<String, String> hashes) throws IOException {
+        OwnerOnlyFiles.createDirectories(file.getParent());
+        final List<String> lines = hashes.entrySet().stream().map(hash -> hash.getKey() + "\t" + hash.getValue())
+                .collect(toList());
+        Files.write(file, lines, UTF_8);
+    }
+
+    private Path file(final String uri, final String program) {
+        final String name = sha1().hashString(program + " " + uri, UTF_8).toString();
+        return directory.resolve(name.substring(0, 2)).resolve(name);
+    }
+
+    /**
+     * The fields of an output that changed, and the hashes of the whole output
+     */
+    public static class Delta {
+
+        private final Map<String, Object> fields;
+
+        private final Map<String, String> hashes;
+
+        private Delta(final Map<String, Object> fields, final Map<String, String> hashes) {
+            this.fields = fields;
+            this.hashes = hashes;
+        }
+
+        /**
+         * @return the changed fields, as for {@link org.fcrepo.transform.TransformSink#update}; empty if none changed
+         */
+        public Map<String, Object> fields() {
+            return fields;
+        }
+
+        /**
+         * @return the hashes of each field of the output
+         */
+        public Map<String, String> hashes() {
+            return hashes;
+        }
+    }
+}
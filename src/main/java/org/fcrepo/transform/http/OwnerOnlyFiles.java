@@ -0,0 +1,77 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.http;
+
+import static java.nio.file.attribute.PosixFilePermissions.asFileAttribute;
+import static java.nio.file.attribute.PosixFilePermissions.fromString;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Set;
+
+/**
+ * Creates the files and directories in which the module keeps resources' triples or transforms' outputs on local
+ * disk, readable and writable by the repository's own account alone. Their contents were read for particular users,
+ * or with the repository's internal session, and must not be readable by other accounts on the host. On file systems
+ * without POSIX permissions they are created with the file system's defaults.
+ *
+ * @author agent
+ */
+final class OwnerOnlyFiles {
+
+    private static final FileAttribute<Set<PosixFilePermission>> FILE = asFileAttribute(fromString("rw-------"));
+
+    private static final FileAttribute<Set<PosixFilePermission>> DIRECTORY = asFileAttribute(fromString("rwx------"));
+
+    private OwnerOnlyFiles() {
+    }
+
+    /**
+     * Create a directory and any missing parents, those it creates being the owner's alone
+     *
+     * @param directory the directory
+     * @return the directory
+     * @throws IOException if the directory could not be created
+     */
+    static Path createDirectories(final Path directory) throws IOException {
+        try {
+            return Files.createDirectories(directory, DIRECTORY);
+        } catch (final UnsupportedOperationException e) {
+            return Files.createDirectories(directory);
+        }
+    }
+
+    /**
+     * Create an empty file, the owner's alone, replacing any file already there
+     *
+     * @param file the file
+     * @return the file
+     * @throws IOException if the file could not be created
+     */
+    static Path createFile(final Path file) throws IOException {
+        Files.deleteIfExists(file);
+        try {
+            return Files.createFile(file, FILE);
+        } catch (final UnsupportedOperationException e) {
+            return Files.createFile(file);
+        }
+    }
+}
@@ -0,0 +1,417 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.http;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.hp.hpl.jena.rdf.model.ModelFactory.createDefaultModel;
+import static java.lang.Boolean.getBoolean;
+import static java.lang.Long.getLong;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.stream.Collectors.toList;
+import static org.fcrepo.kernel.api.RequiredRdfContext.LDP_CONTAINMENT;
+import static org.fcrepo.kernel.api.RequiredRdfContext.LDP_MEMBERSHIP;
+import static org.fcrepo.kernel.api.RequiredRdfContext.PROPERTIES;
+import static org.apache.jena.atlas.data.BagFactory.newDefaultBag;
+import static org.apache.jena.atlas.data.ThresholdPolicyFactory.count;
+import static org.apache.jena.riot.system.SerializationFactoryFinder.bindingSerializationFactory;
+import static org.fcrepo.kernel.api.RequiredRdfContext.SERVER_MANAGED;
+import static org.fcrepo.transform.transformations.SparqlQueryTransform.SPILL_ROWS_PROPERTY;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.locks.StampedLock;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.jcr.Session;
+import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.core.UriBuilder;
+
+import org.apache.jena.atlas.data.DataBag;
+import org.fcrepo.http.api.FedoraLdp;
+import org.fcrepo.http.commons.api.rdf.HttpResourceConverter;
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.fcrepo.kernel.api.RequiredRdfContext;
+import org.fcrepo.kernel.api.exception.RepositoryRuntimeException;
+import org.fcrepo.kernel.api.identifiers.IdentifierConverter;
+import org.fcrepo.kernel.api.models.FedoraResource;
+import org.fcrepo.kernel.api.models.Tombstone;
+import org.fcrepo.kernel.api.observer.FedoraEvent;
+import org.fcrepo.kernel.api.services.NodeService;
+import org.fcrepo.metrics.RegistryService;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.sparql.engine.ResultSetStream;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.tdb.TDB;
+import com.hp.hpl.jena.tdb.TDBFactory;
+
+/**
+ * An optional, repository-wide index of resources' triples in an embedded TDB store, against which SPARQL
+ * transforms may run instead of against a single resource. Each resource is a named graph, and the default graph is
+ * their union. The index follows the repository's change events, re-indexing each changed resource in the
+ * background, and can be rebuilt from scratch by walking the repository.
+ *
+ * The index is read with the repository's internal session, so it holds every resource regardless of access
+ * control; only users in the {@link #ROLE_PROPERTY} role, by default the repository's administrators, may query it.
+ *
+ * @author agent
+ */
+@Component
+public class RepositoryIndex {
+
+    private static final Logger LOGGER = getLogger(RepositoryIndex.class);
+
+    private static final MetricRegistry registry = RegistryService.getInstance().getMetrics();
+
+    /**
+     * System property for the directory holding the index; the index is disabled unless it is set
+     */
+    public static final String DIRECTORY_PROPERTY = "fcrepo.transform.index.directory";
+
+    /**
+     * System property for the base URL of the repository's resources, from which the index's URIs are built
+     */
+    public static final String BASE_URL_PROPERTY = "fcrepo.transform.index.baseUrl";
+
+    /**
+     * System property which, when true, rebuilds the index when the repository starts
+     */
+    public static final String REBUILD_PROPERTY = "fcrepo.transform.index.rebuild";
+
+    /**
+     * System property for the role a user needs to query the index, or {@value #ANY_USER} to let any user query it
+     */
+    public static final String ROLE_PROPERTY = "fcrepo.transform.index.role";
+
+    /**
+     * The role of the repository's administrators, who alone may query the index unless another role is configured
+     */
+    public static final String ADMIN_ROLE = "fedoraAdmin";
+
+    /**
+     * The value of {@link #ROLE_PROPERTY} that lets any user query the index
+     */
+    public static final String ANY_USER = "*";
+
+    static final String SYSTEM_PATH = "/fedora:system";
+
+    private static final String JCR_CONTENT = "/jcr:content";
+
+    private static final Set<RequiredRdfContext> CONTEXTS =
+            EnumSet.of(PROPERTIES, SERVER_MANAGED, LDP_CONTAINMENT, LDP_MEMBERSHIP);
+
+    @Inject
+    private SessionFactory sessions;
+
+    @Inject
+    private NodeService nodeService;
+
+    @Autowired(required = false)
+    private EventBus eventBus;
+
+    private final String directory = System.getProperty(DIRECTORY_PROPERTY);
+
+    private final String baseUrl = System.getProperty(BASE_URL_PROPERTY, "http://localhost:8080/rest");
+
+    private final String role = System.getProperty(ROLE_PROPERTY, ADMIN_ROLE);
+
+    private final ThreadPoolExecutor indexer = new ThreadPoolExecutor(1, 1, 0, MILLISECONDS,
+            new LinkedBlockingQueue<>(), new ThreadFactoryBuilder().setNameFormat("fcrepo-transform-index")
+                    .setDaemon(true).build());
+
+    /**
+     * The paths of the resources waiting to be re-indexed, so that a burst of events about one resource, such as the
+     * additions of a large container's children, queues it once
+     */
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Queries share the index while the indexer has it to itself. A query's results are copied out while it holds the
+     * index, so that no client holds it for as long as its response takes to write.
+     */
+    private final StampedLock lock = new StampedLock();
+
+    private final Counter updates = registry.counter(name(RepositoryIndex.class, "updates"));
+
+    private Dataset dataset;
+
+    /**
+     * Open the index, if one is configured, and start following the repository's changes
+     */
+    @PostConstruct
+    public void start() {
+        if (directory == null) {
+            LOGGER.debug("No {} set; the repository index is disabled", DIRECTORY_PROPERTY);
+            return;
+        }
+        LOGGER.info("Opening repository index in {}", directory);
+        try {
+            // the index holds every resource, regardless of access control
+            OwnerOnlyFiles.createDirectories(Paths.get(directory));
+        } catch (final IOException e) {
+            throw new RepositoryRuntimeException(e);
+        }
+        dataset = TDBFactory.createDataset(directory);
+        final String pending = name(RepositoryIndex.class, "pending");
+        registry.remove(pending);
+        registry.register(pending, (Gauge<Integer>) () -> indexer.getQueue().size());
+        if (eventBus == null) {
+            LOGGER.warn("No event bus is configured; the repository index will only change when rebuilt");
+        } else {
+            eventBus.register(this);
+        }
+        if (getBoolean(REBUILD_PROPERTY) || !dataset.listNames().hasNext()) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Stop following the repository's changes and close the index
+     */
+    @PreDestroy
+    public void stop() {
+        indexer.shutdownNow();
+        if (dataset != null) {
+            if (eventBus != null) {
+                eventBus.unregister(this);
+            }
+            final long stamp = lock.writeLock();
+            try {
+                dataset.close();
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * @return whether an index is configured
+     */
+    public boolean enabled() {
+        return dataset != null;
+    }
+
+    /**
+     * @param securityContext the requesting user
+     * @return whether the user may query the index
+     */
+    public boolean permits(final SecurityContext securityContext) {
+        return ANY_USER.equals(role) || securityContext != null && securityContext.isUserInRole(role);
+    }
+
+    /**
+     * Re-index the resource a repository event concerns, unless it is already waiting to be re-indexed
+     *
+     * @param event the event
+     */
+    @Subscribe
+    public void onEvent(final FedoraEvent event) {
+        final String path = resourcePath(event.getPath());
+        if (!path.startsWith(SYSTEM_PATH) && queued.add(path)) {
+            indexer.execute(() -> {
+                queued.remove(path);
+                update(path);
+            });
+        }
+    }
+
+    /**
+     * Rebuild the index from scratch, in the background
+     */
+    public void rebuild() {
+        indexer.execute(this::reindex);
+    }
+
+    /**
+     * Run a SELECT query against the index, copying its results out before the index may change again. Results past
+     * the SPARQL spill threshold are copied to a temporary file rather than held on the heap.
+     *
+     * @param query the query
+     * @return the query's results, to be closed once they have been written
+     */
+    public Results select(final Query query) {
+        final long spillRows = getLong(SPILL_ROWS_PROPERTY, 100000);
+        final DataBag<Binding> rows = newDefaultBag(count(spillRows > 0 ? spillRows : Long.MAX_VALUE),
+                bindingSerializationFactory());
+        final List<String> vars;
+        final long stamp = lock.readLock();
+        try (final QueryExecution qexec = QueryExecutionFactory.create(query, dataset)) {
+            qexec.getContext().set(TDB.symUnionDefaultGraph, true);
+            final ResultSet resultSet = qexec.execSelect();
+            vars = resultSet.getResultVars();
+            while (resultSet.hasNext()) {
+                rows.add(resultSet.nextBinding());
+            }
+        } catch (final RuntimeException e) {
+            rows.close();
+            throw e;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return new Results(vars, rows);
+    }
+
+    /**
+     * The results of a query against the index, copied out of it
+     */
+    public static class Results implements AutoCloseable {
+
+        private final List<String> vars;
+
+        private final DataBag<Binding> rows;
+
+        private Results(final List<String> vars, final DataBag<Binding> rows) {
+            this.vars = vars;
+            this.rows = rows;
+        }
+
+        /**
+         * @return the results, which may be read once
+         */
+        public ResultSet resultSet() {
+            return new ResultSetStream(vars, createDefaultModel(), rows.iterator());
+        }
+
+        /**
+         * Remove any temporary file holding the results
+         */
+        @Override
+        public void close() {
+            rows.close();
+        }
+    }
+
+    private void update(final String path) {
+        final Session session = sessions.getInternalSession();
+        try {
+            final IdentifierConverter<Resource, FedoraResource> translator = translator(session);
+            final String graph = translator.toDomain(path).getURI();
+            final FedoraResource resource = nodeService.exists(session, path) ? nodeService.find(session, path) : null;
+            if (resource == null || resource instanceof Tombstone) {
+                LOGGER.debug("Removing {} from the repository index", graph);
+                write(() -> {
+                    final List<String> names = new ArrayList<>();
+                    dataset.listNames().forEachRemaining(names::add);
+                    names.stream().filter(name -> name.equals(graph) || name.startsWith(graph + "/"))
+                            .forEach(dataset::removeNamedModel);
+                });
+            } else {
+                index(resource, translator);
+            }
+            updates.inc();
+        } catch (final RepositoryRuntimeException e) {
+            LOGGER.warn("Could not index {}", path, e);
+        } finally {
+            session.logout();
+        }
+    }
+
+    private void reindex() {
+        final Session session = sessions.getInternalSession();
+        try {
+            LOGGER.info("Rebuilding the repository index");
+            write(() -> {
+                final List<String> names = new ArrayList<>();
+                dataset.listNames().forEachRemaining(names::add);
+                names.forEach(dataset::removeNamedModel);
+            });
+            final IdentifierConverter<Resource, FedoraResource> translator = translator(session);
+            final Deque<FedoraResource> pending = new ArrayDeque<>();
+            pending.push(nodeService.find(session, "/"));
+            long count = 0;
+            while (!pending.isEmpty() && !Thread.currentThread().isInterrupted()) {
+                final FedoraResource resource = pending.pop();
+                if (!resource.getPath().startsWith(SYSTEM_PATH)) {
+                    index(resource, translator);
+                    resource.getChildren().forEach(pending::push);
+                    count++;
+                }
+            }
+            LOGGER.info("Rebuilt the repository index of {} resources", count);
+        } catch (final RepositoryRuntimeException e) {
+            LOGGER.error("Could not rebuild the repository index", e);
+        } finally {
+            session.logout();
+        }
+    }
+
+    private void index(final FedoraResource resource, final IdentifierConverter<Resource, FedoraResource> translator) {
+        final String graph = translator.reverse().convert(resource).getURI();
+        // read the resource before taking the index from queries
+        final List<Triple> triples = resource.getTriples(translator, CONTEXTS).collect(toList());
+        write(() -> {
+            final Graph named = dataset.getNamedModel(graph).getGraph();
+            named.clear();
+            triples.forEach(named::add);
+        });
+    }
+
+    private void write(final Runnable change) {
+        final long stamp = lock.writeLock();
+        try {
+            change.run();
+            TDB.sync(dataset);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private IdentifierConverter<Resource, FedoraResource> translator(final Session session) {
+        return new HttpResourceConverter(session, UriBuilder.fromUri(baseUrl).path(FedoraLdp.class));
+    }
+
+    /**
+     * Events about hash URIs and binary content concern the resource they belong to, and events about the root
+     * carry an empty path
+     */
+    static String resourcePath(final String path) {
+        final int hash = path.indexOf("/#");
+        final String node = hash < 0 ? path : path.substring(0, hash);
+        final String resource = node.endsWith(JCR_CONTENT) ? node.substring(0, node.length() - JCR_CONTENT.length())
+                : node;
+        return resource.isEmpty() ? "/" : resource;
+    }
+}
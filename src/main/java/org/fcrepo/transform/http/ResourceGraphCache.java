@@ -0,0 +1,323 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.http;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static java.lang.Long.getLong;
+import static java.util.stream.Collectors.toList;
+import static org.fcrepo.transform.ResourceModel.toResourceModel;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+
+import org.fcrepo.kernel.api.RdfStream;
+import org.fcrepo.kernel.api.RequiredRdfContext;
+import org.fcrepo.kernel.api.identifiers.IdentifierConverter;
+import org.fcrepo.kernel.api.models.FedoraResource;
+import org.fcrepo.kernel.api.rdf.DefaultRdfStream;
+import org.fcrepo.metrics.RegistryService;
+import org.fcrepo.transform.ResourceModel;
+import org.fcrepo.transform.TransformCache;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.rdf.model.Resource;
+
+/**
+ * A bounded cache of resources' graphs, so that transforms of a resource that hasn't changed since it was last
+ * transformed needn't fetch its triples from the repository again. Graphs are keyed by the resource's URI, the
+ * triple contexts fetched and the user they were fetched for, as users may see different triples of a resource, and
+ * each is checked against the resource's ETag before it is used, so a changed resource
+ * is always fetched afresh. Entries for resources that change on any node are dropped early, as are those of their
+ * parents, whose containment changed.
+ *
+ * Graphs that spill to disk are not cached, and the cache holds at most {@link #TRIPLES_PROPERTY} triples, and no more
+ * than fit in its share of the {@link TransformMemoryBudget}.
+ *
+ * @author agent
+ */
+@Component
+public class ResourceGraphCache implements TransformCache {
+
+    private static final Logger LOGGER = getLogger(ResourceGraphCache.class);
+
+    private static final MetricRegistry registry = RegistryService.getInstance().getMetrics();
+
+    /**
+     * System property for the most triples the cache holds; 0 disables the cache
+     */
+    public static final String TRIPLES_PROPERTY = "fcrepo.transform.cache.triples";
+
+    @Autowired(required = false)
+    private TransformMemoryBudget memoryBudget;
+
+    private long capacity;
+
+    private Cache<Key, Entry> graphs;
+
+    private final Counter hits = registry.counter(name(ResourceGraphCache.class, "hits"));
+
+    private final Counter misses = registry.counter(name(ResourceGraphCache.class, "misses"));
+
+    /**
+     * Create a cache configured from system properties
+     */
+    public ResourceGraphCache() {
+        this(getLong(TRIPLES_PROPERTY, 250000));
+    }
+
+    /**
+     * @param capacity the most triples the cache holds
+     */
+    public ResourceGraphCache(final long capacity) {
+        this.capacity = capacity;
+        this.graphs = build(capacity);
+    }
+
+    private static Cache<Key, Entry> build(final long capacity) {
+        return CacheBuilder.newBuilder().maximumWeight(capacity)
+                .weigher((final Key key, final Entry entry) -> (int) Math.min(Integer.MAX_VALUE, entry.graph.size()))
+                .build();
+    }
+
+    /**
+     * Take the cache's share of the memory budget, and publish the number of triples held
+     */
+    @PostConstruct
+    public void start() {
+        if (memoryBudget != null && capacity > 0) {
+            final long granted = memoryBudget.reserveCache(capacity);
+            if (granted < capacity) {
+                capacity = granted;
+                graphs = build(capacity);
+            }
+        }
+        final String triples = name(ResourceGraphCache.class, "triples");
+        registry.remove(triples);
+        registry.register(triples, (Gauge<Long>) () ->
+                graphs.asMap().values().stream().mapToLong(entry -> entry.graph.size()).sum());
+    }
+
+    /**
+     * @return whether the cache holds any graphs
+     */
+    public boolean enabled() {
+        return capacity > 0;
+    }
+
+    /**
+     * The model of a resource's triples, from the cache if the resource hasn't changed since its graph was cached,
+     * and otherwise from the resource's triples, which are cached if they fit in memory
+     *
+     * @param path the path of the resource
+     * @param uri the URI of the resource
+     * @param contexts the triple contexts fetched
+     * @param user the user the triples are fetched for
+     * @param etag the resource's current ETag
+     * @param triples the resource's triples, as the user sees them
+     * @return the model, to be closed once the transform's output has been written
+     */
+    public ResourceModel model(final String path, final String uri, final Set<RequiredRdfContext> contexts,
+            final String user, final String etag, final Supplier<RdfStream> triples) {
+        final Key key = new Key(path, uri, contexts, user);
+        final Entry cached = graphs.getIfPresent(key);
+        if (cached != null && cached.etag.equals(etag)) {
+            hits.inc();
+            return ResourceModel.overlay(cached.graph);
+        }
+        misses.inc();
+        final ResourceModel model = triples.get().collect(toResourceModel());
+        if (model.spilled()) {
+            graphs.invalidate(key);
+            return model;
+        }
+        final Graph graph = model.model().getGraph();
+        graphs.put(key, new Entry(etag, graph));
+        return ResourceModel.overlay(graph);
+    }
+
+    /**
+     * @return the cached graphs, with the state of the resource each was fetched from
+     */
+    public List<CachedGraph> graphs() {
+        return graphs.asMap().entrySet().stream().map(entry -> new CachedGraph(entry.getKey().path,
+                entry.getKey().uri, entry.getKey().contexts, entry.getKey().user, entry.getValue().etag,
+                entry.getValue().graph))
+                .collect(toList());
+    }
+
+    /**
+     * The triples of a resource that its cached graphs hold: those of the given contexts, as the translator's session
+     * sees them. The triples describing the resource's HTTP interface are built from each request's URI, and are
+     * added to the model by the request rather than cached.
+     *
+     * @param resource the resource
+     * @param topic the resource's URI, as a node
+     * @param translator the translator of the session the triples are fetched in
+     * @param contexts the triple contexts to fetch
+     * @return the resource's triples in those contexts
+     */
+    public static RdfStream triples(final FedoraResource resource, final Node topic,
+            final IdentifierConverter<Resource, FedoraResource> translator, final Set<RequiredRdfContext> contexts) {
+        return new DefaultRdfStream(topic, contexts.stream().flatMap(context -> resource.getTriples(translator,
+                context)));
+    }
+
+    /**
+     * Drop the graphs of a changed resource, and of its parent
+     */
+    @Override
+    public void invalidate(final String path) {
+        final String parent = path.lastIndexOf('/') > 0 ? path.substring(0, path.lastIndexOf('/')) : "/";
+        LOGGER.trace("Dropping cached graphs of {} and {}", path, parent);
+        graphs.asMap().keySet().removeIf(key -> key.path.equals(path) || key.path.equals(parent));
+    }
+
+    /**
+     * A resource's graph as cached, with the state of the resource it was fetched from
+     */
+    public static class CachedGraph {
+
+        private final String path;
+
+        private final String uri;
+
+        private final Set<RequiredRdfContext> contexts;
+
+        private final String user;
+
+        private final String etag;
+
+        private final Graph graph;
+
+        /**
+         * @param path the path of the resource
+         * @param uri the URI of the resource
+         * @param contexts the triple contexts fetched
+         * @param user the user the triples were fetched for
+         * @param etag the ETag of the resource when its triples were fetched
+         * @param graph the resource's triples
+         */
+        public CachedGraph(final String path, final String uri, final Set<RequiredRdfContext> contexts,
+                final String user, final String etag, final Graph graph) {
+            this.path = path;
+            this.uri = uri;
+            this.contexts = contexts;
+            this.user = user;
+            this.etag = etag;
+            this.graph = graph;
+        }
+
+        /**
+         * @return the path of the resource
+         */
+        public String path() {
+            return path;
+        }
+
+        /**
+         * @return the URI of the resource
+         */
+        public String uri() {
+            return uri;
+        }
+
+        /**
+         * @return the triple contexts fetched
+         */
+        public Set<RequiredRdfContext> contexts() {
+            return contexts;
+        }
+
+        /**
+         * @return the user the triples were fetched for
+         */
+        public String user() {
+            return user;
+        }
+
+        /**
+         * @return the ETag of the resource when its triples were fetched
+         */
+        public String etag() {
+            return etag;
+        }
+
+        /**
+         * @return the resource's triples
+         */
+        public Graph graph() {
+            return graph;
+        }
+    }
+
+    private static class Key {
+
+        private final String path;
+
+        private final String uri;
+
+        private final Set<RequiredRdfContext> contexts;
+
+        private final String user;
+
+        private Key(final String path, final String uri, final Set<RequiredRdfContext> contexts, final String user) {
+            this.path = path;
+            this.uri = uri;
+            this.contexts = contexts.isEmpty() ? contexts : EnumSet.copyOf(contexts);
+            this.user = user;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            return other instanceof Key && ((Key) other).uri.equals(uri) && ((Key) other).contexts.equals(contexts)
+                    && Objects.equals(((Key) other).user, user);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(uri, contexts, user);
+        }
+    }
+
+    private static class Entry {
+
+        private final String etag;
+
+        private final Graph graph;
+
+        private Entry(final String etag, final Graph graph) {
+            this.etag = etag;
+            this.graph = graph;
+        }
+    }
+}
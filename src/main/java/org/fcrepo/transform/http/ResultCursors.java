@@ -0,0 +1,390 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.http;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static java.lang.Long.getLong;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.fcrepo.metrics.RegistryService;
+import org.fcrepo.transform.http.TransformMemoryBudget.Reservation;
+import org.slf4j.Logger;
+import org.springframework.stereotype.Component;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+
+/**
+ * Keeps the results of paged SPARQL queries open between pages, so that the next page continues where the last one
+ * stopped rather than running, and sorting, the query again. A page's continuation token names the query, with its
+ * parameters, by digest, the state of the resource the results came from, and the offset of the next page; a cursor
+ * left open at that offset is resumed only by the same user, while the resource is unchanged.
+ *
+ * A cursor holds its query's execution, and the model the execution reads, until its results have all been read, or
+ * it has been idle for {@link #TIMEOUT_PROPERTY} seconds, or more than {@link #SIZE_PROPERTY} cursors are open. A
+ * parked cursor gives its memory back to the transforms' budget, and is charged to a budget of its own,
+ * {@link #MEMORY_PROPERTY}, instead; a cursor that doesn't fit in it is closed rather than parked. A token whose
+ * cursor is gone is still good: its query runs again, and skips to the token's offset.
+ *
+ * @author agent
+ */
+@Component
+public class ResultCursors {
+
+    private static final Logger LOGGER = getLogger(ResultCursors.class);
+
+    private static final MetricRegistry registry = RegistryService.getInstance().getMetrics();
+
+    /**
+     * System property for the seconds a cursor stays open between pages
+     */
+    public static final String TIMEOUT_PROPERTY = "fcrepo.transform.cursor.timeout";
+
+    /**
+     * System property for the most cursors open at once
+     */
+    public static final String SIZE_PROPERTY = "fcrepo.transform.cursors";
+
+    /**
+     * System property for the most memory, in megabytes, held by cursors left open between pages
+     */
+    public static final String MEMORY_PROPERTY = "fcrepo.transform.cursors.memory";
+
+    private static final long MEGABYTE = 1024 * 1024;
+
+    private final Cache<String, Cursor> cursors;
+
+    private final long timeout;
+
+    private final long memory;
+
+    private final AtomicLong parked = new AtomicLong();
+
+    private final Counter resumed = registry.counter(name(ResultCursors.class, "resumed"));
+
+    private final Counter declined = registry.counter(name(ResultCursors.class, "declined"));
+
+    private ScheduledExecutorService timer;
+
+    /**
+     * Create cursors configured from system properties
+     */
+    public ResultCursors() {
+        this(getLong(TIMEOUT_PROPERTY, 60), getLong(SIZE_PROPERTY, 100), getLong(MEMORY_PROPERTY, 32) * MEGABYTE);
+    }
+
+    /**
+     * @param timeout the seconds a cursor stays open between pages
+     * @param size the most cursors open at once
+     * @param memory the most memory, in bytes, held by cursors open between pages
+     */
+    public ResultCursors(final long timeout, final long size, final long memory) {
+        this.timeout = timeout;
+        this.memory = memory;
+        this.cursors = CacheBuilder.newBuilder().expireAfterAccess(timeout, SECONDS).maximumSize(size)
+                .removalListener((final RemovalNotification<String, Cursor> removed) -> {
+                    parked.addAndGet(-removed.getValue().charged);
+                    if (removed.wasEvicted()) {
+                        LOGGER.debug("Closing idle cursor {}", removed.getKey());
+                        removed.getValue().close();
+                    }
+                }).build();
+    }
+
+    /**
+     * Publish the number of open cursors, and close idle cursors as they expire
+     */
+    @PostConstruct
+    public void start() {
+        final String open = name(ResultCursors.class, "open");
+        registry.remove(open);
+        registry.register(open, (Gauge<Long>) cursors::size);
+        timer = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactoryBuilder().setNameFormat("fcrepo-transform-cursors").setDaemon(true).build());
+        final long period = Math.max(1, timeout / 2);
+        timer.scheduleWithFixedDelay(cursors::cleanUp, period, period, SECONDS);
+    }
+
+    /**
+     * Close every open cursor
+     */
+    @PreDestroy
+    public void stop() {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+        final List<Cursor> open = new ArrayList<>(cursors.asMap().values());
+        cursors.invalidateAll();
+        open.forEach(Cursor::close);
+    }
+
+    /**
+     * @return the memory, in bytes, held by cursors open between pages
+     */
+    public long parked() {
+        return parked.get();
+    }
+
+    /**
+     * Keep a cursor open for its next page, if there is memory for it; otherwise close it
+     *
+     * @param token the token of the next page
+     * @param cursor the cursor, positioned at the token's offset
+     */
+    public void park(final Token token, final Cursor cursor) {
+        final long bytes = cursor.reservation.used();
+        cursor.reservation.close();
+        if (parked.addAndGet(bytes) > memory) {
+            parked.addAndGet(-bytes);
+            declined.inc();
+            LOGGER.debug("No memory left for parked cursors; closing cursor {}", token.id);
+            cursor.close();
+            return;
+        }
+        cursor.charged = bytes;
+        cursors.put(token.id, cursor);
+    }
+
+    /**
+     * Take the cursor left open for a page, if it is still open and belongs to the user. Its memory leaves the parked
+     * cursors' budget and is charged to a new reservation of the transforms' budget, until it is parked or closed.
+     *
+     * @param token the token of the page
+     * @param user the user asking for the page
+     * @param budget the transforms' memory budget
+     * @return the cursor, positioned at the token's offset, or null if the query must run again
+     */
+    public Cursor resume(final Token token, final String user, final TransformMemoryBudget budget) {
+        final Cursor cursor = cursors.asMap().remove(token.id);
+        if (cursor == null) {
+            return null;
+        }
+        if (!Objects.equals(cursor.user, user) || cursor.offset != token.offset) {
+            cursor.close();
+            return null;
+        }
+        final Reservation reservation = budget.reserve();
+        try {
+            reservation.grow(cursor.charged);
+        } catch (final RuntimeException e) {
+            reservation.close();
+            cursor.close();
+            throw e;
+        }
+        cursor.reservation = reservation;
+        resumed.inc();
+        return cursor;
+    }
+
+    /**
+     * The open results of a query, and whatever they read from, positioned at some offset. The memory the results
+     * read is charged to a reservation of the transforms' budget while a request reads the cursor, and to the parked
+     * cursors' budget while it is parked.
+     */
+    public static class Cursor implements AutoCloseable {
+
+        private final QueryExecution execution;
+
+        private final ResultSet results;
+
+        private final AutoCloseable resources;
+
+        private Reservation reservation;
+
+        private final String user;
+
+        private long offset;
+
+        private long charged;
+
+        /**
+         * @param execution the query's execution
+         * @param results the query's results, at their start
+         * @param resources what the results read from, to be closed with them
+         * @param reservation the memory charged for what the results read
+         * @param user the user the query ran for
+         */
+        public Cursor(final QueryExecution execution, final ResultSet results, final AutoCloseable resources,
+                final Reservation reservation, final String user) {
+            this.execution = execution;
+            this.results = results;
+            this.resources = resources;
+            this.reservation = reservation;
+            this.user = user;
+        }
+
+        /**
+         * @return the names of the results' variables
+         */
+        public List<String> vars() {
+            return results.getResultVars();
+        }
+
+        /**
+         * Skip to an offset, as when a query runs again to resume its results
+         *
+         * @param to the offset
+         */
+        public void skip(final long to) {
+            while (offset < to && results.hasNext()) {
+                results.nextBinding();
+                offset++;
+            }
+        }
+
+        /**
+         * @param size the most rows to read
+         * @return the next rows
+         */
+        public List<Binding> next(final int size) {
+            final List<Binding> rows = new ArrayList<>();
+            while (rows.size() < size && results.hasNext()) {
+                rows.add(results.nextBinding());
+            }
+            offset += rows.size();
+            return rows;
+        }
+
+        /**
+         * @return whether any rows are left
+         */
+        public boolean hasNext() {
+            return results.hasNext();
+        }
+
+        /**
+         * @return the offset of the next row
+         */
+        public long offset() {
+            return offset;
+        }
+
+        @Override
+        public void close() {
+            try {
+                execution.close();
+                resources.close();
+            } catch (final Exception e) {
+                LOGGER.warn("Could not close cursor", e);
+            } finally {
+                reservation.close();
+            }
+        }
+    }
+
+    /**
+     * A continuation token, naming a page of a query's results
+     */
+    public static class Token {
+
+        private final String digest;
+
+        private final String state;
+
+        private final long offset;
+
+        private final String id;
+
+        /**
+         * @param digest the digest of the query and its parameters
+         * @param state the ETag of the resource the results came from
+         * @param offset the offset of the page
+         * @param id the identifier of the cursor open at the offset
+         */
+        public Token(final String digest, final String state, final long offset, final String id) {
+            this.digest = digest;
+            this.state = state;
+            this.offset = offset;
+            this.id = id;
+        }
+
+        /**
+         * @param digest the digest of the query and its parameters
+         * @param state the ETag of the resource the results came from
+         * @param offset the offset of the page
+         * @return the token of a page, for a new cursor
+         */
+        public static Token next(final String digest, final String state, final long offset) {
+            return new Token(digest, state, offset, UUID.randomUUID().toString());
+        }
+
+        /**
+         * @param encoded an encoded token
+         * @return the token
+         * @throws IllegalArgumentException if it isn't a token
+         */
+        public static Token decode(final String encoded) {
+            final String[] fields = new String(Base64.getUrlDecoder().decode(encoded), UTF_8).split("\n", -1);
+            if (fields.length != 4) {
+                throw new IllegalArgumentException("Not a page token: " + encoded);
+            }
+            return new Token(fields[0], fields[1], Long.parseLong(fields[2]), fields[3]);
+        }
+
+        /**
+         * @return the token, encoded for a URL
+         */
+        public String encode() {
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(
+                    String.join("\n", digest, state, Long.toString(offset), id).getBytes(UTF_8));
+        }
+
+        /**
+         * @return the digest of the query and its parameters
+         */
+        public String digest() {
+            return digest;
+        }
+
+        /**
+         * @return the ETag of the resource the results came from
+         */
+        public String state() {
+            return state;
+        }
+
+        /**
+         * @return the offset of the page
+         */
+        public long offset() {
+            return offset;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.http;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+import org.fcrepo.metrics.RegistryService;
+import org.slf4j.Logger;
+import org.springframework.stereotype.Component;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Coalesces identical transforms that are in progress at the same time, so that one computation serves every
+ * request waiting for it. The first request for a key leads and starts the computation; requests arriving for the
+ * same key before it finishes follow, and receive the same bytes. Once the computation finishes, the key is
+ * forgotten and the next request computes afresh.
+ *
+ * Keys are independent of each other: a slow computation only holds up the requests waiting on its own key.
+ *
+ * @author agent
+ */
+@Component
+public class TransformCoalescer {
+
+    private static final Logger LOGGER = getLogger(TransformCoalescer.class);
+
+    private static final MetricRegistry registry = RegistryService.getInstance().getMetrics();
+
+    private final ConcurrentMap<Object, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<>();
+
+    private final Counter coalesced = registry.counter(name(TransformCoalescer.class, "coalesced"));
+
+    /**
+     * Create a coalescer
+     */
+    public TransformCoalescer() {
+        final String gauge = name(TransformCoalescer.class, "inFlight");
+        registry.remove(gauge);
+        registry.register(gauge, (Gauge<Integer>) this::inFlight);
+    }
+
+    /**
+     * Join the computation in progress for a key, or lead a new one.
+     *
+     * @param key identifies the computation, e.g. by resource, resource state and program
+     * @param computation starts the computation, which must eventually complete the future it is given; only
+     *        called when there is no computation in progress for the key
+     * @return the shared result of the computation
+     */
+    public CompletableFuture<byte[]> coalesce(final Object key, final Consumer<CompletableFuture<byte[]>> computation) {
+        final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        final CompletableFuture<byte[]> existing = inFlight.putIfAbsent(key, result);
+        if (existing != null) {
+            LOGGER.debug("Joining transform in progress for {}", key);
+            coalesced.inc();
+            return existing;
+        }
+        result.whenComplete((bytes, e) -> inFlight.remove(key, result));
+        try {
+            computation.accept(result);
+        } catch (final RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of distinct computations in progress
+     */
+    public int inFlight() {
+        return inFlight.size();
+    }
+}
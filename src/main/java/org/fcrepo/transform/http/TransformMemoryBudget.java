@@ -0,0 +1,350 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.http;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static java.lang.Integer.getInteger;
+import static java.lang.Long.getLong;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.management.ManagementFactory.getMemoryPoolMXBeans;
+import static java.lang.management.MemoryType.HEAP;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.fcrepo.transform.ResourceModel.spillThreshold;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+
+import org.fcrepo.kernel.api.RdfStream;
+import org.fcrepo.kernel.api.rdf.DefaultRdfStream;
+import org.fcrepo.metrics.RegistryService;
+import org.fcrepo.transform.TransformMemoryException;
+import org.slf4j.Logger;
+import org.springframework.stereotype.Component;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * A global budget for the memory held by transforms in progress, chiefly the in-memory models built from resources'
+ * triples. Each transform takes a {@link Reservation}, which grows with the estimated size of the triples it
+ * collects and is returned when the transform is done. A transform whose reservation cannot grow waits for other
+ * transforms to return theirs, and fails with a {@link TransformMemoryException} if none do in time.
+ *
+ * The budget also follows the actual state of the heap: when the memory retained outside of transforms, as measured
+ * after the last garbage collection, leaves less room than the configured budget, the smaller figure applies. The
+ * number of transforms running at once is thus bounded by their memory rather than only by the number of workers.
+ *
+ * The graphs of the {@link ResourceGraphCache} stay on the heap between transforms, so the cache is given a share of
+ * the budget of its own, at most half of it, and transforms share the rest.
+ *
+ * @author agent
+ */
+@Component
+public class TransformMemoryBudget {
+
+    private static final Logger LOGGER = getLogger(TransformMemoryBudget.class);
+
+    private static final MetricRegistry registry = RegistryService.getInstance().getMetrics();
+
+    /**
+     * System property for the budget, in megabytes
+     */
+    public static final String MEMORY_PROPERTY = "fcrepo.transform.memory";
+
+    /**
+     * System property for how long, in milliseconds, a transform may wait for memory before failing
+     */
+    public static final String MEMORY_WAIT_PROPERTY = "fcrepo.transform.memory.wait";
+
+    /**
+     * System property for the estimated size, in bytes, of one triple held in a model
+     */
+    public static final String TRIPLE_SIZE_PROPERTY = "fcrepo.transform.memory.tripleSize";
+
+    private static final long MEGABYTE = 1024 * 1024;
+
+    /**
+     * Reservations grow a chunk at a time, so that most triples don't need to visit the budget
+     */
+    private static final long CHUNK = MEGABYTE;
+
+    /**
+     * The share of the heap transforms may ever use, leaving room for everything else the repository does
+     */
+    private static final double HEAP_SHARE = 0.8;
+
+    /**
+     * The share of the budget the graph cache may take
+     */
+    private static final double CACHE_SHARE = 0.5;
+
+    private static final long RECHECK = MILLISECONDS.toNanos(100);
+
+    private final long limit;
+
+    private final long waitMillis;
+
+    private final long tripleSize;
+
+    private final Counter refused = registry.counter(name(TransformMemoryBudget.class, "refused"));
+
+    private long reserved = 0;
+
+    private long cached = 0;
+
+    private int reservations = 0;
+
+    /**
+     * Create a budget configured from system properties, by default a quarter of the heap
+     */
+    public TransformMemoryBudget() {
+        this(getLong(MEMORY_PROPERTY, Runtime.getRuntime().maxMemory() / 4 / MEGABYTE) * MEGABYTE,
+                getInteger(MEMORY_WAIT_PROPERTY, 10000), getInteger(TRIPLE_SIZE_PROPERTY, 512));
+    }
+
+    /**
+     * Create a budget
+     *
+     * @param limit the most memory, in bytes, that transforms may hold at once
+     * @param waitMillis how long a transform may wait for memory before failing
+     * @param tripleSize the estimated size of one triple held in a model, in bytes
+     */
+    public TransformMemoryBudget(final long limit, final long waitMillis, final long tripleSize) {
+        this.limit = limit;
+        this.waitMillis = waitMillis;
+        this.tripleSize = tripleSize;
+    }
+
+    /**
+     * Publish the state of the budget as metrics
+     */
+    @PostConstruct
+    public void registerMetrics() {
+        register(name(TransformMemoryBudget.class, "reserved"), this::reserved);
+        register(name(TransformMemoryBudget.class, "reservations"), this::reservations);
+        register(name(TransformMemoryBudget.class, "available"), this::available);
+    }
+
+    private static void register(final String name, final Gauge<?> gauge) {
+        registry.remove(name);
+        registry.register(name, gauge);
+    }
+
+    /**
+     * @return the memory, in bytes, currently reserved by transforms
+     */
+    public synchronized long reserved() {
+        return reserved;
+    }
+
+    /**
+     * @return the number of transforms currently holding a reservation
+     */
+    public synchronized int reservations() {
+        return reservations;
+    }
+
+    /**
+     * @return the memory, in bytes, that transforms may hold at once at present
+     */
+    public long available() {
+        final long retained = retainedHeap();
+        if (retained < 0) {
+            return transformLimit();
+        }
+        final long heap = (long) (Runtime.getRuntime().maxMemory() * HEAP_SHARE);
+        return max(0, min(transformLimit(), heap - max(0, retained - reserved())));
+    }
+
+    /**
+     * Set aside the graph cache's share of the budget, which transforms may no longer reserve
+     *
+     * @param triples the most triples the cache is configured to hold
+     * @return the most triples the cache may hold within its share
+     */
+    public synchronized long reserveCache(final long triples) {
+        if (tripleSize == 0) {
+            return triples;
+        }
+        final long share = (long) (limit * CACHE_SHARE) / tripleSize;
+        final long granted = min(triples, share);
+        if (granted < triples) {
+            LOGGER.info("The graph cache holds at most {} triples within its share of the transform memory budget",
+                    granted);
+        }
+        cached = granted * tripleSize;
+        return granted;
+    }
+
+    /**
+     * @return the memory, in bytes, that transforms may hold at once, less the graph cache's share
+     */
+    private synchronized long transformLimit() {
+        return limit - cached;
+    }
+
+    /**
+     * @return the heap retained after the last garbage collection, or -1 if the JVM doesn't say
+     */
+    private static long retainedHeap() {
+        long retained = -1;
+        for (final MemoryPoolMXBean pool : getMemoryPoolMXBeans()) {
+            final MemoryUsage usage = pool.getType() == HEAP ? pool.getCollectionUsage() : null;
+            if (usage != null) {
+                retained = max(retained, 0) + usage.getUsed();
+            }
+        }
+        return retained;
+    }
+
+    /**
+     * Open a reservation for a transform, initially empty. It must be closed when the transform's output has been
+     * written.
+     *
+     * @return the reservation
+     */
+    public Reservation reserve() {
+        synchronized (this) {
+            reservations++;
+        }
+        return new Reservation();
+    }
+
+    /**
+     * Charge the triples of a stream to a reservation as they are consumed. Triples past the spill threshold are
+     * not charged, as they will be held on disk rather than on the heap.
+     *
+     * @param reservation the reservation
+     * @param stream the triples
+     * @return the same triples
+     */
+    public RdfStream track(final Reservation reservation, final RdfStream stream) {
+        if (tripleSize == 0) {
+            return stream;
+        }
+        final long threshold = spillThreshold();
+        final AtomicLong count = new AtomicLong();
+        return new DefaultRdfStream(stream.topic(), stream.peek(t -> {
+            if (count.incrementAndGet() <= threshold) {
+                reservation.grow(tripleSize);
+            }
+        }));
+    }
+
+    private synchronized void acquire(final long bytes, final long held) {
+        if (held + bytes > transformLimit()) {
+            refused.inc();
+            throw new TransformMemoryException("This transform needs more than the " + transformLimit() / MEGABYTE +
+                    "MB of memory allowed for transforms");
+        }
+        final long deadline = System.nanoTime() + MILLISECONDS.toNanos(waitMillis);
+        while (reserved + bytes > available()) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                refused.inc();
+                LOGGER.warn("Transform memory budget exhausted with {} bytes reserved", reserved);
+                throw new TransformMemoryException(
+                        "Too much memory is in use by other transforms; please retry later");
+            }
+            try {
+                // wake now and then even if no reservation is returned, as a collection may have freed the heap
+                NANOSECONDS.timedWait(this, min(remaining, RECHECK));
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TransformMemoryException("Interrupted while waiting for transform memory");
+            }
+        }
+        reserved += bytes;
+    }
+
+    private synchronized void release(final long bytes) {
+        reservations--;
+        giveBack(bytes);
+    }
+
+    private synchronized void giveBack(final long bytes) {
+        reserved -= bytes;
+        notifyAll();
+    }
+
+    /**
+     * The memory held by one transform
+     */
+    public class Reservation implements AutoCloseable {
+
+        private long granted = 0;
+
+        private long used = 0;
+
+        private boolean closed = false;
+
+        /**
+         * Charge memory to this reservation, waiting for the budget if need be. The wait is made without holding
+         * this reservation, so that it may be closed meanwhile, and nothing is charged unless the budget grants it.
+         *
+         * @param bytes the estimated size of what the transform is about to hold
+         */
+        public void grow(final long bytes) {
+            final long chunk;
+            final long held;
+            synchronized (this) {
+                if (used + bytes <= granted) {
+                    used += bytes;
+                    return;
+                }
+                chunk = max(CHUNK, used + bytes - granted);
+                held = granted;
+            }
+            acquire(chunk, held);
+            synchronized (this) {
+                if (closed) {
+                    // closed while waiting, e.g. on cancellation: the memory goes straight back
+                    giveBack(chunk);
+                    return;
+                }
+                granted += chunk;
+                used += bytes;
+            }
+        }
+
+        /**
+         * @return the memory, in bytes, charged to this reservation
+         */
+        public synchronized long used() {
+            return used;
+        }
+
+        /**
+         * Return this reservation's memory to the budget
+         */
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                release(granted);
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.http;
+
+import static java.lang.Integer.getInteger;
+import static javax.ws.rs.core.HttpHeaders.RETRY_AFTER;
+import static javax.ws.rs.core.Response.status;
+import static javax.ws.rs.core.Response.Status.SERVICE_UNAVAILABLE;
+import static org.fcrepo.transform.http.TransformScheduler.RETRY_AFTER_PROPERTY;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Provider;
+
+import org.fcrepo.transform.TransformMemoryException;
+
+/**
+ * Handle TransformMemoryExceptions
+ *
+ * @author agent
+ */
+@Provider
+public class TransformMemoryExceptionMapper implements ExceptionMapper<TransformMemoryException> {
+
+    @Override
+    public Response toResponse(final TransformMemoryException e) {
+        final String msg = e.getMessage();
+        return status(SERVICE_UNAVAILABLE).header(RETRY_AFTER, getInteger(RETRY_AFTER_PROPERTY, 5)).entity(msg).build();
+    }
+
+}
@@ -0,0 +1,398 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.http;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static java.lang.Boolean.FALSE;
+import static java.lang.Boolean.TRUE;
+import static java.lang.Boolean.getBoolean;
+import static java.lang.Integer.getInteger;
+import static java.lang.Long.getLong;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.stream.Collectors.toList;
+import static org.fcrepo.transform.http.RepositoryIndex.SYSTEM_PATH;
+import static org.fcrepo.transform.http.RepositoryIndex.resourcePath;
+import static org.fcrepo.transform.transformations.LDPathTransform.CONFIGURATION_FOLDER;
+import static org.fcrepo.transform.transformations.LDPathTransform.getResourceTransform;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.stream.Stream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.ws.rs.core.UriBuilder;
+
+import org.fcrepo.http.api.FedoraLdp;
+import org.fcrepo.http.commons.api.rdf.HttpResourceConverter;
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.fcrepo.kernel.api.identifiers.IdentifierConverter;
+import org.fcrepo.kernel.api.models.FedoraResource;
+import org.fcrepo.kernel.api.models.Tombstone;
+import org.fcrepo.kernel.api.observer.FedoraEvent;
+import org.fcrepo.kernel.api.services.NodeService;
+import org.fcrepo.metrics.RegistryService;
+import org.fcrepo.transform.TransformNotFoundException;
+import org.fcrepo.transform.TransformSink;
+import org.fcrepo.transform.http.OutputDeltas.Delta;
+import org.fcrepo.transform.transformations.LDPathTransform;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.hp.hpl.jena.rdf.model.Resource;
+
+/**
+ * Re-runs stored LDPath programs for resources as they change, and sends their output to a {@link TransformSink},
+ * so that indexers need neither poll the repository nor request transforms themselves.
+ *
+ * The pipeline follows the repository's change events. Events are debounced per resource: a resource is transformed
+ * once its events have stopped for the debounce interval, so a burst of edits to one resource costs one run of each
+ * program. A resource is never transformed by two workers at once; an event arriving while it is being transformed
+ * schedules one more run.
+ *
+ * The sink is the Spring bean implementing {@link TransformSink}, if there is one, and otherwise an
+ * {@link NdjsonSpool}.
+ *
+ * @author agent
+ */
+@Component
+public class TransformPipeline {
+
+    private static final Logger LOGGER = getLogger(TransformPipeline.class);
+
+    private static final MetricRegistry registry = RegistryService.getInstance().getMetrics();
+
+    /**
+     * System property for the keys of the stored programs to run, separated by commas; the pipeline is disabled
+     * unless it is set
+     */
+    public static final String PROGRAMS_PROPERTY = "fcrepo.transform.pipeline.programs";
+
+    /**
+     * System property for the milliseconds a resource's events must stop for before it is transformed
+     */
+    public static final String DEBOUNCE_PROPERTY = "fcrepo.transform.pipeline.debounce";
+
+    /**
+     * System property for the number of worker threads running programs
+     */
+    public static final String THREADS_PROPERTY = "fcrepo.transform.pipeline.threads";
+
+    /**
+     * System property for the file the default sink appends to, required unless a sink is configured
+     */
+    public static final String SPOOL_PROPERTY = "fcrepo.transform.pipeline.spool";
+
+    /**
+     * System property which, when true, sends only the fields of each output that changed since the previous one
+     */
+    public static final String DELTA_PROPERTY = "fcrepo.transform.pipeline.delta";
+
+    /**
+     * System property for the directory remembering previous outputs, required when sending only changed fields
+     */
+    public static final String HASHES_PROPERTY = "fcrepo.transform.pipeline.hashes";
+
+    /**
+     * System property for the base URL of the repository's resources, from which the output's ids are built
+     */
+    public static final String BASE_URL_PROPERTY = "fcrepo.transform.pipeline.baseUrl";
+
+    @Inject
+    private SessionFactory sessions;
+
+    @Inject
+    private NodeService nodeService;
+
+    @Autowired(required = false)
+    private EventBus eventBus;
+
+    @Autowired(required = false)
+    private TransformSink sink;
+
+    private final List<String> programs;
+
+    private OutputDeltas deltas;
+
+    private final long debounce;
+
+    private final String baseUrl = System.getProperty(BASE_URL_PROPERTY, "http://localhost:8080/rest");
+
+    private final ScheduledExecutorService timer;
+
+    private final ExecutorService workers;
+
+    private final ConcurrentMap<String, ScheduledFuture<?>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * The resources being transformed, each with whether it changed again meanwhile
+     */
+    private final ConcurrentMap<String, Boolean> running = new ConcurrentHashMap<>();
+
+    private final Counter coalesced = registry.counter(name(TransformPipeline.class, "coalesced"));
+
+    private final Counter runs = registry.counter(name(TransformPipeline.class, "runs"));
+
+    private final Counter unchanged = registry.counter(name(TransformPipeline.class, "unchanged"));
+
+    private final Counter failures = registry.counter(name(TransformPipeline.class, "failures"));
+
+    /**
+     * Create a pipeline configured from system properties
+     */
+    public TransformPipeline() {
+        this(Stream.of(System.getProperty(PROGRAMS_PROPERTY, "").split(",")).map(String::trim)
+                .filter(key -> !key.isEmpty()).distinct().collect(toList()),
+                getLong(DEBOUNCE_PROPERTY, 1000), getInteger(THREADS_PROPERTY, 2));
+    }
+
+    /**
+     * @param programs the keys of the stored programs to run
+     * @param debounce the milliseconds a resource's events must stop for before it is transformed
+     * @param threads the number of worker threads
+     */
+    public TransformPipeline(final List<String> programs, final long debounce, final int threads) {
+        this.programs = programs;
+        this.debounce = debounce;
+        final ScheduledThreadPoolExecutor scheduled = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactoryBuilder().setNameFormat("fcrepo-transform-pipeline-timer").setDaemon(true).build());
+        scheduled.setRemoveOnCancelPolicy(true);
+        this.timer = scheduled;
+        this.workers = newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("fcrepo-transform-pipeline-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Start following the repository's changes, if any programs are configured
+     */
+    @PostConstruct
+    public void start() {
+        if (programs.isEmpty()) {
+            LOGGER.debug("No {} set; the transform pipeline is disabled", PROGRAMS_PROPERTY);
+            return;
+        }
+        // the programs run with the internal session, so their output is kept nowhere other accounts may look
+        if (sink == null) {
+            sink = new NdjsonSpool(Paths.get(required(SPOOL_PROPERTY)));
+        }
+        if (getBoolean(DELTA_PROPERTY)) {
+            deltas = new OutputDeltas(Paths.get(required(HASHES_PROPERTY)));
+        }
+        LOGGER.info("Running {} for changed resources into {}{}", programs, sink,
+                deltas == null ? "" : ", sending changed fields only");
+        final String queued = name(TransformPipeline.class, "pending");
+        registry.remove(queued);
+        registry.register(queued, (Gauge<Integer>) pending::size);
+        if (eventBus == null) {
+            LOGGER.warn("No event bus is configured; the transform pipeline will not run");
+        } else {
+            eventBus.register(this);
+        }
+    }
+
+    private static String required(final String property) {
+        final String value = System.getProperty(property);
+        if (value == null) {
+            throw new IllegalStateException(property + " must be set when " + PROGRAMS_PROPERTY + " is");
+        }
+        return value;
+    }
+
+    /**
+     * Stop following the repository's changes. Resources still waiting out their debounce interval are not
+     * transformed.
+     */
+    @PreDestroy
+    public void stop() {
+        if (eventBus != null && !programs.isEmpty()) {
+            eventBus.unregister(this);
+        }
+        timer.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    /**
+     * Transform the resource a repository event concerns, once its events have stopped
+     *
+     * @param event the event
+     */
+    @Subscribe
+    public void onEvent(final FedoraEvent event) {
+        final String path = resourcePath(event.getPath());
+        if (!path.startsWith(SYSTEM_PATH)) {
+            changed(path);
+        }
+    }
+
+    /**
+     * Transform a resource once the debounce interval has passed without it changing again
+     *
+     * @param path the path of the resource
+     */
+    public void changed(final String path) {
+        if (timer.isShutdown()) {
+            return;
+        }
+        pending.compute(path, (key, previous) -> {
+            if (previous != null && previous.cancel(false)) {
+                coalesced.inc();
+            }
+            return schedule(key);
+        });
+    }
+
+    /**
+     * @param path the path of the resource
+     * @return the future of the resource's dispatch once the debounce interval has passed, which the dispatch is
+     *         given so it can tell whether it has been superseded
+     */
+    private ScheduledFuture<?> schedule(final String path) {
+        final CompletableFuture<ScheduledFuture<?>> self = new CompletableFuture<>();
+        final ScheduledFuture<?> future = timer.schedule(() -> dispatch(path, self.join()), debounce, MILLISECONDS);
+        self.complete(future);
+        return future;
+    }
+
+    /**
+     * @return the number of resources waiting out their debounce interval
+     */
+    public int pending() {
+        return pending.size();
+    }
+
+    private void dispatch(final String path, final ScheduledFuture<?> future) {
+        if (!pending.remove(path, future)) {
+            // the resource changed again once this was too late to cancel, and its next dispatch is scheduled
+            return;
+        }
+        if (workers.isShutdown()) {
+            return;
+        }
+        workers.execute(() -> {
+            if (running.merge(path, FALSE, (idle, dirty) -> TRUE)) {
+                // the resource changed while it was being transformed, which is run again once it is done
+                return;
+            }
+            try {
+                transform(path);
+            } finally {
+                if (!running.remove(path, FALSE)) {
+                    running.remove(path);
+                    changed(path);
+                }
+            }
+        });
+    }
+
+    /**
+     * Run the configured programs for a resource and send their output to the sink, or tell the sink the resource
+     * is gone
+     *
+     * @param path the path of the resource
+     */
+    void transform(final String path) {
+        final Session session = sessions.getInternalSession();
+        try {
+            final IdentifierConverter<Resource, FedoraResource> translator =
+                    new HttpResourceConverter(session, UriBuilder.fromUri(baseUrl).path(FedoraLdp.class));
+            final String uri = translator.toDomain(path).getURI();
+            final FedoraResource resource = nodeService.exists(session, path) ? nodeService.find(session, path) : null;
+            if (resource == null || resource instanceof Tombstone) {
+                sink.delete(uri);
+                if (deltas != null) {
+                    deltas.forget(uri, programs);
+                }
+                return;
+            }
+            for (final String program : programs) {
+                try {
+                    run(resource, session, translator, program, uri);
+                } catch (final RepositoryException | IOException | RuntimeException e) {
+                    failures.inc();
+                    LOGGER.warn("Could not run the {} program for {}", program, path, e);
+                }
+            }
+            runs.inc();
+        } catch (final IOException | RuntimeException e) {
+            failures.inc();
+            LOGGER.warn("Could not transform {}", path, e);
+        } finally {
+            session.logout();
+        }
+    }
+
+    /**
+     * Run one of the configured programs for a resource and send its output to the sink
+     *
+     * @param resource the resource
+     * @param session the internal session
+     * @param translator the converter between the repository's paths and URIs
+     * @param program the program
+     * @param uri the URI of the resource
+     */
+    private void run(final FedoraResource resource, final Session session,
+            final IdentifierConverter<Resource, FedoraResource> translator, final String program, final String uri)
+            throws RepositoryException, IOException {
+        if (!nodeService.exists(session, CONFIGURATION_FOLDER + program)) {
+            LOGGER.debug("No {} program is stored", program);
+            return;
+        }
+        final LDPathTransform transform;
+        try {
+            transform = getResourceTransform(resource, session, nodeService, program);
+        } catch (final TransformNotFoundException e) {
+            LOGGER.debug("No {} program for {}", program, resource.getPath());
+            return;
+        }
+        final List<Map<String, Collection<Object>>> output =
+                transform.apply(resource.getTriples(translator, transform.fetchPlan().contexts()));
+        if (deltas == null) {
+            sink.write(uri, program, output);
+        } else {
+            final Delta delta = deltas.delta(uri, program, output.get(0));
+            if (delta.fields().isEmpty()) {
+                unchanged.inc();
+            } else {
+                sink.update(uri, program, delta.fields());
+                deltas.commit(uri, program, delta.hashes());
+            }
+        }
+    }
+}
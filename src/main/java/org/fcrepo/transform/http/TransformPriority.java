@@ -0,0 +1,81 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.http;
+
+import static java.util.Locale.ENGLISH;
+
+/**
+ * Priority classes for transform work
+ *
+ * @author agent
+ */
+public enum TransformPriority {
+
+    /**
+     * Transforms a user is waiting on, e.g. to render a single resource in a UI
+     */
+    INTERACTIVE(4),
+
+    /**
+     * Transforms issued in bulk, e.g. by a reindexing job
+     */
+    BULK(1);
+
+    /**
+     * Request header with which clients may choose a priority class
+     */
+    public static final String PRIORITY_HEADER = "X-Transform-Priority";
+
+    private final int defaultWeight;
+
+    TransformPriority(final int defaultWeight) {
+        this.defaultWeight = defaultWeight;
+    }
+
+    /**
+     * @return the share of worker capacity this class gets, relative to the other classes, unless configured
+     */
+    public int defaultWeight() {
+        return defaultWeight;
+    }
+
+    /**
+     * @return the name of this class as used in headers, system properties and metrics
+     */
+    public String key() {
+        return name().toLowerCase(ENGLISH);
+    }
+
+    /**
+     * Choose the priority class requested by a client, or the endpoint's own default.
+     *
+     * @param header the value of the priority header, if any
+     * @param endpointDefault the class to use when the header is absent or unrecognized
+     * @return the priority class
+     */
+    public static TransformPriority fromHeader(final String header, final TransformPriority endpointDefault) {
+        if (header != null) {
+            for (final TransformPriority priority : values()) {
+                if (priority.key().equalsIgnoreCase(header.trim())) {
+                    return priority;
+                }
+            }
+        }
+        return endpointDefault;
+    }
+}
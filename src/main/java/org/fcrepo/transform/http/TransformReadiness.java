@@ -0,0 +1,64 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.http;
+
+import static java.lang.Integer.getInteger;
+import static javax.ws.rs.core.HttpHeaders.RETRY_AFTER;
+import static javax.ws.rs.core.MediaType.TEXT_PLAIN;
+import static javax.ws.rs.core.Response.ok;
+import static javax.ws.rs.core.Response.status;
+import static javax.ws.rs.core.Response.Status.SERVICE_UNAVAILABLE;
+import static org.fcrepo.transform.http.TransformScheduler.RETRY_AFTER_PROPERTY;
+
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+
+import org.jvnet.hk2.annotations.Optional;
+import org.springframework.context.annotation.Scope;
+
+/**
+ * Endpoint reporting whether transforms are ready to be served at full speed, for load balancers to check during
+ * rolling deploys: {@code 200 OK} once the startup warm-up has finished, and {@code 503 Service Unavailable} until
+ * then.
+ *
+ * @author agent
+ */
+@Scope("request")
+@Path("/fcr:transform-ready")
+public class TransformReadiness {
+
+    @Inject
+    @Optional
+    private TransformWarmup transformWarmup;
+
+    /**
+     * @return whether transforms are ready
+     */
+    @GET
+    @Produces(TEXT_PLAIN)
+    public Response ready() {
+        if (transformWarmup == null || transformWarmup.ready()) {
+            return ok("ready").build();
+        }
+        return status(SERVICE_UNAVAILABLE).entity("warming up").header(RETRY_AFTER,
+                getInteger(RETRY_AFTER_PROPERTY, 5)).build();
+    }
+}
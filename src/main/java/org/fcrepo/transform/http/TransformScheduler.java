@@ -0,0 +1,322 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.http;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static java.lang.Integer.getInteger;
+import static java.lang.Math.max;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static javax.ws.rs.core.HttpHeaders.RETRY_AFTER;
+import static javax.ws.rs.core.Response.status;
+import static javax.ws.rs.core.Response.Status.SERVICE_UNAVAILABLE;
+import static org.fcrepo.transform.http.TransformPriority.BULK;
+import static org.fcrepo.transform.http.TransformPriority.INTERACTIVE;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+import javax.annotation.PreDestroy;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.Response;
+
+import org.fcrepo.metrics.RegistryService;
+import org.slf4j.Logger;
+import org.springframework.stereotype.Component;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Schedules transform work onto a bounded pool of worker threads, kept apart from the servlet container's threads
+ * so that a burst of expensive transforms cannot starve the rest of the repository's endpoints.
+ *
+ * Work is queued per {@link TransformPriority} class. Each class has its own queue, its own concurrency limit and
+ * a weight; free workers go to the waiting class with the least weighted service so far (weighted fair queuing),
+ * so bulk work cannot crowd out interactive work, nor the reverse. When a class's queue is full, work is rejected
+ * at once with a 503 Service Unavailable and a Retry-After header instead of waiting for capacity.
+ *
+ * @author agent
+ */
+@Component
+public class TransformScheduler {
+
+    private static final Logger LOGGER = getLogger(TransformScheduler.class);
+
+    private static final MetricRegistry registry = RegistryService.getInstance().getMetrics();
+
+    /**
+     * System property for the total number of worker threads
+     */
+    public static final String THREADS_PROPERTY = "fcrepo.transform.threads";
+
+    /**
+     * System property for the Retry-After value, in seconds, sent with rejected work
+     */
+    public static final String RETRY_AFTER_PROPERTY = "fcrepo.transform.retryAfter";
+
+    /**
+     * Prefix of the per-class system properties, e.g. fcrepo.transform.bulk.concurrency
+     */
+    public static final String PRIORITY_PROPERTY_PREFIX = "fcrepo.transform.";
+
+    private final Map<TransformPriority, Lane> lanes = new EnumMap<>(TransformPriority.class);
+
+    private final ExecutorService workers;
+
+    private final int threads;
+
+    private final int retryAfter;
+
+    private final Counter rejected = registry.counter(name(TransformScheduler.class, "rejected"));
+
+    private int running = 0;
+
+    private double virtualTime = 0;
+
+    /**
+     * Create a scheduler configured from system properties
+     */
+    public TransformScheduler() {
+        this(getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors()),
+                getInteger(RETRY_AFTER_PROPERTY, 5));
+        configure(INTERACTIVE, this.threads, 100);
+        configure(BULK, max(1, this.threads / 2), 100);
+    }
+
+    /**
+     * Create a scheduler in which every priority class may use every worker, with a default queue length.
+     * Classes may be reconfigured with {@link #configure(TransformPriority, int, int, int)}.
+     *
+     * @param threads the total number of worker threads
+     * @param retryAfter the Retry-After value, in seconds, sent with rejected work
+     */
+    public TransformScheduler(final int threads, final int retryAfter) {
+        this.threads = threads;
+        this.retryAfter = retryAfter;
+        this.workers = newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("fcrepo-transform-%d").setDaemon(true).build());
+        for (final TransformPriority priority : TransformPriority.values()) {
+            configure(priority, priority.defaultWeight(), threads, 100);
+        }
+    }
+
+    private void configure(final TransformPriority priority, final int concurrency, final int queueSize) {
+        final String prefix = PRIORITY_PROPERTY_PREFIX + priority.key() + ".";
+        configure(priority,
+                getInteger(prefix + "weight", priority.defaultWeight()),
+                getInteger(prefix + "concurrency", concurrency),
+                getInteger(prefix + "queue", queueSize));
+    }
+
+    /**
+     * Configure a priority class
+     *
+     * @param priority the priority class
+     * @param weight the class's share of the workers, relative to the other classes
+     * @param concurrency the most workers the class may occupy at once
+     * @param queueSize the number of transforms of this class that may wait for a worker
+     */
+    public synchronized void configure(final TransformPriority priority, final int weight, final int concurrency,
+            final int queueSize) {
+        final Lane lane = lanes.computeIfAbsent(priority, p -> new Lane());
+        lane.weight = max(1, weight);
+        lane.concurrency = max(1, concurrency);
+        lane.queueSize = queueSize;
+        register(name(TransformScheduler.class, priority.key(), "queued"), () -> queued(priority));
+        register(name(TransformScheduler.class, priority.key(), "running"), () -> running(priority));
+    }
+
+    private static void register(final String name, final Gauge<Integer> gauge) {
+        registry.remove(name);
+        registry.register(name, gauge);
+    }
+
+    /**
+     * @param priority a priority class
+     * @return the number of transforms of this class waiting for a worker
+     */
+    public synchronized int queued(final TransformPriority priority) {
+        return lanes.get(priority).queue.size();
+    }
+
+    /**
+     * @param priority a priority class
+     * @return the number of transforms of this class in progress
+     */
+    public synchronized int running(final TransformPriority priority) {
+        return lanes.get(priority).running;
+    }
+
+    /**
+     * Schedule some transform work and resume the suspended response with its result, or with the exception it
+     * threw.
+     *
+     * @param asyncResponse the suspended response
+     * @param priority the priority class of the work
+     * @param work the transform work, producing the response
+     */
+    public void submit(final AsyncResponse asyncResponse, final TransformPriority priority,
+            final Callable<Response> work) {
+        if (!schedule(priority, () -> run(asyncResponse, work))) {
+            asyncResponse.resume(unavailable());
+        }
+    }
+
+    /**
+     * Schedule some transform work and complete a future with its result, or with the exception it threw. If the
+     * work is rejected, the future fails with a {@link WebApplicationException} carrying the 503 response.
+     *
+     * @param priority the priority class of the work
+     * @param result the future to complete
+     * @param work the transform work
+     * @param <T> the type of the work's result
+     */
+    public <T> void submit(final TransformPriority priority, final CompletableFuture<T> result,
+            final Callable<T> work) {
+        if (!schedule(priority, () -> run(result, work))) {
+            result.completeExceptionally(new WebApplicationException(unavailable()));
+        }
+    }
+
+    private boolean schedule(final TransformPriority priority, final Runnable task) {
+        synchronized (this) {
+            final Lane lane = lanes.get(priority);
+            if (lane.queue.size() < lane.queueSize) {
+                if (lane.queue.isEmpty() && lane.running == 0) {
+                    // a class that has been idle doesn't get to bank credit for its idle time
+                    lane.virtualTime = max(lane.virtualTime, virtualTime);
+                }
+                lane.queue.add(task);
+                dispatch();
+                return true;
+            }
+        }
+        rejected.inc();
+        LOGGER.warn("Transform scheduler queue for {} work is full; rejecting request", priority.key());
+        return false;
+    }
+
+    /**
+     * Hand queued work to free workers, choosing among the classes that have work and spare concurrency the one
+     * with the least weighted service so far.
+     */
+    private synchronized void dispatch() {
+        while (running < threads) {
+            Lane next = null;
+            for (final Lane lane : lanes.values()) {
+                if (!lane.queue.isEmpty() && lane.running < lane.concurrency &&
+                        (next == null || lane.virtualTime < next.virtualTime)) {
+                    next = lane;
+                }
+            }
+            if (next == null) {
+                return;
+            }
+            final Lane lane = next;
+            final Runnable task = lane.queue.poll();
+            lane.running++;
+            running++;
+            virtualTime = lane.virtualTime;
+            lane.virtualTime += 1.0 / lane.weight;
+            workers.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    finished(lane);
+                }
+            });
+        }
+    }
+
+    private synchronized void finished(final Lane lane) {
+        lane.running--;
+        running--;
+        dispatch();
+    }
+
+    /**
+     * Run some transform work on the calling thread and resume the suspended response with its result.
+     *
+     * @param asyncResponse the suspended response
+     * @param work the transform work, producing the response
+     */
+    public static void run(final AsyncResponse asyncResponse, final Callable<Response> work) {
+        try {
+            asyncResponse.resume(work.call());
+        } catch (final Exception e) {
+            asyncResponse.resume(e);
+        }
+    }
+
+    /**
+     * Run some transform work on the calling thread and complete a future with its result.
+     *
+     * @param result the future to complete
+     * @param work the transform work
+     * @param <T> the type of the work's result
+     */
+    public static <T> void run(final CompletableFuture<T> result, final Callable<T> work) {
+        try {
+            result.complete(work.call());
+        } catch (final Exception e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    private Response unavailable() {
+        return status(SERVICE_UNAVAILABLE)
+                .header(RETRY_AFTER, retryAfter)
+                .entity("Too many transforms are in progress; please retry later")
+                .build();
+    }
+
+    /**
+     * Stop the worker threads
+     */
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    /**
+     * The queue and accounting for one priority class
+     */
+    private static class Lane {
+
+        private final Queue<Runnable> queue = new ArrayDeque<>();
+
+        private int weight;
+
+        private int concurrency;
+
+        private int queueSize;
+
+        private int running = 0;
+
+        private double virtualTime = 0;
+    }
+}
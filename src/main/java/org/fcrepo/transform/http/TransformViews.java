@@ -0,0 +1,300 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.http;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.google.common.hash.Hashing.sha1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.stream.Collectors.toSet;
+import static org.fcrepo.transform.http.RepositoryIndex.SYSTEM_PATH;
+import static org.fcrepo.transform.transformations.LDPathTransform.CONFIGURATION_FOLDER;
+import static org.fcrepo.transform.transformations.LDPathTransform.getResourceProgram;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.fcrepo.kernel.api.models.FedoraBinary;
+import org.fcrepo.kernel.api.models.FedoraResource;
+import org.fcrepo.kernel.api.services.NodeService;
+import org.fcrepo.metrics.RegistryService;
+import org.fcrepo.transform.TransformCache;
+import org.slf4j.Logger;
+import org.springframework.stereotype.Component;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Materialized outputs of stored LDPath programs, kept in a local directory so that a GET for a hot resource is a
+ * single file read instead of a transform.
+ *
+ * Only configured programs are materialized, named by their path under the LDPath configuration, e.g.
+ * {@code default/fedora:Container}. A view is created the first time its program is requested for a resource, and
+ * stores the state it was computed from: the ETags of the resource and of the program. It is served only while both
+ * are unchanged, so a view is never stale; views of resources that change are dropped on the changes of any node of
+ * the cluster, and views whose program changed are recomputed on their next read.
+ *
+ * A view holds what the user who requested it may see, and is served to that user only, for the URI it was requested
+ * under. Views are computed from the resource's own triples, without following links into other resources, as their
+ * state covers only the resource and the program.
+ *
+ * @author agent
+ */
+@Component
+public class TransformViews implements TransformCache {
+
+    private static final Logger LOGGER = getLogger(TransformViews.class);
+
+    private static final MetricRegistry registry = RegistryService.getInstance().getMetrics();
+
+    /**
+     * System property for the programs to materialize, by their paths under the LDPath configuration, separated by
+     * commas
+     */
+    public static final String PROGRAMS_PROPERTY = "fcrepo.transform.views";
+
+    /**
+     * System property for the directory holding the views; views are disabled unless it is set
+     */
+    public static final String DIRECTORY_PROPERTY = "fcrepo.transform.views.directory";
+
+    @Inject
+    private NodeService nodeService;
+
+    private final Set<String> programs;
+
+    private final Set<String> keys;
+
+    private final Path directory;
+
+    private final Counter hits = registry.counter(name(TransformViews.class, "hits"));
+
+    private final Counter misses = registry.counter(name(TransformViews.class, "misses"));
+
+    private final Counter dropped = registry.counter(name(TransformViews.class, "dropped"));
+
+    /**
+     * Create the views configured from system properties
+     */
+    public TransformViews() {
+        this(Arrays.asList(System.getProperty(PROGRAMS_PROPERTY, "").split(",")),
+                System.getProperty(DIRECTORY_PROPERTY) == null ? null : Paths.get(System.getProperty(
+                        DIRECTORY_PROPERTY)));
+    }
+
+    /**
+     * @param programs the programs to materialize, by their paths under the LDPath configuration
+     * @param directory the directory holding the views
+     */
+    public TransformViews(final Collection<String> programs, final Path directory) {
+        this.programs = programs.stream().map(String::trim).filter(program -> !program.isEmpty()).collect(toSet());
+        this.keys = this.programs.stream().map(program -> program.split("/")[0]).collect(toSet());
+        this.directory = directory;
+    }
+
+    /**
+     * Report the materialized programs
+     */
+    @PostConstruct
+    public void start() {
+        if (!enabled()) {
+            LOGGER.debug("No {} and {} set; materialized views are disabled", PROGRAMS_PROPERTY, DIRECTORY_PROPERTY);
+            return;
+        }
+        LOGGER.info("Materializing {} in {}", programs, directory);
+    }
+
+    /**
+     * @return whether any programs are materialized
+     */
+    public boolean enabled() {
+        return directory != null && !programs.isEmpty();
+    }
+
+    /**
+     * @param resource the resource
+     * @param session the session
+     * @param key the key of the stored program
+     * @return the program applying to the resource, if its output is materialized, or null
+     * @throws RepositoryException if repository exception occurred
+     */
+    public FedoraBinary program(final FedoraResource resource, final Session session, final String key)
+            throws RepositoryException {
+        if (!keys.contains(key)) {
+            return null;
+        }
+        final FedoraBinary program = getResourceProgram(resource, session, nodeService, key);
+        return programs.contains(program.getPath().substring(CONFIGURATION_FOLDER.length())) ? program : null;
+    }
+
+    /**
+     * @param resource the resource
+     * @param program the program applying to it
+     * @return the state a view of the program's output for the resource is computed from
+     */
+    public static String state(final FedoraResource resource, final FedoraBinary program) {
+        return resource.getEtagValue() + " " + program.getEtagValue();
+    }
+
+    /**
+     * @param path the path of the resource
+     * @param uri the URI the resource is requested under
+     * @param key the key of the stored program
+     * @param user the requesting user
+     * @param state the current state of the resource and program
+     * @return the materialized output, if there is one computed for that user and URI from that state, or null
+     */
+    public byte[] read(final String path, final String uri, final String key, final String user,
+            final String state) {
+        final View view = View.read(file(path, key, user));
+        if (view != null && view.state.equals(state) && view.uri.equals(uri)) {
+            hits.inc();
+            return view.output;
+        }
+        misses.inc();
+        return null;
+    }
+
+    /**
+     * Materialize a program's output
+     *
+     * @param path the path of the resource
+     * @param uri the URI of the resource, as named in the output
+     * @param key the key of the stored program
+     * @param user the user the output was computed for
+     * @param state the state the output was computed from
+     * @param output the output
+     */
+    public void write(final String path, final String uri, final String key, final String user, final String state,
+            final byte[] output) {
+        new View(state, uri, output).write(file(path, key, user));
+    }
+
+    /**
+     * Drop the views of a changed resource. They are computed afresh, as the user who reads them sees the resource,
+     * on their next read.
+     */
+    @Override
+    public void invalidate(final String path) {
+        if (!enabled() || path.startsWith(SYSTEM_PATH)) {
+            return;
+        }
+        final Path views = views(path);
+        try (final DirectoryStream<Path> files = Files.newDirectoryStream(views)) {
+            for (final Path file : files) {
+                View.delete(file);
+                dropped.inc();
+            }
+            Files.deleteIfExists(views);
+        } catch (final NoSuchFileException e) {
+            LOGGER.trace("No views of {}", path);
+        } catch (final IOException e) {
+            LOGGER.warn("Could not drop the views of {}", path, e);
+        }
+    }
+
+    /**
+     * @return the directory holding the views of a resource
+     */
+    private Path views(final String path) {
+        final String name = sha1().hashString(path, UTF_8).toString();
+        return directory.resolve(name.substring(0, 2)).resolve(name);
+    }
+
+    private Path file(final String path, final String key, final String user) {
+        return views(path).resolve(sha1().hashString(key + " " + user, UTF_8).toString());
+    }
+
+    /**
+     * A materialized output: a header line with the state it was computed from and the resource's URI, then the
+     * output itself
+     */
+    private static class View {
+
+        private final String state;
+
+        private final String uri;
+
+        private final byte[] output;
+
+        private View(final String state, final String uri, final byte[] output) {
+            this.state = state;
+            this.uri = uri;
+            this.output = output;
+        }
+
+        private static View read(final Path file) {
+            final byte[] bytes;
+            try {
+                bytes = Files.readAllBytes(file);
+            } catch (final NoSuchFileException e) {
+                return null;
+            } catch (final IOException e) {
+                LOGGER.warn("Could not read view {}", file, e);
+                return null;
+            }
+            int newline = 0;
+            while (newline < bytes.length && bytes[newline] != '\n') {
+                newline++;
+            }
+            final String[] header = new String(bytes, 0, newline, UTF_8).split("\t", 2);
+            if (header.length < 2 || newline == bytes.length) {
+                return null;
+            }
+            return new View(header[0], header[1], Arrays.copyOfRange(bytes, newline + 1, bytes.length));
+        }
+
+        private void write(final Path file) {
+            try {
+                OwnerOnlyFiles.createDirectories(file.getParent());
+                // written beside the view and moved over it, so that readers see the old view or the new one
+                final Path temporary = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+                final byte[] header = (state + "\t" + uri + "\n").getBytes(UTF_8);
+                final byte[] bytes = Arrays.copyOf(header, header.length + output.length);
+                System.arraycopy(output, 0, bytes, header.length, output.length);
+                Files.write(temporary, bytes);
+                Files.move(temporary, file, ATOMIC_MOVE, REPLACE_EXISTING);
+            } catch (final IOException e) {
+                LOGGER.warn("Could not write view {}", file, e);
+            }
+        }
+
+        private static void delete(final Path file) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (final IOException e) {
+                LOGGER.warn("Could not delete view {}", file, e);
+            }
+        }
+    }
+}
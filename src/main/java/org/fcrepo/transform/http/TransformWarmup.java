@@ -0,0 +1,262 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.http;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.hp.hpl.jena.graph.NodeFactory.createURI;
+import static com.hp.hpl.jena.rdf.model.ModelFactory.createDefaultModel;
+import static java.lang.Boolean.getBoolean;
+import static java.lang.Integer.getInteger;
+import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.Executors.newSingleThreadExecutor;
+import static javax.ws.rs.core.MediaType.valueOf;
+import static org.apache.jena.riot.WebContent.contentTypeResultsJSON;
+import static org.apache.jena.riot.WebContent.contentTypeSPARQLQuery;
+import static org.apache.jena.riot.WebContent.contentTypeTextCSV;
+import static org.apache.jena.riot.WebContent.contentTypeTextTSV;
+import static org.fcrepo.transform.TransformationFactory.compiled;
+import static org.fcrepo.transform.TransformationFactory.read;
+import static org.fcrepo.transform.transformations.LDPathTransform.APPLICATION_RDF_LDPATH;
+import static org.fcrepo.transform.transformations.LDPathTransform.CONFIGURATION_FOLDER;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.jcr.Session;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.fcrepo.kernel.api.exception.RepositoryRuntimeException;
+import org.fcrepo.kernel.api.models.FedoraBinary;
+import org.fcrepo.kernel.api.models.FedoraResource;
+import org.fcrepo.kernel.api.services.NodeService;
+import org.fcrepo.metrics.RegistryService;
+import org.fcrepo.transform.http.responses.JsonObjectProvider;
+import org.fcrepo.transform.http.responses.ResultSetStreamingOutput;
+import org.fcrepo.transform.transformations.LDPathTransform;
+import org.fcrepo.transform.transformations.SparqlQueryTransform;
+import org.slf4j.Logger;
+import org.springframework.stereotype.Component;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.rdf.model.Model;
+
+/**
+ * An optional startup phase that takes the cost of the first transforms off the first requests after a deploy or
+ * restart: it compiles every stored LDPath program, and the programs bundled with this module, then runs them and a
+ * SPARQL query against a small resource bundled with this module, writing their output as JSON and as SPARQL results, until class
+ * loading and the JIT have settled. The module reports itself ready once warm-up has finished, and at once if
+ * warm-up is disabled.
+ *
+ * Warm-up runs in the background, so the repository starts as usual; transforms requested meanwhile are served, only
+ * more slowly. A failure to warm up is logged, and the module reported ready regardless.
+ *
+ * @author agent
+ */
+@Component
+public class TransformWarmup {
+
+    private static final Logger LOGGER = getLogger(TransformWarmup.class);
+
+    private static final MetricRegistry registry = RegistryService.getInstance().getMetrics();
+
+    private static final ObjectMapper MAPPER = new JsonObjectProvider().getContext(TransformWarmup.class);
+
+    /**
+     * System property which, when true, warms up the module's transforms at startup
+     */
+    public static final String WARMUP_PROPERTY = "fcrepo.transform.warmup";
+
+    /**
+     * System property for the number of times each program runs while warming up
+     */
+    public static final String ITERATIONS_PROPERTY = "fcrepo.transform.warmup.iterations";
+
+    private static final String[] BUNDLED_PROGRAMS = {
+        "/ldpath/default/ldpath_program.txt", "/ldpath/deluxe/ldpath_program.txt" };
+
+    private static final String QUERY = "SELECT ?s ?p ?o WHERE { ?s ?p ?o }";
+
+    private static final String RESOURCE = "/warmup/resource.ttl";
+
+    private static final String SUBJECT = "http://localhost/fcrepo-transform/warmup/";
+
+    @Inject
+    private SessionFactory sessions;
+
+    @Inject
+    private NodeService nodeService;
+
+    private final boolean enabled;
+
+    private final int iterations;
+
+    private ExecutorService warmer;
+
+    private volatile boolean ready;
+
+    /**
+     * Create a warm-up configured from system properties
+     */
+    public TransformWarmup() {
+        this(getBoolean(WARMUP_PROPERTY), getInteger(ITERATIONS_PROPERTY, 200));
+    }
+
+    /**
+     * @param enabled whether to warm up at startup
+     * @param iterations the number of times each program runs
+     */
+    public TransformWarmup(final boolean enabled, final int iterations) {
+        this.enabled = enabled;
+        this.iterations = iterations;
+        this.ready = !enabled;
+    }
+
+    /**
+     * Start warming up in the background, if enabled
+     */
+    @PostConstruct
+    public void start() {
+        final String gauge = name(TransformWarmup.class, "ready");
+        registry.remove(gauge);
+        registry.register(gauge, (Gauge<Boolean>) this::ready);
+        if (!enabled) {
+            return;
+        }
+        warmer = newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("fcrepo-transform-warmup").setDaemon(true).build());
+        warmer.execute(() -> {
+            try {
+                warmUp();
+            } catch (final RuntimeException e) {
+                LOGGER.warn("Could not warm up transforms", e);
+            } finally {
+                ready = true;
+            }
+        });
+    }
+
+    /**
+     * Stop warming up
+     */
+    @PreDestroy
+    public void stop() {
+        if (warmer != null) {
+            warmer.shutdownNow();
+        }
+    }
+
+    /**
+     * @return whether warm-up has finished, or is disabled
+     */
+    public boolean ready() {
+        return ready;
+    }
+
+    /**
+     * Compile every program, and run each of them against the bundled resource
+     */
+    void warmUp() {
+        final long start = currentTimeMillis();
+        final List<LDPathTransform> programs = programs();
+        final SparqlQueryTransform query = compiled(contentTypeSPARQLQuery, QUERY, SparqlQueryTransform::new);
+        final Model model = resource();
+        final Node topic = createURI(SUBJECT);
+        final ResultSetStreamingOutput results = new ResultSetStreamingOutput();
+        final NullOutputStream sink = new NullOutputStream();
+        for (int i = 0; i < iterations && !Thread.currentThread().isInterrupted(); i++) {
+            for (final LDPathTransform program : programs) {
+                try {
+                    MAPPER.writeValue(sink, program.evaluate(model, topic));
+                } catch (final IOException e) {
+                    throw new RepositoryRuntimeException(e);
+                }
+            }
+            for (final String format : new String[] { contentTypeTextTSV, contentTypeTextCSV,
+                    contentTypeResultsJSON }) {
+                try (final QueryExecution execution = query.evaluate(model, topic)) {
+                    results.writeTo(execution.execSelect(), null, null, null, valueOf(format), null, sink);
+                } catch (final IOException e) {
+                    throw new RepositoryRuntimeException(e);
+                }
+            }
+        }
+        LOGGER.info("Warmed up {} LDPath programs and the SPARQL result writers in {} ms", programs.size(),
+                currentTimeMillis() - start);
+    }
+
+    /**
+     * @return the compiled programs stored in the repository, and those bundled with this module
+     */
+    private List<LDPathTransform> programs() {
+        final List<LDPathTransform> programs = new ArrayList<>();
+        for (final String bundled : BUNDLED_PROGRAMS) {
+            try (final InputStream program = getClass().getResourceAsStream(bundled)) {
+                programs.add(compiled(APPLICATION_RDF_LDPATH, read(program), LDPathTransform::new));
+            } catch (final IOException e) {
+                throw new RepositoryRuntimeException(e);
+            }
+        }
+        final String folder = CONFIGURATION_FOLDER.substring(0, CONFIGURATION_FOLDER.length() - 1);
+        final Session session = sessions.getInternalSession();
+        try {
+            if (nodeService.exists(session, folder)) {
+                nodeService.find(session, folder).getChildren().flatMap(FedoraResource::getChildren)
+                        .filter(FedoraBinary.class::isInstance).forEach(binary -> {
+                            try {
+                                programs.add(compiled(APPLICATION_RDF_LDPATH,
+                                        read(((FedoraBinary) binary).getContent()), LDPathTransform::new));
+                            } catch (final RepositoryRuntimeException e) {
+                                LOGGER.warn("Could not compile the program at {}", binary.getPath(), e);
+                            }
+                        });
+            }
+        } finally {
+            session.logout();
+        }
+        return programs;
+    }
+
+    /**
+     * @return the resource the programs run against, a container with typed server-managed and descriptive
+     *         properties, and some children
+     */
+    private Model resource() {
+        final Model model = createDefaultModel();
+        try (final InputStream resource = getClass().getResourceAsStream(RESOURCE)) {
+            RDFDataMgr.read(model, resource, SUBJECT, Lang.TURTLE);
+        } catch (final IOException e) {
+            throw new RepositoryRuntimeException(e);
+        }
+        return model;
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.http.responses;
+
+import static com.hp.hpl.jena.datatypes.xsd.XSDDatatype.XSDboolean;
+import static com.hp.hpl.jena.datatypes.xsd.XSDDatatype.XSDdecimal;
+import static com.hp.hpl.jena.datatypes.xsd.XSDDatatype.XSDdouble;
+import static com.hp.hpl.jena.datatypes.xsd.XSDDatatype.XSDinteger;
+import static java.util.Arrays.asList;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.jena.atlas.io.IndentedLineBuffer;
+import org.apache.jena.riot.out.NodeFormatter;
+import org.apache.jena.riot.out.NodeFormatterTTL;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.util.NodeToLabelMap;
+
+/**
+ * Writes SELECT results as CSV or TSV, byte for byte as Jena's own writers do, but encoding and escaping each value
+ * straight into a reusable buffer rather than building strings for every cell and row. The buffer is written to the
+ * stream whenever it fills, so that a response goes out in chunks of the buffer's size.
+ *
+ * Only TSV's blank nodes, and its numbers and booleans, which Turtle writes bare when their lexical forms allow, go
+ * through Jena's formatter.
+ *
+ * @author agent
+ */
+final class DelimitedResultsWriter {
+
+    // room for the longest sequence written without checking: an escaped character, or a surrogate pair
+    private static final int MARGIN = 4;
+
+    private static final int MINIMUM_CHUNK = 64;
+
+    // the datatypes whose literals Turtle may write bare
+    private static final Set<String> ABBREVIATED = new HashSet<>(asList(XSDinteger.getURI(), XSDdecimal.getURI(),
+            XSDdouble.getURI(), XSDboolean.getURI()));
+
+    private final OutputStream out;
+
+    private final byte[] buffer;
+
+    private int position;
+
+    private final boolean tsv;
+
+    private NodeToLabelMap labels;
+
+    private NodeFormatter formatter;
+
+    private IndentedLineBuffer scratch;
+
+    private DelimitedResultsWriter(final OutputStream out, final int chunk, final boolean tsv) {
+        this.out = out;
+        this.buffer = new byte[Math.max(chunk, MINIMUM_CHUNK)];
+        this.tsv = tsv;
+    }
+
+    /**
+     * @param out the stream to write to
+     * @param chunk the number of bytes to write to the stream at once
+     * @return a writer of comma-separated values
+     */
+    static DelimitedResultsWriter csv(final OutputStream out, final int chunk) {
+        return new DelimitedResultsWriter(out, chunk, false);
+    }
+
+    /**
+     * @param out the stream to write to
+     * @param chunk the number of bytes to write to the stream at once
+     * @return a writer of tab-separated values
+     */
+    static DelimitedResultsWriter tsv(final OutputStream out, final int chunk) {
+        return new DelimitedResultsWriter(out, chunk, true);
+    }
+
+    /**
+     * Write a header naming the variables, then a line for each row
+     * @param resultSet the results
+     * @throws IOException if the stream could not be written
+     */
+    void write(final ResultSet resultSet) throws IOException {
+        final List<String> names = resultSet.getResultVars();
+        final List<Var> vars = new ArrayList<>(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            if (i > 0) {
+                separator();
+            }
+            if (tsv) {
+                put('?');
+                chars(names.get(i));
+            } else {
+                csvValue(names.get(i));
+            }
+            vars.add(Var.alloc(names.get(i)));
+        }
+        endOfLine();
+        while (resultSet.hasNext()) {
+            final Binding binding = resultSet.nextBinding();
+            for (int i = 0; i < vars.size(); i++) {
+                if (i > 0) {
+                    separator();
+                }
+                final Node node = binding.get(vars.get(i));
+                if (node != null) {
+                    if (tsv) {
+                        tsvCell(node);
+                    } else {
+                        csvCell(node);
+                    }
+                }
+            }
+            endOfLine();
+        }
+        drain();
+        out.flush();
+    }
+
+    private void csvCell(final Node node) throws IOException {
+        if (node.isLiteral()) {
+            csvValue(node.getLiteralLexicalForm());
+        } else if (node.isURI()) {
+            csvValue(node.getURI());
+        } else if (node.isBlank()) {
+            if (labels == null) {
+                labels = new NodeToLabelMap();
+            }
+            csvValue(labels.asString(node));
+        } else {
+            csvValue("?");
+        }
+    }
+
+    /**
+     * Quote a value that is empty, or holds a quote, comma or line break, doubling its quotes
+     */
+    private void csvValue(final String value) throws IOException {
+        boolean quote = value.isEmpty();
+        for (int i = 0; i < value.length() && !quote; i++) {
+            final char c = value.charAt(i);
+            quote = c == '"' || c == ',' || c == '\r' || c == '\n';
+        }
+        if (!quote) {
+            chars(value);
+            return;
+        }
+        put('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"') {
+                put('"');
+            }
+            i = encode(value, i);
+        }
+        put('"');
+    }
+
+    private void tsvCell(final Node node) throws IOException {
+        if (node.isURI()) {
+            put('<');
+            chars(node.getURI());
+            put('>');
+        } else if (node.isLiteral() && !ABBREVIATED.contains(node.getLiteralDatatypeURI())) {
+            put('"');
+            final String lexical = node.getLiteralLexicalForm();
+            for (int i = 0; i < lexical.length(); i++) {
+                i = escaped(lexical, i);
+            }
+            put('"');
+            final String datatype = node.getLiteralDatatypeURI();
+            final String language = node.getLiteralLanguage();
+            if (datatype != null) {
+                put('^');
+                put('^');
+                put('<');
+                chars(datatype);
+                put('>');
+            } else if (language != null && !language.isEmpty()) {
+                put('@');
+                chars(language);
+            }
+        } else {
+            if (formatter == null) {
+                formatter = new NodeFormatterTTL(null, null);
+                scratch = new IndentedLineBuffer();
+            }
+            scratch.clear();
+            formatter.format(scratch, node);
+            final StringBuffer formatted = scratch.getBuffer();
+            for (int i = 0; i < formatted.length(); i++) {
+                i = encode(formatted, i);
+            }
+        }
+    }
+
+    /**
+     * Escape a character of a Turtle string, as Jena's formatter does
+     * @return the index of the last character consumed
+     */
+    private int escaped(final CharSequence value, final int index) throws IOException {
+        final char c = value.charAt(index);
+        switch (c) {
+            case '\\':
+                put('\\');
+                put('\\');
+                return index;
+            case '"':
+                put('\\');
+                put('"');
+                return index;
+            case '\n':
+                put('\\');
+                put('n');
+                return index;
+            case '\t':
+                put('\\');
+                put('t');
+                return index;
+            case '\r':
+                put('\\');
+                put('r');
+                return index;
+            case '\f':
+                put('\\');
+                put('f');
+                return index;
+            default:
+                return encode(value, index);
+        }
+    }
+
+    private void chars(final CharSequence value) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            i = encode(value, i);
+        }
+    }
+
+    /**
+     * Encode a character as UTF-8, with the low surrogate that follows a high one
+     * @return the index of the last character consumed
+     */
+    private int encode(final CharSequence value, final int index) throws IOException {
+        final char c = value.charAt(index);
+        if (c < 0x80) {
+            put(c);
+            return index;
+        }
+        if (position + MARGIN > buffer.length) {
+            drain();
+        }
+        if (c < 0x800) {
+            buffer[position++] = (byte) (0xc0 | c >> 6);
+            buffer[position++] = (byte) (0x80 | c & 0x3f);
+            return index;
+        }
+        if (!Character.isSurrogate(c)) {
+            buffer[position++] = (byte) (0xe0 | c >> 12);
+            buffer[position++] = (byte) (0x80 | c >> 6 & 0x3f);
+            buffer[position++] = (byte) (0x80 | c & 0x3f);
+            return index;
+        }
+        if (Character.isHighSurrogate(c) && index + 1 < value.length() &&
+                Character.isLowSurrogate(value.charAt(index + 1))) {
+            final int codePoint = Character.toCodePoint(c, value.charAt(index + 1));
+            buffer[position++] = (byte) (0xf0 | codePoint >> 18);
+            buffer[position++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+            buffer[position++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+            buffer[position++] = (byte) (0x80 | codePoint & 0x3f);
+            return index + 1;
+        }
+        // an unpaired surrogate, which the UTF-8 encoder replaces
+        buffer[position++] = '?';
+        return index;
+    }
+
+    private void separator() throws IOException {
+        put(tsv ? '\t' : ',');
+    }
+
+    private void endOfLine() throws IOException {
+        if (!tsv) {
+            put('\r');
+        }
+        put('\n');
+    }
+
+    private void put(final char ascii) throws IOException {
+        if (position == buffer.length) {
+            drain();
+        }
+        buffer[position++] = (byte) ascii;
+    }
+
+    private void drain() throws IOException {
+        out.write(buffer, 0, position);
+        position = 0;
+    }
+}
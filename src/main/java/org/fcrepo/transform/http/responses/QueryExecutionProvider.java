@@ -19,9 +19,11 @@ package org.fcrepo.transform.http.responses;
 
 import static com.hp.hpl.jena.sparql.resultset.ResultsFormat.FMT_UNKNOWN;
 import static java.util.Collections.singletonList;
+import static org.fcrepo.transform.ResourceModel.RESOURCE_MODEL;
 import static org.fcrepo.transform.http.responses.ResultSetStreamingOutput.getResultsFormat;
 import static org.slf4j.LoggerFactory.getLogger;
 
+import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
@@ -31,6 +33,7 @@ import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.ext.MessageBodyWriter;
 import javax.ws.rs.ext.Provider;
 
+import org.fcrepo.transform.ResourceModel;
 import org.slf4j.Logger;
 import org.springframework.stereotype.Component;
 
@@ -56,7 +59,7 @@ public class QueryExecutionProvider implements MessageBodyWriter<QueryExecution>
             final Type genericType, final Annotation[] annotations,
             final MediaType mediaType,
             final MultivaluedMap<String, Object> httpHeaders,
-            final OutputStream entityStream) {
+            final OutputStream entityStream) throws IOException {
 
         LOGGER.debug("Writing a response for: {} with MIMEtype: {}", qexec,
                         mediaType);
@@ -71,6 +74,10 @@ public class QueryExecutionProvider implements MessageBodyWriter<QueryExecution>
                     annotations, mediaType, httpHeaders, entityStream);
         } finally {
             qexec.close();
+            final Object model = qexec.getContext().get(RESOURCE_MODEL);
+            if (model instanceof ResourceModel) {
+                ((ResourceModel) model).close();
+            }
         }
     }
 
@@ -17,6 +17,7 @@
  */
 package org.fcrepo.transform.http.responses;
 
+import static java.lang.Integer.getInteger;
 import static com.hp.hpl.jena.query.ResultSetFormatter.output;
 import static com.hp.hpl.jena.query.ResultSetFormatter.toModel;
 import static com.hp.hpl.jena.sparql.resultset.ResultsFormat.FMT_RDF_NT;
@@ -40,6 +41,7 @@ import static org.apache.jena.riot.WebContent.contentTypeTurtle;
 import static org.apache.jena.riot.WebContent.contentTypeTurtleAlt1;
 import static org.apache.jena.riot.WebContent.contentTypeTurtleAlt2;
 
+import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
@@ -67,7 +69,26 @@ import com.hp.hpl.jena.sparql.resultset.ResultsFormat;
         contentTypeNTriples, contentTypeRDFXML})
 public class ResultSetStreamingOutput implements MessageBodyWriter<ResultSet> {
 
+    /**
+     * System property for the number of bytes of CSV or TSV results written to the response at once
+     */
+    public static final String CHUNK_PROPERTY = "fcrepo.transform.csv.chunk";
+
+    private final int chunk;
+
+    /**
+     * Write CSV and TSV results in chunks of the configured size
+     */
+    public ResultSetStreamingOutput() {
+        this(getInteger(CHUNK_PROPERTY, 8192));
+    }
 
+    /**
+     * @param chunk the number of bytes of CSV or TSV results written to the response at once
+     */
+    ResultSetStreamingOutput(final int chunk) {
+        this.chunk = chunk;
+    }
 
     @Override
     public boolean isWriteable(final Class<?> type,
@@ -100,13 +121,16 @@ public class ResultSetStreamingOutput implements MessageBodyWriter<ResultSet> {
                         final Annotation[] annotations,
                         final MediaType mediaType,
                         final MultivaluedMap<String, Object> httpHeaders,
-                        final OutputStream entityStream) {
+                        final OutputStream entityStream) throws IOException {
         final ResultsFormat resultsFormat = getResultsFormat(mediaType);
 
         if (resultsFormat == FMT_UNKNOWN) {
             final String format = contentTypeToLang(mediaType.toString()).getName().toUpperCase();
             final Model model = toModel(resultSet);
             model.write(entityStream, format);
+        } else if (resultsFormat == FMT_RS_CSV || resultsFormat == FMT_RS_TSV) {
+            (resultsFormat == FMT_RS_CSV ? DelimitedResultsWriter.csv(entityStream, chunk) :
+                    DelimitedResultsWriter.tsv(entityStream, chunk)).write(resultSet);
         } else {
             output(entityStream, resultSet, resultsFormat);
         }
@@ -18,20 +18,31 @@
 package org.fcrepo.transform.transformations;
 
 import com.google.common.collect.ImmutableList;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.RDFNode;
 import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.vocabulary.RDF;
 
 import org.apache.marmotta.ldpath.LDPath;
+import org.apache.marmotta.ldpath.api.backend.NodeBackend;
+import org.apache.marmotta.ldpath.api.selectors.NodeSelector;
 import org.apache.marmotta.ldpath.backend.jena.GenericJenaBackend;
 import org.apache.marmotta.ldpath.exception.LDPathParseException;
+import org.apache.marmotta.ldpath.model.fields.FieldMapping;
+import org.apache.marmotta.ldpath.model.programs.Program;
 
 import org.fcrepo.kernel.api.RdfStream;
 import org.fcrepo.kernel.api.exception.RepositoryRuntimeException;
 import org.fcrepo.kernel.api.models.FedoraBinary;
 import org.fcrepo.kernel.api.models.FedoraResource;
 import org.fcrepo.kernel.api.services.NodeService;
+import org.fcrepo.transform.FetchPlan;
+import org.fcrepo.transform.ResourceLoader;
+import org.fcrepo.transform.ResourceModel;
 import org.fcrepo.transform.TransformNotFoundException;
 import org.fcrepo.transform.Transformation;
+import org.fcrepo.transform.TransformationFactory;
 
 import org.slf4j.Logger;
 
@@ -39,21 +50,33 @@ import javax.jcr.NamespaceRegistry;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.StringReader;
 import java.net.URI;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import static com.hp.hpl.jena.rdf.model.ModelFactory.createDefaultModel;
 import static com.hp.hpl.jena.rdf.model.ResourceFactory.createResource;
-import static org.fcrepo.kernel.api.RdfCollectors.toModel;
+import static java.util.Collections.unmodifiableSet;
+import static java.util.stream.Stream.concat;
+import static org.fcrepo.transform.LinkedResources.linkedResources;
+import static org.fcrepo.transform.ResourceModel.toResourceModel;
+import static org.fcrepo.transform.TransformationFactory.read;
 import static org.slf4j.LoggerFactory.getLogger;
 
 /**
- * Utilities for working with LDPath
+ * Utilities for working with LDPath. A transform is compiled once from its program's text, and is immutable: it
+ * may be applied to any number of resources, from any number of threads.
  *
  * @author cbeer
  */
@@ -65,20 +88,75 @@ public class LDPathTransform implements Transformation<List<Map<String, Collecti
 
     // TODO: this mime type was made up
     public static final String APPLICATION_RDF_LDPATH = "application/rdf+ldpath";
-    private final InputStream query;
+    private final String digest;
+
+    private final Program<RDFNode> program;
+
+    private final Set<String> fields;
+
+    private final ResourceLoader loader;
+
+    private final FetchPlan fetchPlan;
 
     private static final Logger LOGGER = getLogger(LDPathTransform.class);
 
+    private static final Pattern IRI = Pattern.compile("<([^>]*)>");
+
+    private static final Pattern STRING_LITERAL = Pattern.compile("\"(?:[^\"\\\\]|\\\\.)*\"");
+
+    // a type test, whose IRI names a class rather than a predicate
+    private static final Pattern TYPE_TEST = Pattern.compile("is-a\\s*<[^>]*>");
+
+    // a wildcard selector, as opposed to the closure of a group, e.g. (ex:p)*
+    private static final Pattern WILDCARD = Pattern.compile("(?<!\\))\\*");
+
     /**
      * Construct a new Transform from the InputStream
      * @param query the query
      */
     public LDPathTransform(final InputStream query) {
-        this.query = query;
+        this(read(query));
+    }
+
+    /**
+     * Compile a new Transform from the text of its program
+     * @param program the program
+     */
+    public LDPathTransform(final String program) {
+        this(TransformationFactory.digest(APPLICATION_RDF_LDPATH, program), parse(program), null, null);
+    }
+
+    private LDPathTransform(final String digest, final Program<RDFNode> program, final Set<String> fields,
+            final ResourceLoader loader) {
+        this.digest = digest;
+        this.program = program;
+        this.fields = fields;
+        this.loader = loader;
+        this.fetchPlan = plan();
+    }
+
+    /**
+     * Narrow this transform to some of its program's fields. The other fields are not evaluated, and the triples
+     * only they would read are not fetched. Names that match no field are ignored.
+     *
+     * @param names the names of the fields to evaluate
+     * @return a transform evaluating only the named fields
+     */
+    public LDPathTransform withFields(final Collection<String> names) {
+        return new LDPathTransform(digest, program, unmodifiableSet(new HashSet<>(names)), loader);
     }
 
     /**
-     * Pull a resource-type specific transform for the specified key
+     * Let paths continue into the repository resources they dereference, within the configured traversal limits
+     */
+    @Override
+    public LDPathTransform withResources(final ResourceLoader resourceLoader) {
+        return new LDPathTransform(digest, program, fields, resourceLoader);
+    }
+
+    /**
+     * Pull a resource-type specific transform for the specified key, compiled once for as long as the program's
+     * text is unchanged
      * @param resource the resource
      * @param session the session
      * @param nodeService a nodeService
@@ -88,6 +166,30 @@ public class LDPathTransform implements Transformation<List<Map<String, Collecti
      */
     public static LDPathTransform getResourceTransform(final FedoraResource resource, final Session session,
             final NodeService nodeService, final String key) throws RepositoryException {
+        return getProgramTransform(getResourceProgram(resource, session, nodeService, key));
+    }
+
+    /**
+     * Pull the transform stored in a program binary, compiled once for as long as the program's text is unchanged
+     * @param program the binary holding the program
+     * @return the transform
+     */
+    public static LDPathTransform getProgramTransform(final FedoraBinary program) {
+        return TransformationFactory.compiled(APPLICATION_RDF_LDPATH, read(program.getContent()),
+                LDPathTransform::new);
+    }
+
+    /**
+     * Find the stored program for the specified key that applies to a resource's types
+     * @param resource the resource
+     * @param session the session
+     * @param nodeService a nodeService
+     * @param key the key
+     * @return the binary holding the resource-type specific program
+     * @throws RepositoryException if repository exception occurred
+     */
+    public static FedoraBinary getResourceProgram(final FedoraResource resource, final Session session,
+            final NodeService nodeService, final String key) throws RepositoryException {
 
         final FedoraResource transformResource = nodeService.find(session, CONFIGURATION_FOLDER + key);
 
@@ -119,25 +221,85 @@ public class LDPathTransform implements Transformation<List<Map<String, Collecti
                 .map(stringType -> transformResource.getPath() + "/" + stringType)
                 .collect(Collectors.toList());
 
-        final FedoraBinary transform = (FedoraBinary) transformResource.getChildren()
+        return (FedoraBinary) transformResource.getChildren()
                 .filter(child -> rdfStringTypes.contains(child.getPath()))
                 .findFirst()
                 .orElseThrow(() -> new TransformNotFoundException(
                     String.format("Couldn't find transformation for {} and transformation key {}",
                     resource.getPath(), key)));
-        return new LDPathTransform(transform.getContent());
     }
 
     @Override
     public List<Map<String, Collection<Object>>> apply(final RdfStream stream) {
-        final LDPath<RDFNode> ldpathForResource =
-            getLdpathResource(stream);
+        try (final ResourceModel model = stream.collect(toResourceModel())) {
+            return evaluate(model.model(), stream.topic());
+        }
+    }
+
+    @Override
+    public List<Map<String, Collection<Object>>> evaluate(final Model model, final Node topic) {
+        final Resource context = createResource(topic.getURI());
+        final GenericJenaBackend backend = loader == null ? new GenericJenaBackend(model) :
+                new LinkedResourceBackend(model, linkedResources(loader, model, topic.getURI()));
+        final Map<String, Collection<Object>> values = new HashMap<>();
+        selectedFields().forEach(field -> values.put(field.getFieldName(), unsafeCast(
+                field.getValues(backend, context))));
+        return ImmutableList.of(values);
+    }
+
+    /**
+     * @return the program's fields this transform evaluates
+     */
+    private Stream<FieldMapping<?, RDFNode>> selectedFields() {
+        return program.getFields().stream().filter(field -> fields == null || fields.contains(field.getFieldName()));
+    }
+
+    @Override
+    public FetchPlan fetchPlan() {
+        return fetchPlan;
+    }
+
+    @Override
+    public String digest() {
+        return digest;
+    }
 
-        final Resource context = createResource(stream.topic().getURI());
+    /**
+     * Find the predicates read by the program's fields, filter and booster, from their path expressions
+     */
+    private FetchPlan plan() {
+        final NodeBackend<RDFNode> backend = new GenericJenaBackend(createDefaultModel());
+        final Stream<NodeSelector<RDFNode>> selectors = selectedFields().map(FieldMapping::getSelector);
+        final List<String> expressions = concat(selectors.map(selector -> selector.getPathExpression(backend)),
+                Stream.of(program.getFilter(), program.getBooster()).filter(Objects::nonNull)
+                        .map(construct -> construct.getPathExpression(backend))).collect(Collectors.toList());
+
+        final Set<String> predicates = new HashSet<>();
+        for (final String expression : expressions) {
+            String bare = STRING_LITERAL.matcher(expression).replaceAll("\"\"");
+            if (WILDCARD.matcher(IRI.matcher(bare).replaceAll("<>")).find()) {
+                return FetchPlan.ALL;
+            }
+            if (TYPE_TEST.matcher(bare).find()) {
+                predicates.add(RDF.type.getURI());
+                bare = TYPE_TEST.matcher(bare).replaceAll("");
+            }
+            final Matcher iris = IRI.matcher(bare);
+            while (iris.find()) {
+                predicates.add(iris.group(1));
+            }
+        }
+        LOGGER.debug("LDPath program reads {}", predicates);
+        return FetchPlan.of(predicates);
+    }
 
+    /**
+     * @param program the text of a program
+     * @return the parsed program
+     */
+    private static Program<RDFNode> parse(final String program) {
         try {
-            return ImmutableList.of(unsafeCast(
-                ldpathForResource.programQuery(context, new InputStreamReader(query))));
+            return new LDPath<>(new GenericJenaBackend(createDefaultModel())).parseProgram(new StringReader(program));
         } catch (final LDPathParseException e) {
             throw new RepositoryRuntimeException(e);
         }
@@ -150,22 +312,12 @@ public class LDPathTransform implements Transformation<List<Map<String, Collecti
 
     @Override
     public boolean equals(final Object other) {
-        return other instanceof LDPathTransform && ((LDPathTransform) other).query.equals(query);
+        return other instanceof LDPathTransform && ((LDPathTransform) other).digest.equals(digest) &&
+                Objects.equals(((LDPathTransform) other).fields, fields) && ((LDPathTransform) other).loader == loader;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hashCode(query);
-    }
-
-    /**
-     * Get the LDPath resource for an object
-     * @param rdfStream
-     * @return the LDPath resource for the given object
-     */
-    private static LDPath<RDFNode> getLdpathResource(final RdfStream rdfStream) {
-
-        return new LDPath<>(new GenericJenaBackend(rdfStream.collect(toModel())));
-
+        return Objects.hash(digest, fields);
     }
 }
@@ -0,0 +1,70 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.transformations;
+
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.apache.marmotta.ldpath.backend.jena.GenericJenaBackend;
+import org.fcrepo.transform.LinkedResources;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+
+/**
+ * An LDPath backend over a resource's model that loads the repository resources a path dereferences, so that paths
+ * such as pcdm:hasMember / dc:title reach beyond the topic. Forward steps read the model of the resource they start
+ * from; reverse steps read the topic's model only, so that their results don't depend on what else was loaded.
+ *
+ * @author agent
+ */
+public class LinkedResourceBackend extends GenericJenaBackend {
+
+    private final Model model;
+
+    private final LinkedResources resources;
+
+    private final Map<Model, GenericJenaBackend> linked = new IdentityHashMap<>();
+
+    /**
+     * @param model the model holding the topic's triples
+     * @param resources the resources that may be loaded
+     */
+    public LinkedResourceBackend(final Model model, final LinkedResources resources) {
+        super(model);
+        this.model = model;
+        this.resources = resources;
+    }
+
+    @Override
+    public Collection<RDFNode> listObjects(final RDFNode subject, final RDFNode property) {
+        final Model described = resources.visit(subject);
+        final Collection<RDFNode> objects = described == model ? super.listObjects(subject, property) :
+                linked.computeIfAbsent(described, GenericJenaBackend::new).listObjects(subject, property);
+        resources.reached(subject, objects);
+        return objects;
+    }
+
+    @Override
+    public Collection<RDFNode> listSubjects(final RDFNode property, final RDFNode object) {
+        final Collection<RDFNode> subjects = super.listSubjects(property, object);
+        resources.reached(object, subjects);
+        return subjects;
+    }
+}
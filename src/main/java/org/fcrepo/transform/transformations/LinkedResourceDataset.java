@@ -0,0 +1,144 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.transformations;
+
+import static com.hp.hpl.jena.graph.NodeFactory.createURI;
+import static com.hp.hpl.jena.sparql.graph.GraphFactory.createGraphMem;
+import static java.lang.Integer.getInteger;
+import static org.fcrepo.transform.LinkedResources.resourceOf;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import org.fcrepo.transform.ResourceLoader;
+import org.slf4j.Logger;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.compose.MultiUnion;
+import com.hp.hpl.jena.sparql.core.DatasetGraphMap;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+/**
+ * A dataset for SPARQL transforms that starts with the topic resource and loads other repository resources as the
+ * query needs them: a pattern whose subject is bound to a repository resource, or a GRAPH clause naming one, loads
+ * that resource as a named graph. The default graph is the union of the topic and every resource loaded so far.
+ *
+ * Each resource is loaded at most once per query, and no more than a budget of resources are loaded in all.
+ *
+ * @author agent
+ */
+public class LinkedResourceDataset extends DatasetGraphMap {
+
+    private static final Logger LOGGER = getLogger(LinkedResourceDataset.class);
+
+    /**
+     * System property for the most repository resources a SPARQL transform may load besides its topic
+     */
+    public static final String RESOURCES_PROPERTY = "fcrepo.transform.sparql.resources";
+
+    private final ResourceLoader loader;
+
+    private final MultiUnion union;
+
+    private int budget;
+
+    /**
+     * @param topic the graph of the topic's triples
+     * @param topicUri the URI of the topic
+     * @param loader the source of other resources' triples
+     * @param budget the most resources to load besides the topic
+     */
+    public LinkedResourceDataset(final Graph topic, final String topicUri, final ResourceLoader loader,
+            final int budget) {
+        super(createGraphMem());
+        this.loader = loader;
+        this.budget = budget;
+        this.union = new LoadingUnion(topic);
+        setDefaultGraph(union);
+        super.addGraph(createURI(resourceOf(topicUri)), topic);
+    }
+
+    /**
+     * @param topic the graph of the topic's triples
+     * @param topicUri the URI of the topic
+     * @param loader the source of other resources' triples
+     * @return a dataset with the configured budget
+     */
+    public static LinkedResourceDataset linkedResourceDataset(final Graph topic, final String topicUri,
+            final ResourceLoader loader) {
+        return new LinkedResourceDataset(topic, topicUri, loader, getInteger(RESOURCES_PROPERTY, 100));
+    }
+
+    @Override
+    public boolean containsGraph(final Node graphNode) {
+        load(graphNode);
+        return super.containsGraph(graphNode);
+    }
+
+    @Override
+    public Graph getGraph(final Node graphNode) {
+        load(graphNode);
+        return super.getGraph(graphNode);
+    }
+
+    /**
+     * Load the resource a node belongs to, unless it is loaded already, isn't a repository resource, or the budget
+     * is spent
+     */
+    private void load(final Node node) {
+        if (node == null || !node.isURI()) {
+            return;
+        }
+        final Node resource = createURI(resourceOf(node.getURI()));
+        if (super.containsGraph(resource) || !loader.contains(resource.getURI())) {
+            return;
+        }
+        if (budget == 0) {
+            LOGGER.debug("Not loading {}, as the query's resource budget is spent", resource);
+            return;
+        }
+        budget--;
+        LOGGER.debug("Loading linked resource {}", resource);
+        final Graph graph = createGraphMem();
+        loader.load(resource.getURI()).forEach(graph::add);
+        super.addGraph(resource, graph);
+        union.addGraph(graph);
+    }
+
+    /**
+     * The default graph, which loads the resource a pattern's subject belongs to before matching the pattern
+     */
+    private class LoadingUnion extends MultiUnion {
+
+        private LoadingUnion(final Graph topic) {
+            super(new Graph[] { topic });
+        }
+
+        @Override
+        public ExtendedIterator<Triple> graphBaseFind(final Triple pattern) {
+            load(pattern.getSubject());
+            return super.graphBaseFind(pattern);
+        }
+
+        @Override
+        public boolean graphBaseContains(final Triple pattern) {
+            load(pattern.getSubject());
+            return super.graphBaseContains(pattern);
+        }
+    }
+}
@@ -17,30 +17,119 @@
  */
 package org.fcrepo.transform.transformations;
 
-import static org.fcrepo.kernel.api.RdfCollectors.toModel;
+import static java.lang.Long.getLong;
+import static java.util.Collections.unmodifiableSet;
+import static org.apache.jena.riot.WebContent.contentTypeSPARQLQuery;
+import static org.fcrepo.transform.ResourceModel.RESOURCE_MODEL;
+import static org.fcrepo.transform.ResourceModel.toResourceModel;
+import static org.fcrepo.transform.TransformationFactory.read;
+import static org.fcrepo.transform.transformations.LinkedResourceDataset.linkedResourceDataset;
+import static org.slf4j.LoggerFactory.getLogger;
 
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.ARQ;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.DatasetFactory;
 import com.hp.hpl.jena.query.Query;
 import com.hp.hpl.jena.query.QueryExecution;
-import com.hp.hpl.jena.query.QueryExecutionFactory;
 import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.QuerySolutionMap;
+import com.hp.hpl.jena.query.SortCondition;
 import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.sparql.algebra.Algebra;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.algebra.OpVars;
+import com.hp.hpl.jena.sparql.algebra.OpVisitorBase;
+import com.hp.hpl.jena.sparql.algebra.OpWalker;
+import com.hp.hpl.jena.sparql.algebra.op.OpAssign;
+import com.hp.hpl.jena.sparql.algebra.op.OpBGP;
+import com.hp.hpl.jena.sparql.algebra.op.OpExtend;
+import com.hp.hpl.jena.sparql.algebra.op.OpFilter;
+import com.hp.hpl.jena.sparql.algebra.op.OpGroup;
+import com.hp.hpl.jena.sparql.algebra.op.OpLeftJoin;
+import com.hp.hpl.jena.sparql.algebra.op.OpOrder;
+import com.hp.hpl.jena.sparql.algebra.op.OpPath;
+import com.hp.hpl.jena.sparql.algebra.op.OpPropFunc;
+import com.hp.hpl.jena.sparql.algebra.op.OpQuadPattern;
+import com.hp.hpl.jena.sparql.algebra.op.OpTriple;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.sparql.core.TriplePath;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.Plan;
+import com.hp.hpl.jena.sparql.engine.QueryEngineFactory;
+import com.hp.hpl.jena.sparql.engine.QueryExecutionBase;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingFactory;
+import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+import com.hp.hpl.jena.sparql.engine.main.QC;
+import com.hp.hpl.jena.sparql.engine.main.QueryEngineMain;
+import com.hp.hpl.jena.sparql.expr.Expr;
+import com.hp.hpl.jena.sparql.expr.ExprAggregator;
+import com.hp.hpl.jena.sparql.expr.ExprFunctionOp;
+import com.hp.hpl.jena.sparql.expr.ExprVisitorBase;
+import com.hp.hpl.jena.sparql.expr.ExprWalker;
+import com.hp.hpl.jena.sparql.path.P_Path0;
+import com.hp.hpl.jena.sparql.path.P_Path1;
+import com.hp.hpl.jena.sparql.path.P_Path2;
+import com.hp.hpl.jena.sparql.path.Path;
+import com.hp.hpl.jena.sparql.util.Context;
+import com.hp.hpl.jena.sparql.util.NodeFactoryExtra;
+
+import org.apache.jena.riot.system.PrefixMap;
+import org.apache.jena.riot.system.PrefixMapFactory;
 
-import org.apache.commons.io.IOUtils;
 import org.fcrepo.kernel.api.RdfStream;
+import org.fcrepo.kernel.api.models.FedoraBinary;
+import org.fcrepo.kernel.api.services.NodeService;
+import org.fcrepo.transform.FetchPlan;
+import org.fcrepo.transform.ResourceLoader;
+import org.fcrepo.transform.ResourceModel;
+import org.fcrepo.transform.TransformNotFoundException;
 import org.fcrepo.transform.Transformation;
+import org.fcrepo.transform.TransformationFactory;
+import org.slf4j.Logger;
+
+import javax.jcr.Session;
 
-import java.io.IOException;
 import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 /**
- * SPARQL Query-based transforms
+ * SPARQL Query-based transforms. A transform is compiled once from its query's text, into an optimized algebra
+ * expression, and is immutable: it may be applied to any number of resources, from any number of threads, and with
+ * any values of its parameters.
  *
  * @author cbeer
  */
 public class SparqlQueryTransform implements Transformation<QueryExecution> {
 
-    private final InputStream query;
+    private static final Logger LOGGER = getLogger(SparqlQueryTransform.class);
+
+    public static final String QUERY_FOLDER = "/fedora:system/fedora:transform/fedora:sparql/";
+
+    /**
+     * System property for the number of rows past which a query's ORDER BY and DISTINCT spill to disk
+     */
+    public static final String SPILL_ROWS_PROPERTY = "fcrepo.transform.sparql.spill";
+
+    private final String digest;
+
+    private final Query query;
+
+    private final Op algebra;
+
+    private final Set<Var> variables;
+
+    private final ResourceLoader loader;
+
+    private final Binding parameters;
+
+    private final FetchPlan fetchPlan;
 
     /**
      * Construct a new SparqlQueryTransform from the data from
@@ -48,30 +137,358 @@ public class SparqlQueryTransform implements Transformation<QueryExecution> {
      * @param query the query
      */
     public SparqlQueryTransform(final InputStream query) {
+        this(read(query));
+    }
+
+    /**
+     * Compile a new SparqlQueryTransform from the text of its query
+     * @param query the query
+     */
+    public SparqlQueryTransform(final String query) {
+        this(TransformationFactory.digest(contentTypeSPARQLQuery, query), parse(query));
+    }
+
+    private SparqlQueryTransform(final String digest, final Query query) {
+        this.digest = digest;
         this.query = query;
+        this.algebra = Algebra.optimize(Algebra.compile(query));
+        this.variables = unmodifiableSet(new HashSet<>(OpVars.mentionedVars(algebra)));
+        this.loader = null;
+        this.parameters = BindingFactory.root();
+        this.fetchPlan = plan(query);
     }
 
+    private SparqlQueryTransform(final SparqlQueryTransform compiled, final ResourceLoader loader,
+            final Binding parameters) {
+        this.digest = compiled.digest;
+        this.query = compiled.query;
+        this.algebra = compiled.algebra;
+        this.variables = compiled.variables;
+        this.loader = loader;
+        this.parameters = parameters;
+        this.fetchPlan = compiled.fetchPlan;
+    }
+
+    /**
+     * Let the query reach the repository resources its patterns bind, loaded as named graphs
+     */
     @Override
-    public QueryExecution apply(final RdfStream rdfStream) {
+    public SparqlQueryTransform withResources(final ResourceLoader resourceLoader) {
+        return new SparqlQueryTransform(this, resourceLoader, parameters);
+    }
 
+    /**
+     * Bind some of the query's variables. The values are substituted into the compiled algebra as the query runs,
+     * so that every binding of a query shares its one parsed and optimized plan.
+     *
+     * @param values the values of the variables, by name, written as SPARQL terms, e.g. {@code <http://ex.org/a>},
+     *        {@code "a title"@en} or {@code 42}; prefixed names may use the query's prefixes
+     * @return a transform running the query with those variables bound, in place of any bound before
+     * @throws IllegalArgumentException if a name isn't one of the query's variables, or a value isn't an RDF term
+     */
+    public SparqlQueryTransform withParameters(final Map<String, String> values) {
+        final PrefixMap prefixes = PrefixMapFactory.create(query.getPrefixMapping());
+        final BindingMap binding = BindingFactory.create();
+        values.forEach((name, value) -> {
+            final Var variable = Var.alloc(name);
+            if (!variables.contains(variable)) {
+                throw new IllegalArgumentException(String.format("The query has no variable named %s", name));
+            }
+            final Node term;
+            try {
+                term = NodeFactoryExtra.parseNode(value, prefixes);
+            } catch (final RuntimeException e) {
+                throw new IllegalArgumentException(String.format("The value of %s is not an RDF term: %s",
+                        name, value), e);
+            }
+            if (!term.isConcrete()) {
+                throw new IllegalArgumentException(String.format("The value of %s is not an RDF term: %s",
+                        name, value));
+            }
+            binding.add(variable, term);
+        });
+        return new SparqlQueryTransform(this, loader, binding);
+    }
+
+    /**
+     * Pull the stored query with the specified name, compiled once for as long as its text is unchanged
+     * @param session the session
+     * @param nodeService a nodeService
+     * @param name the name of the query
+     * @return the stored query
+     */
+    public static SparqlQueryTransform getStoredTransform(final Session session, final NodeService nodeService,
+            final String name) {
+        final String path = QUERY_FOLDER + name;
+        final FedoraBinary query = nodeService.exists(session, path) ?
+                (FedoraBinary) nodeService.find(session, QUERY_FOLDER.substring(0, QUERY_FOLDER.length() - 1))
+                        .getChildren().filter(child -> child.getPath().equals(path)).findFirst().orElse(null) : null;
+        if (query == null) {
+            throw new TransformNotFoundException(String.format("Couldn't find a stored SPARQL query named %s", name));
+        }
+        LOGGER.debug("Found stored query: {}", path);
+        return TransformationFactory.compiled(contentTypeSPARQLQuery, read(query.getContent()),
+                SparqlQueryTransform::new);
+    }
+
+    @Override
+    public QueryExecution apply(final RdfStream rdfStream) {
+        // the model lives as long as the query execution, and is closed with it once the results are written
+        final ResourceModel model = rdfStream.collect(toResourceModel());
         try {
-            final Model model = rdfStream.collect(toModel());
-            final Query sparqlQuery =
-                QueryFactory.create(IOUtils.toString(query));
+            final QueryExecution qexec = execution(model.model(), rdfStream.topic());
+            qexec.getContext().set(RESOURCE_MODEL, model);
+            return qexec;
+        } catch (final RuntimeException e) {
+            model.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Start the query against a model that has already been built. The model must stay open until the results have
+     * been written.
+     */
+    @Override
+    public QueryExecution evaluate(final Model model, final Node topic) {
+        return execution(model, topic);
+    }
+
+    /**
+     * Start the query from its compiled algebra, with its parameters as the initial binding. Past the configured
+     * number of rows, sorting and removing duplicates spill to sorted runs in temporary files, which are merged as
+     * the results are read.
+     */
+    private QueryExecution execution(final Model model, final Node topic) {
+        final Dataset dataset = loader == null ? DatasetFactory.create(model) :
+                DatasetFactory.create(linkedResourceDataset(model.getGraph(), topic.getURI(), loader));
+        final QueryExecution execution = new QueryExecutionBase(query, dataset, ARQ.getContext(), new Prepared());
+        final long spillRows = getLong(SPILL_ROWS_PROPERTY, 100000);
+        if (spillRows > 0) {
+            execution.getContext().set(ARQ.spillToDiskThreshold, spillRows);
+            QC.setFactory(execution.getContext(), SpillingDistinct.executor(spillRows));
+        }
+        if (!parameters.isEmpty()) {
+            final QuerySolutionMap initial = new QuerySolutionMap();
+            parameters.vars().forEachRemaining(variable -> initial.add(variable.getVarName(),
+                    model.asRDFNode(parameters.get(variable))));
+            execution.setInitialBinding(initial);
+        }
+        return execution;
+    }
+
+    /**
+     * Plans executions of the query from its compiled algebra, rather than compiling and optimizing the query
+     * anew for each one
+     */
+    private class Prepared implements QueryEngineFactory {
+
+        @Override
+        public boolean accept(final Query q, final DatasetGraph dataset, final Context context) {
+            return true;
+        }
+
+        @Override
+        public Plan create(final Query q, final DatasetGraph dataset, final Binding initial, final Context context) {
+            return new PreparedEngine(algebra, dataset, initial, context).getPlan();
+        }
+
+        @Override
+        public boolean accept(final Op op, final DatasetGraph dataset, final Context context) {
+            return false;
+        }
+
+        @Override
+        public Plan create(final Op op, final DatasetGraph dataset, final Binding initial, final Context context) {
+            return new PreparedEngine(op, dataset, initial, context).getPlan();
+        }
+    }
+
+    /**
+     * The main query engine, evaluating an algebra expression that has already been optimized. The engine
+     * substitutes the initial binding into the expression before evaluating it.
+     */
+    private static class PreparedEngine extends QueryEngineMain {
+
+        private PreparedEngine(final Op op, final DatasetGraph dataset, final Binding initial,
+                final Context context) {
+            super(op, dataset, initial, context);
+        }
+
+        @Override
+        protected Op modifyOp(final Op op) {
+            return op;
+        }
+    }
+
+    @Override
+    public FetchPlan fetchPlan() {
+        return fetchPlan;
+    }
+
+    @Override
+    public String digest() {
+        return digest;
+    }
+
+    /**
+     * @param query the text of a query
+     * @return the parsed query, with its result variables settled, so that concurrent executions only read it
+     */
+    private static Query parse(final String query) {
+        final Query parsed = QueryFactory.create(query);
+        if (parsed.isQueryResultStar()) {
+            parsed.setResultVars();
+        }
+        return parsed;
+    }
+
+    /**
+     * Find the predicates read by the query's patterns, including those inside EXISTS filters
+     *
+     * @param sparqlQuery the query
+     * @return the triples the query needs
+     */
+    private static FetchPlan plan(final Query sparqlQuery) {
+        if (sparqlQuery.isDescribeType()) {
+            return FetchPlan.ALL;
+        }
+        final PredicateCollector collector = new PredicateCollector();
+        collector.walk(Algebra.compile(sparqlQuery));
+        LOGGER.debug("SPARQL query reads {}", collector.all ? "all predicates" : collector.predicates);
+        return collector.all ? FetchPlan.ALL : FetchPlan.of(collector.predicates);
+    }
+
+    /**
+     * Collects the predicates of the patterns in a query's algebra. Any pattern whose predicate isn't a fixed URI,
+     * such as a variable or a negated property set, may match any triple.
+     */
+    private static class PredicateCollector extends OpVisitorBase {
+
+        private final Set<String> predicates = new HashSet<>();
+
+        private boolean all = false;
+
+        private void walk(final Op op) {
+            OpWalker.walk(op, this);
+        }
+
+        private void predicate(final Node predicate) {
+            if (predicate.isURI()) {
+                predicates.add(predicate.getURI());
+            } else {
+                all = true;
+            }
+        }
+
+        private void path(final Path path) {
+            if (path instanceof P_Path0) {
+                predicate(((P_Path0) path).getNode());
+            } else if (path instanceof P_Path1) {
+                path(((P_Path1) path).getSubPath());
+            } else if (path instanceof P_Path2) {
+                path(((P_Path2) path).getLeft());
+                path(((P_Path2) path).getRight());
+            } else {
+                all = true;
+            }
+        }
+
+        private void expressions(final Iterable<Expr> exprs) {
+            if (exprs != null) {
+                exprs.forEach(this::expression);
+            }
+        }
+
+        private void expression(final Expr expr) {
+            ExprWalker.walk(new ExprVisitorBase() {
+                @Override
+                public void visit(final ExprFunctionOp funcOp) {
+                    if (funcOp.getGraphPattern() != null) {
+                        walk(funcOp.getGraphPattern());
+                    } else if (funcOp.getElement() != null) {
+                        walk(Algebra.compile(funcOp.getElement()));
+                    }
+                }
+            }, expr);
+        }
+
+        @Override
+        public void visit(final OpBGP opBGP) {
+            opBGP.getPattern().forEach(triple -> predicate(triple.getPredicate()));
+        }
+
+        @Override
+        public void visit(final OpTriple opTriple) {
+            final Triple triple = opTriple.getTriple();
+            predicate(triple.getPredicate());
+        }
+
+        @Override
+        public void visit(final OpQuadPattern quadPattern) {
+            quadPattern.getPattern().forEach((final Quad quad) -> predicate(quad.getPredicate()));
+        }
+
+        @Override
+        public void visit(final OpPath opPath) {
+            final TriplePath triplePath = opPath.getTriplePath();
+            if (triplePath.isTriple()) {
+                predicate(triplePath.getPredicate());
+            } else {
+                path(triplePath.getPath());
+            }
+        }
+
+        @Override
+        public void visit(final OpPropFunc opPropFunc) {
+            all = true;
+        }
+
+        @Override
+        public void visit(final OpFilter opFilter) {
+            expressions(opFilter.getExprs());
+        }
+
+        @Override
+        public void visit(final OpLeftJoin opLeftJoin) {
+            expressions(opLeftJoin.getExprs());
+        }
+
+        @Override
+        public void visit(final OpExtend opExtend) {
+            expressions(opExtend.getVarExprList().getExprs().values());
+        }
+
+        @Override
+        public void visit(final OpAssign opAssign) {
+            expressions(opAssign.getVarExprList().getExprs().values());
+        }
+
+        @Override
+        public void visit(final OpGroup opGroup) {
+            expressions(opGroup.getGroupVars().getExprs().values());
+            for (final ExprAggregator aggregator : opGroup.getAggregators()) {
+                expressions(aggregator.getAggregator().getExprList());
+            }
+        }
 
-            return QueryExecutionFactory.create(sparqlQuery, model);
-        } catch (final IOException e) {
-            throw new IllegalStateException(e);
+        @Override
+        public void visit(final OpOrder opOrder) {
+            for (final SortCondition condition : opOrder.getConditions()) {
+                expression(condition.getExpression());
+            }
         }
     }
 
     @Override
     public boolean equals(final Object other) {
-        return other instanceof SparqlQueryTransform && query.equals(((SparqlQueryTransform)other).query);
+        return other instanceof SparqlQueryTransform && digest.equals(((SparqlQueryTransform) other).digest) &&
+                loader == ((SparqlQueryTransform) other).loader &&
+                parameters.equals(((SparqlQueryTransform) other).parameters);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hashCode(query);
+        return Objects.hashCode(digest);
     }
 }
@@ -0,0 +1,235 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.transformations;
+
+import static org.apache.jena.atlas.data.BagFactory.newSortedBag;
+import static org.apache.jena.atlas.data.ThresholdPolicyFactory.count;
+import static org.apache.jena.riot.system.SerializationFactoryFinder.bindingSerializationFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.jena.atlas.data.SortedDataBag;
+
+import com.hp.hpl.jena.sparql.algebra.op.OpDistinct;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.ExecutionContext;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingFactory;
+import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIter1;
+import com.hp.hpl.jena.sparql.engine.main.OpExecutor;
+import com.hp.hpl.jena.sparql.engine.main.OpExecutorFactory;
+import com.hp.hpl.jena.sparql.util.NodeFactoryExtra;
+import com.hp.hpl.jena.sparql.util.NodeUtils;
+
+/**
+ * DISTINCT over more rows than should be held in memory. Rows are returned as they arrive until a threshold of
+ * distinct rows has been seen; the remaining rows are then numbered and sorted by their values through sorted runs
+ * in temporary files, so that duplicates are adjacent, and the first of each run of duplicates is sorted back into
+ * the order the rows arrived in. Rows therefore keep their order, as they must when DISTINCT applies to an ordered
+ * sequence.
+ *
+ * ARQ's own spilling DISTINCT drops rows once it spills, in this version of Jena.
+ *
+ * @author agent
+ */
+class SpillingDistinct extends QueryIter1 {
+
+    // the number of a row, in the order the rows arrived, while they are sorted by value
+    private static final Var ROW = Var.alloc("fcrepoTransformRow");
+
+    private static final Comparator<Binding> BY_ROW = Comparator.comparingLong(SpillingDistinct::row);
+
+    private static final Comparator<Binding> BY_VALUE = SpillingDistinct::compareValues;
+
+    private final long threshold;
+
+    private final Set<Binding> seen = new HashSet<>();
+
+    private SortedDataBag<Binding> spilled;
+
+    private Iterator<Binding> remaining;
+
+    private Binding next;
+
+    /**
+     * @param input the rows
+     * @param threshold the number of rows past which rows spill to disk
+     * @param context the execution context
+     */
+    SpillingDistinct(final QueryIterator input, final long threshold, final ExecutionContext context) {
+        super(input, context);
+        this.threshold = threshold;
+    }
+
+    /**
+     * @param threshold the number of rows past which rows spill to disk
+     * @return executors of queries whose DISTINCT spills to disk past the threshold
+     */
+    static OpExecutorFactory executor(final long threshold) {
+        return context -> new OpExecutor(context) {
+
+            @Override
+            protected QueryIterator execute(final OpDistinct opDistinct, final QueryIterator input) {
+                return new SpillingDistinct(exec(opDistinct.getSubOp(), input), threshold, execCxt);
+            }
+        };
+    }
+
+    @Override
+    protected boolean hasNextBinding() {
+        if (next != null) {
+            return true;
+        }
+        while (remaining == null && getInput().hasNext()) {
+            final Binding binding = getInput().nextBinding();
+            if (seen.size() >= threshold) {
+                remaining = spill(binding);
+            } else if (seen.add(binding)) {
+                next = binding;
+                return true;
+            }
+        }
+        if (remaining != null && remaining.hasNext()) {
+            next = values(remaining.next());
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    protected Binding moveToNextBinding() {
+        final Binding binding = next;
+        next = null;
+        return binding;
+    }
+
+    /**
+     * Sort the remaining rows by value, and keep the first of each run of duplicates that wasn't returned before
+     *
+     * @param first the first of the remaining rows
+     * @return the remaining distinct rows, numbered in the order they arrived
+     */
+    private Iterator<Binding> spill(final Binding first) {
+        final SortedDataBag<Binding> byValue = newSortedBag(count(threshold), bindingSerializationFactory(), BY_VALUE);
+        try {
+            long row = 0;
+            byValue.add(numbered(first, row++));
+            while (getInput().hasNext()) {
+                byValue.add(numbered(getInput().nextBinding(), row++));
+            }
+            spilled = newSortedBag(count(threshold), bindingSerializationFactory(), BY_ROW);
+            Binding previous = null;
+            for (final Iterator<Binding> rows = byValue.iterator(); rows.hasNext(); ) {
+                final Binding binding = rows.next();
+                final Binding values = values(binding);
+                if (!values.equals(previous) && !seen.contains(values)) {
+                    spilled.add(binding);
+                }
+                previous = values;
+            }
+            seen.clear();
+            return spilled.iterator();
+        } finally {
+            byValue.close();
+        }
+    }
+
+    private static Binding numbered(final Binding binding, final long row) {
+        final BindingMap numbered = BindingFactory.create(binding);
+        numbered.add(ROW, NodeFactoryExtra.intToNode(row));
+        return numbered;
+    }
+
+    private static long row(final Binding binding) {
+        return NodeFactoryExtra.nodeToLong(binding.get(ROW));
+    }
+
+    /**
+     * @param binding a numbered row
+     * @return the row's values, without its number
+     */
+    private static Binding values(final Binding binding) {
+        final BindingMap values = BindingFactory.create();
+        binding.vars().forEachRemaining(var -> {
+            if (!var.equals(ROW)) {
+                values.add(var, binding.get(var));
+            }
+        });
+        return values;
+    }
+
+    /**
+     * Order numbered rows by their variables, then by their values, then by their numbers: equal rows compare as
+     * equal but for their numbers
+     */
+    private static int compareValues(final Binding left, final Binding right) {
+        final List<Var> leftVars = vars(left);
+        final List<Var> rightVars = vars(right);
+        for (int i = 0; i < Math.min(leftVars.size(), rightVars.size()); i++) {
+            final int order = leftVars.get(i).getVarName().compareTo(rightVars.get(i).getVarName());
+            if (order != 0) {
+                return order;
+            }
+        }
+        if (leftVars.size() != rightVars.size()) {
+            return Integer.compare(leftVars.size(), rightVars.size());
+        }
+        for (final Var var : leftVars) {
+            final int order = NodeUtils.compareRDFTerms(left.get(var), right.get(var));
+            if (order != 0) {
+                return order;
+            }
+        }
+        return BY_ROW.compare(left, right);
+    }
+
+    /**
+     * @param binding a numbered row
+     * @return the variables the row binds, but for its number, by name
+     */
+    private static List<Var> vars(final Binding binding) {
+        final List<Var> vars = new ArrayList<>();
+        binding.vars().forEachRemaining(var -> {
+            if (!var.equals(ROW)) {
+                vars.add(var);
+            }
+        });
+        vars.sort(Comparator.comparing(Var::getVarName));
+        return vars;
+    }
+
+    @Override
+    protected void requestSubCancel() {
+        // nothing runs beyond the input, which is cancelled with this
+    }
+
+    @Override
+    protected void closeSubIterator() {
+        seen.clear();
+        if (spilled != null) {
+            spilled.close();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.integration;
+
+import static javax.xml.bind.JAXBContext.newInstance;
+import static org.glassfish.jersey.grizzly2.httpserver.GrizzlyHttpServerFactory.createHttpServer;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.net.URI;
+
+import org.fcrepo.http.commons.webxml.WebAppConfig;
+import org.fcrepo.http.commons.webxml.bind.ContextParam;
+import org.fcrepo.http.commons.webxml.bind.Filter;
+import org.fcrepo.http.commons.webxml.bind.FilterMapping;
+import org.fcrepo.http.commons.webxml.bind.InitParam;
+import org.fcrepo.http.commons.webxml.bind.Listener;
+import org.fcrepo.http.commons.webxml.bind.Servlet;
+import org.fcrepo.http.commons.webxml.bind.ServletMapping;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.servlet.FilterRegistration;
+import org.glassfish.grizzly.servlet.ServletRegistration;
+import org.glassfish.grizzly.servlet.WebappContext;
+import org.slf4j.Logger;
+
+/**
+ * A Grizzly test container like the one in fcrepo-http-commons, except that its servlets and filters support
+ * asynchronous processing, which the transform endpoints need to suspend their responses.
+ *
+ * @author agent
+ */
+public class AsyncContainerWrapper {
+
+    private static final Logger logger = getLogger(AsyncContainerWrapper.class);
+
+    private int port;
+
+    private HttpServer server;
+
+    private WebappContext appContext;
+
+    private String configLocation;
+
+    /**
+     * @param configLocation the location of the web.xml to deploy
+     */
+    public void setConfigLocation(final String configLocation) {
+        this.configLocation = configLocation.replaceFirst("classpath:", "/");
+    }
+
+    /**
+     * @param port the port to listen on
+     */
+    public void setPort(final int port) {
+        this.port = port;
+    }
+
+    /**
+     * Deploy the web application and start listening
+     *
+     * @throws Exception if the container could not be started
+     */
+    public void start() throws Exception {
+        final WebAppConfig config = (WebAppConfig) newInstance(WebAppConfig.class).createUnmarshaller()
+                .unmarshal(getClass().getResource(configLocation));
+        server = createHttpServer(URI.create("http://localhost:" + port + "/"));
+
+        appContext = new WebappContext(config.displayName(), "/");
+
+        for (final ContextParam param : config.contextParams()) {
+            appContext.addContextInitParameter(param.name(), param.value());
+        }
+
+        for (final Listener listener : config.listeners()) {
+            appContext.addListener(listener.className());
+        }
+
+        for (final Servlet servlet : config.servlets()) {
+            final ServletRegistration registration =
+                    appContext.addServlet(servlet.servletName(), servlet.servletClass());
+            registration.setAsyncSupported(true);
+            for (final ServletMapping mapping : config.servletMappings(servlet.servletName())) {
+                registration.addMapping(mapping.urlPattern());
+            }
+            for (final InitParam param : servlet.initParams()) {
+                registration.setInitParameter(param.name(), param.value());
+            }
+        }
+
+        for (final Filter filter : config.filters()) {
+            final FilterRegistration registration = appContext.addFilter(filter.filterName(), filter.filterClass());
+            registration.setAsyncSupported(true);
+            for (final FilterMapping mapping : config.filterMappings(filter.filterName())) {
+                if (mapping.urlPattern() != null) {
+                    registration.addMappingForUrlPatterns(null, mapping.urlPattern());
+                } else {
+                    registration.addMappingForServletNames(null, mapping.servletName());
+                }
+            }
+            for (final InitParam param : filter.initParams()) {
+                registration.setInitParameter(param.name(), param.value());
+            }
+        }
+
+        appContext.deploy(server);
+
+        logger.debug("started grizzly webserver endpoint at {}", server.getHttpHandler().getName());
+    }
+
+    /**
+     * Undeploy the web application and stop listening
+     */
+    public void stop() {
+        try {
+            appContext.undeploy();
+            server.shutdownNow();
+        } catch (final Exception e) {
+            logger.warn(e.getMessage(), e);
+            server.shutdownNow();
+        }
+    }
+}
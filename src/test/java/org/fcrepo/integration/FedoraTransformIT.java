@@ -17,28 +17,50 @@
  */
 package org.fcrepo.integration;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
 import static java.util.UUID.randomUUID;
+import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
+import static javax.ws.rs.core.Response.Status.CONFLICT;
 import static javax.ws.rs.core.Response.Status.CREATED;
+import static javax.ws.rs.core.Response.Status.NO_CONTENT;
 import static javax.ws.rs.core.Response.Status.OK;
+import static javax.ws.rs.core.Response.Status.SERVICE_UNAVAILABLE;
+import static org.apache.jena.riot.WebContent.contentTypeSPARQLQuery;
+import static org.apache.jena.riot.WebContent.contentTypeTextCSV;
 import static org.fcrepo.transform.transformations.LDPathTransform.APPLICATION_RDF_LDPATH;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
 
+import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.ParseException;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPatch;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.entity.BasicHttpEntity;
 import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.util.EntityUtils;
+import org.fcrepo.transform.http.TransformPipeline;
 import org.junit.Test;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.annotation.DirtiesContext.ClassMode;
@@ -126,6 +148,45 @@ public class FedoraTransformIT extends AbstractResourceIT {
 
     }
 
+    @Test
+    public void testLdpathWithDeluxeProgramFields() throws IOException {
+
+        final String pid = "testLdpathWithDeluxeProgramFields-" + randomUUID();
+        createObject(pid);
+        final HttpGet getLdpathProgramRequest
+                = new HttpGet(serverAddress + "/" + pid + "/fcr:transform/deluxe?fields=id,created&fields=type");
+        final HttpResponse response = client.execute(getLdpathProgramRequest);
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        final String content = EntityUtils.toString(response.getEntity());
+
+        final JsonNode rootNode = new ObjectMapper().readTree(new JsonFactory().createParser(content));
+
+        assertEquals(3, rootNode.get(0).size());
+        assertEquals(serverAddress + "/" + pid, rootNode.get(0).get("id").elements().next().asText());
+        assertNotNull(rootNode.get(0).get("created"));
+        assertNotNull(rootNode.get(0).get("type"));
+    }
+
+    @Test
+    public void testLdpathWithSeveralPrograms() throws IOException {
+
+        final String pid = "testLdpathWithSeveralPrograms-" + randomUUID();
+        createObject(pid);
+        final HttpGet getLdpathProgramRequest
+                = new HttpGet(serverAddress + "/" + pid + "/fcr:transform/default,deluxe");
+        final HttpResponse response = client.execute(getLdpathProgramRequest);
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        final String content = EntityUtils.toString(response.getEntity());
+
+        final JsonNode rootNode = new ObjectMapper().readTree(new JsonFactory().createParser(content));
+
+        assertEquals(2, rootNode.size());
+        assertEquals(serverAddress + "/" + pid,
+                rootNode.get("default").get(0).get("id").elements().next().asText());
+        assertNotNull(rootNode.get("deluxe").get(0).get("createdBy"));
+        assertNull(rootNode.get("default").get(0).get("createdBy"));
+    }
+
     @Test
     public void testLdpathWithProgramBody() throws ParseException, IOException {
 
@@ -177,4 +238,247 @@ public class FedoraTransformIT extends AbstractResourceIT {
                     putResponse.getStatusLine().getStatusCode());
         }
     }
+
+    @Test
+    public void testSparqlAgainstRepositoryIndex() throws IOException, InterruptedException {
+        final String pid = UUID.randomUUID().toString();
+        final HttpPut putObjectRequest = new HttpPut(serverAddress + "/" + pid);
+        putObjectRequest.setEntity(new StringEntity("<> <http://purl.org/dc/elements/1.1/title> \"" + pid + "\" ."));
+        putObjectRequest.setHeader("Content-type", "text/turtle");
+        try (final CloseableHttpResponse putResponse = (CloseableHttpResponse) client.execute(putObjectRequest)) {
+            assertEquals(CREATED.getStatusCode(), putResponse.getStatusLine().getStatusCode());
+        }
+        final String other = UUID.randomUUID().toString();
+        createObject(other);
+
+        // the index follows the repository in the background, so the new object appears in it eventually
+        final String query = "SELECT ?s WHERE { ?s <http://purl.org/dc/elements/1.1/title> \"" + pid + "\" }";
+        String content = "";
+        for (int attempt = 0; attempt < 50 && !content.contains(serverAddress + "/" + pid); attempt++) {
+            Thread.sleep(200);
+            final HttpPost postQueryRequest =
+                    new HttpPost(serverAddress + "/" + other + "/fcr:transform?scope=repository");
+            postQueryRequest.setEntity(new StringEntity(query));
+            postQueryRequest.setHeader("Content-Type", contentTypeSPARQLQuery);
+            postQueryRequest.setHeader("Accept", contentTypeTextCSV);
+            try (final CloseableHttpResponse response = (CloseableHttpResponse) client.execute(postQueryRequest)) {
+                assertEquals(OK.getStatusCode(), response.getStatusLine().getStatusCode());
+                content = EntityUtils.toString(response.getEntity());
+            }
+        }
+        assertTrue("Object not found in the repository index: " + content,
+                content.contains(serverAddress + "/" + pid));
+    }
+
+    @Test
+    public void testPipelineSpoolsChangedResources() throws IOException, InterruptedException {
+        final String pid = UUID.randomUUID().toString();
+        createObject(pid);
+
+        final Path spool = Paths.get(System.getProperty(TransformPipeline.SPOOL_PROPERTY));
+        final String id = "\"id\":\"" + serverAddress + "/" + pid + "\"";
+        boolean spooled = false;
+        for (int attempt = 0; attempt < 50 && !spooled; attempt++) {
+            Thread.sleep(200);
+            spooled = Files.exists(spool) && Files.readAllLines(spool, UTF_8).stream()
+                    .anyMatch(line -> line.contains(id) && line.contains("\"program\":\"default\""));
+        }
+        assertTrue("Changed object's output not spooled to " + spool, spooled);
+    }
+
+    @Test
+    public void testMaterializedViewFollowsResource() throws IOException {
+        final String pid = UUID.randomUUID().toString();
+        createObject(pid);
+
+        final String first = getTransform(pid, "default");
+        assertEquals("Materialized view differs from the transform", first, getTransform(pid, "default"));
+
+        final HttpPatch patchObjectRequest = new HttpPatch(serverAddress + "/" + pid);
+        patchObjectRequest.setEntity(new StringEntity(
+                "INSERT DATA { <> <http://purl.org/dc/elements/1.1/title> \"" + pid + "\" }"));
+        patchObjectRequest.setHeader("Content-type", "application/sparql-update");
+        try (final CloseableHttpResponse patchResponse = (CloseableHttpResponse) client.execute(patchObjectRequest)) {
+            assertEquals(NO_CONTENT.getStatusCode(), patchResponse.getStatusLine().getStatusCode());
+        }
+        assertTrue("Stale materialized view served", getTransform(pid, "default").contains(pid + "\"]"));
+    }
+
+    @Test
+    public void testStoredSparqlQuery() throws IOException {
+        final String pid = UUID.randomUUID().toString();
+        createObject(pid);
+
+        final HttpGet getQueryRequest = new HttpGet(serverAddress + "/" + pid + "/fcr:transform/sparql/default");
+        getQueryRequest.setHeader("Accept", contentTypeTextCSV);
+        try (final CloseableHttpResponse response = (CloseableHttpResponse) client.execute(getQueryRequest)) {
+            assertEquals(OK.getStatusCode(), response.getStatusLine().getStatusCode());
+            final String content = EntityUtils.toString(response.getEntity());
+            assertTrue(content.startsWith("subject,predicate,object"));
+            assertTrue(content.contains(serverAddress + "/" + pid));
+        }
+
+        final HttpGet getMissingRequest = new HttpGet(serverAddress + "/" + pid + "/fcr:transform/sparql/missing");
+        try (final CloseableHttpResponse response = (CloseableHttpResponse) client.execute(getMissingRequest)) {
+            assertEquals(BAD_REQUEST.getStatusCode(), response.getStatusLine().getStatusCode());
+        }
+    }
+
+    @Test
+    public void testStoredSparqlQueryWithParameters() throws IOException {
+        final String pid = UUID.randomUUID().toString();
+        createObject(pid);
+        final String type = "<http://www.w3.org/1999/02/22-rdf-syntax-ns#type>";
+
+        final HttpGet getQueryRequest = new HttpGet(serverAddress + "/" + pid +
+                "/fcr:transform/sparql/default?param.predicate=" + URLEncoder.encode(type, "UTF-8"));
+        getQueryRequest.setHeader("Accept", contentTypeTextCSV);
+        final String bound;
+        try (final CloseableHttpResponse response = (CloseableHttpResponse) client.execute(getQueryRequest)) {
+            assertEquals(OK.getStatusCode(), response.getStatusLine().getStatusCode());
+            bound = EntityUtils.toString(response.getEntity());
+            final String[] rows = bound.trim().split("\r?\n");
+            assertTrue(rows.length > 1);
+            for (int i = 1; i < rows.length; i++) {
+                assertTrue(rows[i].contains(",http://www.w3.org/1999/02/22-rdf-syntax-ns#type,"));
+            }
+        }
+
+        final HttpPost postFormRequest = new HttpPost(serverAddress + "/" + pid + "/fcr:transform/sparql/default");
+        postFormRequest.setHeader("Accept", contentTypeTextCSV);
+        postFormRequest.setEntity(new UrlEncodedFormEntity(asList(new BasicNameValuePair("param.predicate", type)),
+                UTF_8));
+        try (final CloseableHttpResponse response = (CloseableHttpResponse) client.execute(postFormRequest)) {
+            assertEquals(OK.getStatusCode(), response.getStatusLine().getStatusCode());
+            assertEquals(bound, EntityUtils.toString(response.getEntity()));
+        }
+
+        final HttpGet getUnknownRequest = new HttpGet(serverAddress + "/" + pid +
+                "/fcr:transform/sparql/default?param.title=" + URLEncoder.encode("\"a title\"", "UTF-8"));
+        try (final CloseableHttpResponse response = (CloseableHttpResponse) client.execute(getUnknownRequest)) {
+            assertEquals(BAD_REQUEST.getStatusCode(), response.getStatusLine().getStatusCode());
+        }
+    }
+
+    @Test
+    public void testPagedSparqlQuery() throws IOException {
+        final String pid = UUID.randomUUID().toString();
+        createObject(pid);
+        final String query = serverAddress + "/" + pid + "/fcr:transform/sparql/default";
+
+        final List<String> unpaged = csvRows(query);
+        final List<String> paged = new ArrayList<>();
+        String next = query + "?pageSize=3";
+        int pages = 0;
+        while (next != null) {
+            final HttpGet getPageRequest = new HttpGet(next);
+            getPageRequest.setHeader("Accept", contentTypeTextCSV);
+            try (final CloseableHttpResponse response = (CloseableHttpResponse) client.execute(getPageRequest)) {
+                assertEquals(OK.getStatusCode(), response.getStatusLine().getStatusCode());
+                final String[] rows = EntityUtils.toString(response.getEntity()).trim().split("\\r?\\n");
+                assertTrue(rows.length <= 4);
+                paged.addAll(asList(rows).subList(1, rows.length));
+                final Header link = response.getFirstHeader("Link");
+                next = link == null ? null : link.getValue().replaceAll("^<(.*)>.*rel=\"next\".*$", "$1");
+            }
+            pages++;
+        }
+        assertTrue(pages > 1);
+        Collections.sort(unpaged);
+        Collections.sort(paged);
+        assertEquals(unpaged, paged);
+    }
+
+    @Test
+    public void testPagedFormQueryContinuesWithGet() throws IOException {
+        final String pid = UUID.randomUUID().toString();
+        createObject(pid);
+        final String type = "<http://www.w3.org/1999/02/22-rdf-syntax-ns#type>";
+
+        final HttpPost postFormRequest = new HttpPost(serverAddress + "/" + pid +
+                "/fcr:transform/sparql/default?pageSize=1");
+        postFormRequest.setHeader("Accept", contentTypeTextCSV);
+        postFormRequest.setEntity(new UrlEncodedFormEntity(asList(new BasicNameValuePair("param.predicate", type)),
+                UTF_8));
+        final String next;
+        try (final CloseableHttpResponse response = (CloseableHttpResponse) client.execute(postFormRequest)) {
+            assertEquals(OK.getStatusCode(), response.getStatusLine().getStatusCode());
+            next = response.getFirstHeader("Link").getValue().replaceAll("^<(.*)>.*$", "$1");
+        }
+        // the next page is a GET, carrying the form's parameters
+        for (final String row : csvRows(next)) {
+            assertTrue(row.contains(",http://www.w3.org/1999/02/22-rdf-syntax-ns#type,"));
+        }
+
+        final HttpPost postQueryRequest = new HttpPost(serverAddress + "/" + pid + "/fcr:transform?pageSize=1");
+        postQueryRequest.setHeader("Content-Type", contentTypeSPARQLQuery);
+        postQueryRequest.setEntity(new StringEntity("SELECT ?s WHERE { ?s ?p ?o }"));
+        try (final CloseableHttpResponse response = (CloseableHttpResponse) client.execute(postQueryRequest)) {
+            assertEquals(BAD_REQUEST.getStatusCode(), response.getStatusLine().getStatusCode());
+        }
+    }
+
+    @Test
+    public void testPageOfChangedResource() throws IOException {
+        final String pid = UUID.randomUUID().toString();
+        createObject(pid);
+
+        final HttpGet getPageRequest = new HttpGet(serverAddress + "/" + pid +
+                "/fcr:transform/sparql/default?pageSize=1");
+        getPageRequest.setHeader("Accept", contentTypeTextCSV);
+        final String next;
+        try (final CloseableHttpResponse response = (CloseableHttpResponse) client.execute(getPageRequest)) {
+            assertEquals(OK.getStatusCode(), response.getStatusLine().getStatusCode());
+            next = response.getFirstHeader("Link").getValue().replaceAll("^<(.*)>.*$", "$1");
+        }
+
+        final HttpPatch patchObjectRequest = new HttpPatch(serverAddress + "/" + pid);
+        patchObjectRequest.setEntity(new StringEntity(
+                "INSERT DATA { <> <http://purl.org/dc/elements/1.1/title> \"changed\" }"));
+        patchObjectRequest.setHeader("Content-type", "application/sparql-update");
+        try (final CloseableHttpResponse response = (CloseableHttpResponse) client.execute(patchObjectRequest)) {
+            assertEquals(NO_CONTENT.getStatusCode(), response.getStatusLine().getStatusCode());
+        }
+
+        final HttpGet getNextRequest = new HttpGet(next);
+        getNextRequest.setHeader("Accept", contentTypeTextCSV);
+        try (final CloseableHttpResponse response = (CloseableHttpResponse) client.execute(getNextRequest)) {
+            assertEquals(CONFLICT.getStatusCode(), response.getStatusLine().getStatusCode());
+        }
+    }
+
+    private List<String> csvRows(final String uri) throws IOException {
+        final HttpGet getRequest = new HttpGet(uri);
+        getRequest.setHeader("Accept", contentTypeTextCSV);
+        try (final CloseableHttpResponse response = (CloseableHttpResponse) client.execute(getRequest)) {
+            assertEquals(OK.getStatusCode(), response.getStatusLine().getStatusCode());
+            final String[] rows = EntityUtils.toString(response.getEntity()).trim().split("\\r?\\n");
+            return new ArrayList<>(asList(rows).subList(1, rows.length));
+        }
+    }
+
+    @Test
+    public void testReadyAfterWarmUp() throws IOException, InterruptedException {
+        int status = 0;
+        for (int attempt = 0; attempt < 100 && status != OK.getStatusCode(); attempt++) {
+            final HttpGet getReadyRequest = new HttpGet(serverAddress + "/fcr:transform-ready");
+            try (final CloseableHttpResponse response = (CloseableHttpResponse) client.execute(getReadyRequest)) {
+                status = response.getStatusLine().getStatusCode();
+                if (status != OK.getStatusCode()) {
+                    assertEquals(SERVICE_UNAVAILABLE.getStatusCode(), status);
+                    assertNotNull(response.getFirstHeader("Retry-After"));
+                    Thread.sleep(200);
+                }
+            }
+        }
+        assertEquals("Transforms not ready after warm-up", OK.getStatusCode(), status);
+    }
+
+    private static String getTransform(final String pid, final String program) throws IOException {
+        final HttpGet getTransformRequest = new HttpGet(serverAddress + "/" + pid + "/fcr:transform/" + program);
+        try (final CloseableHttpResponse response = (CloseableHttpResponse) client.execute(getTransformRequest)) {
+            assertEquals(OK.getStatusCode(), response.getStatusLine().getStatusCode());
+            return EntityUtils.toString(response.getEntity());
+        }
+    }
 }
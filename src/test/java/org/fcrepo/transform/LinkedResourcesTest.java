@@ -0,0 +1,127 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform;
+
+import static com.hp.hpl.jena.graph.NodeFactory.createLiteral;
+import static com.hp.hpl.jena.graph.NodeFactory.createURI;
+import static com.hp.hpl.jena.graph.Triple.create;
+import static com.hp.hpl.jena.rdf.model.ModelFactory.createDefaultModel;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+
+/**
+ * <p>LinkedResourcesTest class.</p>
+ *
+ * @author agent
+ */
+public class LinkedResourcesTest {
+
+    private static final String REPOSITORY = "info:fedora/";
+
+    private static final Node TITLE = createURI("http://purl.org/dc/elements/1.1/title");
+
+    private final Map<String, List<Triple>> repository = new HashMap<>();
+
+    private final List<String> loads = new ArrayList<>();
+
+    private final ResourceLoader loader = new ResourceLoader() {
+
+        @Override
+        public boolean contains(final String uri) {
+            return uri.startsWith(REPOSITORY);
+        }
+
+        @Override
+        public Stream<Triple> load(final String uri) {
+            loads.add(uri);
+            return repository.getOrDefault(uri, new ArrayList<>()).stream();
+        }
+    };
+
+    private Model model;
+
+    @Before
+    public void setUp() {
+        for (final String resource : asList("a", "b", "c", "a/1")) {
+            repository.put(REPOSITORY + resource,
+                    asList(create(createURI(REPOSITORY + resource), TITLE, createLiteral(resource))));
+        }
+        model = createDefaultModel();
+    }
+
+    @Test
+    public void testLoadsReachedResourcesOnce() {
+        final LinkedResources resources = new LinkedResources(loader, model, REPOSITORY + "topic", 2, 10);
+        resources.reached(node("topic"), asList(node("a"), node("b"), model.createResource("http://example.org/x")));
+
+        resources.visit(node("a"));
+        resources.visit(node("a#fragment"));
+        resources.visit(node("c"));
+
+        assertEquals(asList(REPOSITORY + "a"), loads);
+        assertEquals(1, resources.loaded());
+        final Model linked = resources.visit(node("a"));
+        assertTrue(linked.contains(linked.createResource(REPOSITORY + "a"), null, "a"));
+        assertFalse(model.contains(model.createResource(REPOSITORY + "a"), null, "a"));
+        assertSame(model, resources.visit(node("c")));
+    }
+
+    @Test
+    public void testDepth() {
+        final LinkedResources resources = new LinkedResources(loader, model, REPOSITORY + "topic", 1, 10);
+        resources.reached(node("topic"), asList(node("a")));
+        resources.visit(node("a"));
+        resources.reached(node("a"), asList(node("a/1")));
+        resources.visit(node("a/1"));
+
+        assertEquals(asList(REPOSITORY + "a"), loads);
+    }
+
+    @Test
+    public void testFanout() {
+        final LinkedResources resources = new LinkedResources(loader, model, REPOSITORY + "topic", 2, 2);
+        resources.reached(node("topic"), asList(node("a"), node("b"), node("c")));
+        resources.visit(node("a"));
+        resources.visit(node("b"));
+        resources.visit(node("c"));
+
+        assertEquals(asList(REPOSITORY + "a", REPOSITORY + "b"), loads);
+        assertSame(model, resources.visit(node("c")));
+    }
+
+    private RDFNode node(final String path) {
+        return model.createResource(REPOSITORY + path);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform;
+
+import static com.hp.hpl.jena.graph.NodeFactory.createLiteral;
+import static com.hp.hpl.jena.graph.NodeFactory.createURI;
+import static com.hp.hpl.jena.graph.Triple.create;
+import static com.hp.hpl.jena.query.QueryExecutionFactory.create;
+import static java.util.stream.IntStream.range;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.fcrepo.transform.ResourceModel.toResourceModel;
+import static org.springframework.test.util.ReflectionTestUtils.getField;
+
+import java.io.File;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.QueryExecution;
+
+/**
+ * <p>ResourceModelTest class.</p>
+ *
+ * @author agent
+ */
+public class ResourceModelTest {
+
+    private static final Node SUBJECT = createURI("info:fedora/test");
+
+    private static final Node TITLE = createURI("http://purl.org/dc/elements/1.1/title");
+
+    @Test
+    public void testInMemory() {
+        try (final ResourceModel model = triples(10).collect(toResourceModel(100))) {
+            assertFalse(model.spilled());
+            assertEquals(10, model.model().size());
+        }
+    }
+
+    @Test
+    public void testSpill() {
+        final File directory;
+        try (final ResourceModel model = triples(250).collect(toResourceModel(100))) {
+            assertTrue(model.spilled());
+            assertEquals(250, model.model().size());
+
+            directory = (File) getField(model, "directory");
+            assertTrue(directory.isDirectory());
+
+            try (final QueryExecution qexec = create("SELECT (COUNT(?title) AS ?n) WHERE { <" + SUBJECT.getURI() +
+                    "> <" + TITLE.getURI() + "> ?title }", model.model())) {
+                assertEquals(250, qexec.execSelect().next().getLiteral("n").getInt());
+            }
+        }
+        assertFalse(directory.exists());
+    }
+
+    private static Stream<Triple> triples(final int count) {
+        return range(0, count).mapToObj(i -> create(SUBJECT, TITLE, createLiteral("title " + i)));
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform;
+
+import static com.hp.hpl.jena.datatypes.xsd.XSDDatatype.XSDdateTime;
+import static com.hp.hpl.jena.graph.NodeFactory.createLiteral;
+import static com.hp.hpl.jena.graph.NodeFactory.createURI;
+import static com.hp.hpl.jena.graph.Triple.create;
+import static com.hp.hpl.jena.rdf.model.ModelFactory.createDefaultModel;
+import static java.lang.Math.min;
+import static java.lang.management.ManagementFactory.getThreadMXBean;
+import static javax.ws.rs.core.MediaType.valueOf;
+import static org.apache.jena.riot.WebContent.contentTypeResultsJSON;
+import static org.apache.jena.riot.WebContent.contentTypeTextCSV;
+import static org.apache.jena.riot.WebContent.contentTypeTextTSV;
+import static org.fcrepo.kernel.api.RdfLexicon.CONTAINS;
+import static org.fcrepo.kernel.api.RdfLexicon.REPOSITORY_NAMESPACE;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.ws.rs.core.MediaType;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.fcrepo.kernel.api.rdf.DefaultRdfStream;
+import org.fcrepo.transform.http.responses.ResultSetStreamingOutput;
+import org.fcrepo.transform.transformations.LDPathTransform;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.sparql.core.DatasetImpl;
+
+/**
+ * Allocation-budget regression tests for the transform hot paths.
+ *
+ * <p>Each test runs an operation against a fixed fixture graph and fails when the bytes allocated by the
+ * running thread exceed a recorded budget. The budgets were recorded against the current dependency set with
+ * roughly 50% headroom; when a change legitimately moves a number, re-record it here in the same commit.</p>
+ *
+ * @author agent
+ */
+public class TransformAllocationTest {
+
+    private static final String SUBJECT = "http://localhost/rest/fixture";
+
+    private static final int CHILDREN = 200;
+
+    private static final int WARM_UP_RUNS = 50;
+
+    private static final int MEASURED_RUNS = 10;
+
+    /* Recorded budgets, in bytes per operation. */
+
+    private static final long LDPATH_DEFAULT_BUDGET = 220_000L;
+
+    private static final long LDPATH_DELUXE_BUDGET = 315_000L;
+
+    private static final long RESULTS_TSV_BUDGET = 205_000L;
+
+    private static final long RESULTS_CSV_BUDGET = 205_000L;
+
+    private static final long RESULTS_JSON_BUDGET = 2_000_000L;
+
+    private com.sun.management.ThreadMXBean threads;
+
+    @Before
+    public void setUp() {
+        assumeTrue("Thread allocation counters are not available on this JVM",
+                getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) getThreadMXBean();
+        assumeTrue("Thread allocation counters are not supported on this JVM",
+                threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @Test
+    public void testLdpathDefaultProgramAllocation() throws IOException {
+        // the program is compiled once, and only its application is measured
+        final LDPathTransform transform = new LDPathTransform(program("/ldpath/default/ldpath_program.txt"));
+        assertWithinBudget("LDPathTransform.apply (default program)", LDPATH_DEFAULT_BUDGET, () ->
+                transform.apply(fixtureStream()));
+    }
+
+    @Test
+    public void testLdpathDeluxeProgramAllocation() throws IOException {
+        // the program is compiled once, and only its application is measured
+        final LDPathTransform transform = new LDPathTransform(program("/ldpath/deluxe/ldpath_program.txt"));
+        assertWithinBudget("LDPathTransform.apply (deluxe program)", LDPATH_DELUXE_BUDGET, () ->
+                transform.apply(fixtureStream()));
+    }
+
+    @Test
+    public void testTsvResultsAllocation() {
+        assertWithinBudget("ResultSetStreamingOutput.writeTo (TSV)", RESULTS_TSV_BUDGET,
+                writeResults(valueOf(contentTypeTextTSV)));
+    }
+
+    @Test
+    public void testCsvResultsAllocation() {
+        assertWithinBudget("ResultSetStreamingOutput.writeTo (CSV)", RESULTS_CSV_BUDGET,
+                writeResults(valueOf(contentTypeTextCSV)));
+    }
+
+    @Test
+    public void testJsonResultsAllocation() {
+        assertWithinBudget("ResultSetStreamingOutput.writeTo (JSON)", RESULTS_JSON_BUDGET,
+                writeResults(valueOf(contentTypeResultsJSON)));
+    }
+
+    private Runnable writeResults(final MediaType mediaType) {
+        final Dataset dataset = new DatasetImpl(fixtureModel());
+        final ResultSetStreamingOutput output = new ResultSetStreamingOutput();
+        final OutputStream sink = new NullOutputStream();
+        return () -> {
+            try (final QueryExecution qexec =
+                    QueryExecutionFactory.create("SELECT ?s ?p ?o WHERE { ?s ?p ?o }", dataset)) {
+                final ResultSet resultSet = qexec.execSelect();
+                output.writeTo(resultSet, null, null, null, mediaType, null, sink);
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    /**
+     * Measure the smallest allocation of several runs, after warming up, so that a single GC-related or
+     * JIT-related outlier cannot fail the test.
+     */
+    private void assertWithinBudget(final String operation, final long budget, final Runnable runnable) {
+        for (int i = 0; i < WARM_UP_RUNS; i++) {
+            runnable.run();
+        }
+        final long threadId = Thread.currentThread().getId();
+        long allocated = Long.MAX_VALUE;
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            final long before = threads.getThreadAllocatedBytes(threadId);
+            runnable.run();
+            allocated = min(allocated, threads.getThreadAllocatedBytes(threadId) - before);
+        }
+        assertTrue(operation + " allocated " + allocated + " bytes, over its budget of " + budget + " bytes",
+                allocated <= budget);
+    }
+
+    private static String program(final String resource) throws IOException {
+        try (final InputStream stream = TransformAllocationTest.class.getResourceAsStream(resource)) {
+            return IOUtils.toString(stream);
+        }
+    }
+
+    private static DefaultRdfStream fixtureStream() {
+        return new DefaultRdfStream(createURI(SUBJECT), fixtureTriples().stream());
+    }
+
+    private static Model fixtureModel() {
+        final Model model = createDefaultModel();
+        fixtureTriples().forEach(t -> model.getGraph().add(t));
+        return model;
+    }
+
+    /**
+     * A container with server-managed properties, typed as the repository types them, a few descriptive properties
+     * and a fixed set of children.
+     */
+    private static List<Triple> fixtureTriples() {
+        final Node subject = createURI(SUBJECT);
+        final List<Triple> triples = new ArrayList<>();
+        triples.add(create(subject, createURI("http://purl.org/dc/elements/1.1/title"),
+                createLiteral("Fixture title")));
+        triples.add(create(subject, createURI("http://purl.org/dc/elements/1.1/description"),
+                createLiteral("A fixed resource used to measure allocation")));
+        triples.add(create(subject, createURI(REPOSITORY_NAMESPACE + "created"),
+                createLiteral("2016-01-01T00:00:00.000Z", XSDdateTime)));
+        triples.add(create(subject, createURI(REPOSITORY_NAMESPACE + "lastModified"),
+                createLiteral("2016-01-02T00:00:00.000Z", XSDdateTime)));
+        triples.add(create(subject, createURI(REPOSITORY_NAMESPACE + "hasParent"),
+                createURI("http://localhost/rest/")));
+        triples.add(create(subject, createURI("http://www.w3.org/1999/02/22-rdf-syntax-ns#type"),
+                createURI(REPOSITORY_NAMESPACE + "Container")));
+        for (int i = 0; i < CHILDREN; i++) {
+            triples.add(create(subject, CONTAINS.asNode(), createURI(SUBJECT + "/child-" + i)));
+        }
+        return triples;
+    }
+}
@@ -21,18 +21,19 @@ import org.fcrepo.transform.transformations.LDPathTransform;
 import org.fcrepo.transform.transformations.SparqlQueryTransform;
 import org.junit.Before;
 import org.junit.Test;
-import org.mockito.Mock;
 
 import javax.ws.rs.core.MediaType;
 
-import java.io.InputStream;
 import java.util.Collection;
 import java.util.Map;
 
+import static org.apache.commons.io.IOUtils.toInputStream;
 import static org.apache.jena.riot.WebContent.contentTypeSPARQLQuery;
+import static org.fcrepo.transform.TransformationFactory.digest;
 import static org.fcrepo.transform.transformations.LDPathTransform.APPLICATION_RDF_LDPATH;
 import static org.junit.Assert.assertEquals;
-import static org.mockito.MockitoAnnotations.initMocks;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
 
 /**
  * <p>TransformationFactoryTest class.</p>
@@ -41,14 +42,14 @@ import static org.mockito.MockitoAnnotations.initMocks;
  */
 public class TransformationFactoryTest {
 
-    @Mock
-    InputStream mockInputStream;
+    private static final String PROGRAM = "title = dc:title :: xsd:string ;";
+
+    private static final String QUERY = "SELECT ?s WHERE { ?s ?p ?o }";
 
     TransformationFactory transformationFactory;
 
     @Before
     public void setUp() {
-        initMocks(this);
         transformationFactory = new TransformationFactory();
     }
 
@@ -56,9 +57,9 @@ public class TransformationFactoryTest {
     public void testLDPathCreation() {
 
         final Transformation<Map<String, Collection<Object>>> transform =
-            transformationFactory.getTransform(MediaType.valueOf(APPLICATION_RDF_LDPATH), mockInputStream);
+            transformationFactory.getTransform(MediaType.valueOf(APPLICATION_RDF_LDPATH), toInputStream(PROGRAM));
 
-        assertEquals(new LDPathTransform(mockInputStream), transform);
+        assertEquals(new LDPathTransform(toInputStream(PROGRAM)), transform);
 
     }
 
@@ -66,16 +67,32 @@ public class TransformationFactoryTest {
     public void testSparqlCreation() {
 
         final Transformation<Map<String, Collection<Object>>> transform =
-            transformationFactory.getTransform(MediaType.valueOf(contentTypeSPARQLQuery), mockInputStream);
-        assertEquals(new SparqlQueryTransform(mockInputStream), transform);
+            transformationFactory.getTransform(MediaType.valueOf(contentTypeSPARQLQuery), toInputStream(QUERY));
+        assertEquals(new SparqlQueryTransform(toInputStream(QUERY)), transform);
+
+    }
 
+    @Test
+    public void testCompiledTransformsAreShared() {
+        final Transformation<?> transform =
+            transformationFactory.getTransform(MediaType.valueOf(APPLICATION_RDF_LDPATH), toInputStream(PROGRAM));
+        assertSame(transform, new TransformationFactory()
+                .getTransform(MediaType.valueOf(APPLICATION_RDF_LDPATH), toInputStream(PROGRAM)));
+        assertNotEquals(transform.digest(), transformationFactory
+                .getTransform(MediaType.valueOf(APPLICATION_RDF_LDPATH), toInputStream(PROGRAM + "\n")).digest());
+    }
+
+    @Test
+    public void testDigestCoversMediaType() {
+        assertNotEquals(digest(APPLICATION_RDF_LDPATH, QUERY), digest(contentTypeSPARQLQuery, QUERY));
+        assertEquals(digest(contentTypeSPARQLQuery, QUERY), new SparqlQueryTransform(QUERY).digest());
     }
 
 
     @Test(expected = UnsupportedOperationException.class)
     public void testOtherCreation() {
 
-        transformationFactory.getTransform(MediaType.valueOf("some/mime-type"), mockInputStream);
+        transformationFactory.getTransform(MediaType.valueOf("some/mime-type"), toInputStream(PROGRAM));
 
     }
 }
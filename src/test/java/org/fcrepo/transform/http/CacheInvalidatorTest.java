@@ -0,0 +1,123 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.http;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static java.util.EnumSet.of;
+import static org.fcrepo.kernel.api.RequiredRdfContext.PROPERTIES;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.fcrepo.kernel.api.observer.FedoraEvent;
+import org.fcrepo.kernel.api.rdf.DefaultRdfStream;
+import org.fcrepo.transform.CacheInvalidation;
+import org.fcrepo.transform.TransformCache;
+import org.junit.Test;
+
+import com.hp.hpl.jena.graph.NodeFactory;
+
+/**
+ * <p>CacheInvalidatorTest class.</p>
+ *
+ * @author agent
+ */
+public class CacheInvalidatorTest {
+
+    private final AtomicInteger fetches = new AtomicInteger();
+
+    private CacheInvalidator node(final CacheInvalidation invalidation, final TransformCache... caches) {
+        final CacheInvalidator invalidator = new CacheInvalidator();
+        setField(invalidator, "invalidation", invalidation);
+        setField(invalidator, "caches", asList(caches));
+        invalidator.start();
+        return invalidator;
+    }
+
+    private void load(final ResourceGraphCache cache) {
+        cache.model("/a", "http://localhost/rest/a", of(PROPERTIES), "user", "etag", () -> {
+            fetches.incrementAndGet();
+            return new DefaultRdfStream(NodeFactory.createURI("http://localhost/rest/a"), Stream.empty());
+        }).close();
+    }
+
+    private static FedoraEvent event(final String path) {
+        final FedoraEvent event = mock(FedoraEvent.class);
+        when(event.getPath()).thenReturn(path);
+        return event;
+    }
+
+    @Test
+    public void testChangeOnOneNodeInvalidatesEveryNode() {
+        final InMemoryCacheCluster cluster = new InMemoryCacheCluster();
+        final ResourceGraphCache first = new ResourceGraphCache(1000);
+        final ResourceGraphCache second = new ResourceGraphCache(1000);
+        final CacheInvalidator firstNode = node(cluster.node(), first);
+        node(cluster.node(), second);
+        load(first);
+        load(second);
+
+        firstNode.onEvent(event("/a/jcr:content"));
+
+        load(first);
+        load(second);
+        assertEquals(4, fetches.get());
+    }
+
+    @Test
+    public void testLocalInvalidationReachesThisNodeOnly() {
+        final ResourceGraphCache first = new ResourceGraphCache(1000);
+        final ResourceGraphCache second = new ResourceGraphCache(1000);
+        final CacheInvalidator firstNode = node(new LocalCacheInvalidation(), first);
+        node(new LocalCacheInvalidation(), second);
+        load(first);
+        load(second);
+
+        firstNode.onEvent(event("/a"));
+
+        load(first);
+        load(second);
+        assertEquals(3, fetches.get());
+    }
+
+    @Test
+    public void testFailingCacheDoesNotStopInvalidation() {
+        final TransformCache failing = mock(TransformCache.class);
+        final TransformCache cache = mock(TransformCache.class);
+        doThrow(IllegalStateException.class).when(failing).invalidate("/a");
+        node(new LocalCacheInvalidation(), failing, cache).onEvent(event("/a"));
+        verify(cache).invalidate("/a");
+    }
+
+    @Test
+    public void testDefaultsToLocalInvalidation() {
+        final TransformCache cache = mock(TransformCache.class);
+        final CacheInvalidator invalidator = new CacheInvalidator();
+        setField(invalidator, "caches", singletonList(cache));
+        invalidator.start();
+        invalidator.onEvent(event("/a"));
+        verify(cache).invalidate("/a");
+    }
+}
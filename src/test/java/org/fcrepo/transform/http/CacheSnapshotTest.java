@@ -0,0 +1,190 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.http;
+
+import static com.hp.hpl.jena.graph.NodeFactory.createLiteral;
+import static com.hp.hpl.jena.graph.NodeFactory.createURI;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.attribute.PosixFilePermissions.fromString;
+import static java.util.EnumSet.of;
+import static javax.ws.rs.core.MediaType.valueOf;
+import static org.apache.commons.io.IOUtils.toInputStream;
+import static org.fcrepo.http.commons.test.util.TestHelpers.mockSession;
+import static org.fcrepo.kernel.api.RequiredRdfContext.PROPERTIES;
+import static org.fcrepo.kernel.api.RequiredRdfContext.SERVER_MANAGED;
+import static org.fcrepo.transform.transformations.LDPathTransform.APPLICATION_RDF_LDPATH;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import javax.jcr.Session;
+
+import org.apache.commons.io.IOUtils;
+import org.fcrepo.kernel.api.identifiers.IdentifierConverter;
+import org.fcrepo.kernel.api.rdf.DefaultRdfStream;
+import org.fcrepo.kernel.api.services.NodeService;
+import org.fcrepo.kernel.modeshape.FedoraResourceImpl;
+import org.fcrepo.transform.ResourceModel;
+import org.fcrepo.transform.TransformationFactory;
+import org.fcrepo.transform.UserSessions;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+
+/**
+ * <p>CacheSnapshotTest class.</p>
+ *
+ * @author agent
+ */
+public class CacheSnapshotTest {
+
+    private static final Node SUBJECT = createURI("http://localhost/rest/a");
+
+    private static final String PROGRAM = "snapshotTitle = dc:title :: xsd:string ;";
+
+    private static final Node TITLE = createURI("http://purl.org/dc/elements/1.1/title");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock
+    private UserSessions userSessions;
+
+    @Mock
+    private NodeService nodeService;
+
+    @Mock
+    private FedoraResourceImpl resource;
+
+    @Mock
+    private javax.jcr.Node node;
+
+    private Session session;
+
+    @Before
+    public void setUp() {
+        initMocks(this);
+        session = mockSession(new FedoraTransform("a"));
+        when(session.getUserID()).thenReturn("user");
+        when(userSessions.login("user")).thenReturn(session);
+        when(nodeService.find(session, "/a")).thenReturn(resource);
+        when(resource.getNode()).thenReturn(node);
+        when(resource.getPath()).thenReturn("/a");
+        when(resource.getEtagValue()).thenReturn("etag");
+    }
+
+    private CacheSnapshot snapshot(final Path file, final ResourceGraphCache graphCache) {
+        final CacheSnapshot snapshot = new CacheSnapshot(file, 300);
+        setField(snapshot, "graphCache", graphCache);
+        setField(snapshot, "userSessions", userSessions);
+        setField(snapshot, "nodeService", nodeService);
+        return snapshot;
+    }
+
+    private Path saved() {
+        final Path file = folder.getRoot().toPath().resolve("snapshot.gz");
+        final ResourceGraphCache before = new ResourceGraphCache(1000);
+        before.model("/a", SUBJECT.getURI(), of(PROPERTIES, SERVER_MANAGED), "user", "etag", () ->
+                new DefaultRdfStream(SUBJECT, Stream.of(new Triple(SUBJECT, TITLE,
+                        createLiteral("a \"quoted\" title"))))).close();
+        new TransformationFactory().getTransform(valueOf(APPLICATION_RDF_LDPATH), toInputStream(PROGRAM));
+        snapshot(file, before).save();
+        return file;
+    }
+
+    @Test
+    public void testSnapshotHoldsNoTriples() throws IOException {
+        try (final InputStream in = new GZIPInputStream(Files.newInputStream(saved()))) {
+            final String snapshot = IOUtils.toString(in, UTF_8);
+            assertTrue(snapshot.contains("\"path\":\"/a\""));
+            assertFalse(snapshot.contains("quoted"));
+            assertFalse(snapshot.contains("etag"));
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testGraphsAreFetchedAgainAsTheirUsers() {
+        when(resource.getTriples(any(IdentifierConverter.class), eq(PROPERTIES))).thenReturn(
+                new DefaultRdfStream(SUBJECT, Stream.of(new Triple(SUBJECT, TITLE, createLiteral("current title")))));
+        when(resource.getTriples(any(IdentifierConverter.class), eq(SERVER_MANAGED))).thenReturn(
+                new DefaultRdfStream(SUBJECT, Stream.empty()));
+        final Path file = saved();
+
+        final ResourceGraphCache after = new ResourceGraphCache(1000);
+        snapshot(file, after).restore();
+        try (final ResourceModel model = after.model("/a", SUBJECT.getURI(), of(PROPERTIES, SERVER_MANAGED), "user",
+                "etag", () -> {
+                    throw new AssertionError("Restored graph not used");
+                })) {
+            assertEquals(1, model.model().size());
+            assertTrue(model.model().getGraph().contains(SUBJECT, TITLE, createLiteral("current title")));
+        }
+        verify(userSessions).login("user");
+        verify(session).logout();
+        assertTrue(TransformationFactory.compiledPrograms().stream()
+                .anyMatch(program -> program.getValue().equals(PROGRAM)));
+    }
+
+    @Test
+    public void testGraphsAreNotRestoredWithoutUserSessions() {
+        final Path file = saved();
+        final ResourceGraphCache after = new ResourceGraphCache(1000);
+        final CacheSnapshot snapshot = snapshot(file, after);
+        setField(snapshot, "userSessions", null);
+        snapshot.restore();
+        assertTrue(after.graphs().isEmpty());
+        verify(nodeService, never()).find(any(Session.class), any(String.class));
+    }
+
+    @Test
+    public void testSnapshotIsOwnerOnly() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("snapshot.gz");
+        assumeTrue(Files.getFileAttributeView(folder.getRoot().toPath(), PosixFileAttributeView.class) != null);
+        snapshot(file, new ResourceGraphCache(1000)).save();
+        assertEquals(fromString("rw-------"), Files.getPosixFilePermissions(file));
+    }
+
+    @Test
+    public void testNoSnapshot() {
+        final ResourceGraphCache graphCache = new ResourceGraphCache(1000);
+        snapshot(folder.getRoot().toPath().resolve("missing.gz"), graphCache).restore();
+        assertTrue(graphCache.graphs().isEmpty());
+    }
+}
@@ -17,7 +17,9 @@
  */
 package org.fcrepo.transform.http;
 
+import static com.hp.hpl.jena.graph.NodeFactory.createLiteral;
 import static com.hp.hpl.jena.graph.NodeFactory.createURI;
+import static java.util.Arrays.asList;
 import static java.util.stream.Stream.empty;
 import static org.apache.jena.riot.WebContent.contentTypeSPARQLQuery;
 import static org.fcrepo.kernel.api.RequiredRdfContext.LDP_CONTAINMENT;
@@ -26,10 +28,18 @@ import static org.fcrepo.kernel.api.RequiredRdfContext.PROPERTIES;
 import static org.fcrepo.kernel.api.RequiredRdfContext.SERVER_MANAGED;
 import static org.fcrepo.http.commons.test.util.TestHelpers.getUriInfoImpl;
 import static org.fcrepo.http.commons.test.util.TestHelpers.mockSession;
+import static org.fcrepo.transform.transformations.SparqlQueryTransform.QUERY_FOLDER;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
@@ -37,23 +47,41 @@ import static org.springframework.test.util.ReflectionTestUtils.setField;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
 
 import javax.jcr.Node;
 import javax.jcr.Session;
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
 
-import org.fcrepo.kernel.api.RdfStream;
+import org.fcrepo.http.commons.domain.MultiPrefer;
 import org.fcrepo.kernel.api.identifiers.IdentifierConverter;
+import org.fcrepo.kernel.api.models.FedoraBinary;
+import org.fcrepo.kernel.api.models.FedoraResource;
 import org.fcrepo.kernel.api.rdf.DefaultRdfStream;
 import org.fcrepo.kernel.api.services.NodeService;
 import org.fcrepo.kernel.modeshape.FedoraResourceImpl;
+import org.fcrepo.transform.FetchPlan;
+import org.fcrepo.transform.ResourceLoader;
+import org.fcrepo.transform.TransformNotFoundException;
 import org.fcrepo.transform.Transformation;
 import org.fcrepo.transform.TransformationFactory;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.Resource;
+
 /**
  * <p>FedoraTransformTest class.</p>
  *
@@ -82,6 +110,9 @@ public class FedoraTransformTest {
     @Mock
     Transformation<Object> mockTransform;
 
+    @Mock
+    private AsyncResponse mockAsyncResponse;
+
     @Before
     public void setUp() {
         initMocks(this);
@@ -89,10 +120,11 @@ public class FedoraTransformTest {
         setField(testObj, "nodeService", mockNodeService);
         setField(testObj, "transformationFactory", mockTransformationFactory);
 
-        this.uriInfo = getUriInfoImpl();
-        setField(testObj, "uriInfo", uriInfo);
         mockSession = mockSession(testObj);
         setField(testObj, "session", mockSession);
+        this.uriInfo = getUriInfoImpl();
+        when(uriInfo.getQueryParameters()).thenReturn(new MultivaluedHashMap<>());
+        setField(testObj, "uriInfo", uriInfo);
 
         when(mockResource.getNode()).thenReturn(mockNode);
         when(mockResource.getPath()).thenReturn("/testObject");
@@ -122,11 +154,146 @@ public class FedoraTransformTest {
 
         when(mockTransformationFactory.getTransform(MediaType.valueOf(contentTypeSPARQLQuery), query)).thenReturn(
                 mockTransform);
+        when(mockTransform.fetchPlan()).thenReturn(FetchPlan.ALL);
+        when(mockTransform.withResources(any(ResourceLoader.class))).thenReturn(mockTransform);
 
-        testObj.evaluateTransform(MediaType.valueOf(contentTypeSPARQLQuery), query);
+        testObj.evaluateTransform(MediaType.valueOf(contentTypeSPARQLQuery), query, mockAsyncResponse);
 
-        verify(mockTransform).apply(any(RdfStream.class));
+        verify(mockTransform).evaluate(any(Model.class), any());
+        verify(mockAsyncResponse).resume(any(Response.class));
     }
 
+    @Test
+    public void testEvaluateTransformSkipsUnreadContexts() {
+        // inside a request the preference is injected even when the client sent no Prefer header
+        setField(testObj, "prefer", mock(MultiPrefer.class));
+        setField(testObj, "headers", mock(HttpHeaders.class));
+        when(mockResource.getTriples(any(IdentifierConverter.class), eq(PROPERTIES)))
+            .thenReturn(new DefaultRdfStream(createURI("abc"), empty()));
+        when(mockResource.getTriples(any(IdentifierConverter.class), eq(LDP_MEMBERSHIP)))
+            .thenReturn(new DefaultRdfStream(createURI("abc"), empty()));
+
+        final InputStream query = new ByteArrayInputStream("title = dc:title :: xsd:string ;".getBytes());
+        when(mockTransformationFactory.getTransform(MediaType.valueOf(contentTypeSPARQLQuery), query)).thenReturn(
+                mockTransform);
+        when(mockTransform.fetchPlan()).thenReturn(FetchPlan.of(asList("http://purl.org/dc/elements/1.1/title")));
+        when(mockTransform.withResources(any(ResourceLoader.class))).thenReturn(mockTransform);
+
+        testObj.evaluateTransform(MediaType.valueOf(contentTypeSPARQLQuery), query, mockAsyncResponse);
+
+        verify(mockTransform).evaluate(any(Model.class), any());
+        verify(mockResource, never()).getTriples(any(IdentifierConverter.class), eq(LDP_CONTAINMENT));
+        verify(mockResource, never()).getTriples(any(IdentifierConverter.class), eq(SERVER_MANAGED));
+    }
+
+    @Test
+    public void testEvaluateTransformReusesCachedGraph() {
+        setField(testObj, "graphCache", new ResourceGraphCache(1000));
+        setField(testObj, "headers", mock(HttpHeaders.class));
+        when(mockResource.getEtagValue()).thenReturn("etag");
+        when(mockResource.getTriples(any(IdentifierConverter.class), eq(PROPERTIES)))
+            .thenAnswer(invocation -> new DefaultRdfStream(createURI("abc"), empty()));
+        when(mockResource.getTriples(any(IdentifierConverter.class), eq(LDP_MEMBERSHIP)))
+            .thenAnswer(invocation -> new DefaultRdfStream(createURI("abc"), empty()));
+        when(mockTransformationFactory.getTransform(eq(MediaType.valueOf(contentTypeSPARQLQuery)),
+                any(InputStream.class))).thenReturn(mockTransform);
+        when(mockTransform.fetchPlan()).thenReturn(FetchPlan.of(asList("http://purl.org/dc/elements/1.1/title")));
+        when(mockTransform.withResources(any(ResourceLoader.class))).thenReturn(mockTransform);
+
+        testObj.evaluateTransform(MediaType.valueOf(contentTypeSPARQLQuery), new ByteArrayInputStream(new byte[0]),
+                mockAsyncResponse);
+        testObj.evaluateTransform(MediaType.valueOf(contentTypeSPARQLQuery), new ByteArrayInputStream(new byte[0]),
+                mockAsyncResponse);
+
+        verify(mockTransform, times(2)).evaluate(any(Model.class), any());
+        // membership triples are fetched every time, the resource's own triples once
+        verify(mockResource, times(1)).getTriples(any(IdentifierConverter.class), eq(PROPERTIES));
+        verify(mockResource, times(2)).getTriples(any(IdentifierConverter.class), eq(LDP_MEMBERSHIP));
+    }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testViewDoesNotDependOnMembership() throws Exception {
+        final String title = "http://purl.org/dc/elements/1.1/title";
+        final TransformViews views = mock(TransformViews.class);
+        final FedoraBinary program = mock(FedoraBinary.class);
+        setField(testObj, "transformViews", views);
+        when(views.enabled()).thenReturn(true);
+        when(views.program(mockResource, mockSession, "default")).thenReturn(program);
+        when(program.getContent()).thenAnswer(invocation -> new ByteArrayInputStream(
+                ("title = <" + title + "> :: xsd:string ;").getBytes()));
+        when(program.getEtagValue()).thenReturn("program");
+        when(mockResource.getEtagValue()).thenReturn("etag");
+        when(mockResource.getTriples(any(IdentifierConverter.class), eq(PROPERTIES)))
+            .thenAnswer(invocation -> new DefaultRdfStream(createURI("abc"), empty()));
+        // membership triples are determined by other resources, so they change while the resource's ETag does not
+        final AtomicReference<String> member = new AtomicReference<>("first member");
+        when(mockResource.getTriples(any(IdentifierConverter.class), eq(LDP_MEMBERSHIP))).thenAnswer(invocation -> {
+            final com.hp.hpl.jena.graph.Node topic = ((IdentifierConverter<Resource, FedoraResource>)
+                    invocation.getArguments()[0]).reverse().convert(mockResource).asNode();
+            return new DefaultRdfStream(topic, Stream.of(Triple.create(topic, createURI(title),
+                    createLiteral(member.get()))));
+        });
+
+        testObj.evaluateLdpathProgram("default", null, mockAsyncResponse);
+        member.set("second member");
+        testObj.evaluateLdpathProgram("default", null, mockAsyncResponse);
+
+        final ArgumentCaptor<byte[]> outputs = ArgumentCaptor.forClass(byte[].class);
+        verify(views, times(2)).write(eq("/testObject"), anyString(), eq("default"), any(), eq("etag program"),
+                outputs.capture());
+        // a view stored in the first state is still what the transform computes in the second
+        assertArrayEquals(outputs.getAllValues().get(0), outputs.getAllValues().get(1));
+        assertFalse(new String(outputs.getAllValues().get(0)).contains("first member"));
+    }
+
+    @Test
+    public void testEvaluateStoredQuery() {
+        when(mockResource.getTriples(any(IdentifierConverter.class), eq(PROPERTIES)))
+            .thenReturn(new DefaultRdfStream(createURI("abc"), empty()));
+        when(mockResource.getTriples(any(IdentifierConverter.class), eq(LDP_MEMBERSHIP)))
+            .thenReturn(new DefaultRdfStream(createURI("abc"), empty()));
+        final FedoraResource mockFolder = mock(FedoraResource.class);
+        final FedoraBinary mockQuery = mock(FedoraBinary.class);
+        when(mockNodeService.exists(mockSession, QUERY_FOLDER + "titles")).thenReturn(true);
+        when(mockNodeService.find(mockSession, QUERY_FOLDER.substring(0, QUERY_FOLDER.length() - 1)))
+            .thenReturn(mockFolder);
+        when(mockFolder.getChildren()).thenReturn(Stream.of(mockQuery));
+        when(mockQuery.getPath()).thenReturn(QUERY_FOLDER + "titles");
+        when(mockQuery.getContent()).thenReturn(new ByteArrayInputStream(
+                "SELECT ?title WHERE { ?s <http://purl.org/dc/elements/1.1/title> ?title }".getBytes()));
+
+        testObj.evaluateStoredQuery("titles", mockAsyncResponse);
+
+        final ArgumentCaptor<Response> response = ArgumentCaptor.forClass(Response.class);
+        verify(mockAsyncResponse).resume(response.capture());
+        assertTrue(response.getValue().getEntity() instanceof QueryExecution);
+        verify(mockResource, never()).getTriples(any(IdentifierConverter.class), eq(LDP_CONTAINMENT));
+    }
+
+    @Test
+    public void testEvaluateMissingStoredQuery() {
+        testObj.evaluateStoredQuery("missing", mockAsyncResponse);
+
+        verify(mockAsyncResponse).resume(any(TransformNotFoundException.class));
+    }
+
+    @Test
+    public void testEvaluateStoredQueryWithUnknownParameter() {
+        final FedoraResource mockFolder = mock(FedoraResource.class);
+        final FedoraBinary mockQuery = mock(FedoraBinary.class);
+        when(mockNodeService.exists(mockSession, QUERY_FOLDER + "titles")).thenReturn(true);
+        when(mockNodeService.find(mockSession, QUERY_FOLDER.substring(0, QUERY_FOLDER.length() - 1)))
+            .thenReturn(mockFolder);
+        when(mockFolder.getChildren()).thenReturn(Stream.of(mockQuery));
+        when(mockQuery.getPath()).thenReturn(QUERY_FOLDER + "titles");
+        when(mockQuery.getContent()).thenReturn(new ByteArrayInputStream(
+                "SELECT ?title WHERE { ?s <http://purl.org/dc/elements/1.1/title> ?title }".getBytes()));
+        final MultivaluedHashMap<String, String> form = new MultivaluedHashMap<>();
+        form.putSingle("param.creator", "<http://example.org/someone>");
+
+        testObj.evaluateStoredQuery("titles", form, mockAsyncResponse);
+
+        verify(mockAsyncResponse).resume(any(BadRequestException.class));
+    }
 }
@@ -0,0 +1,70 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.http;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * <p>NdjsonSpoolTest class.</p>
+ *
+ * @author agent
+ */
+public class NdjsonSpoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRecordsAreAppendedOnePerLine() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("spool/out.ndjson");
+        final NdjsonSpool testObj = new NdjsonSpool(file);
+        testObj.write("http://localhost/a", "default", singletonList(singletonMap("title", singletonList("A"))));
+        testObj.delete("http://localhost/b");
+        new NdjsonSpool(file).write("http://localhost/c", "deluxe", singletonList(singletonMap("id", "c")));
+        testObj.update("http://localhost/a", "default", singletonMap("title", singletonMap("set", null)));
+
+        final List<String> lines = Files.readAllLines(file, UTF_8);
+        assertEquals(4, lines.size());
+        final ObjectMapper mapper = new ObjectMapper();
+        final JsonNode first = mapper.readTree(lines.get(0));
+        assertEquals("http://localhost/a", first.get("id").asText());
+        assertEquals("default", first.get("program").asText());
+        assertEquals("A", first.get("output").get(0).get("title").get(0).asText());
+        final JsonNode second = mapper.readTree(lines.get(1));
+        assertEquals("http://localhost/b", second.get("id").asText());
+        assertTrue(second.get("deleted").asBoolean());
+        assertEquals("deluxe", mapper.readTree(lines.get(2)).get("program").asText());
+        assertTrue(mapper.readTree(lines.get(3)).get("delta").get("title").get("set").isNull());
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.http;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * <p>OutputDeltasTest class.</p>
+ *
+ * @author agent
+ */
+public class OutputDeltasTest {
+
+    private static final String URI = "http://localhost/a";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private OutputDeltas testObj;
+
+    private final Map<String, Collection<Object>> document = new HashMap<>();
+
+    @Before
+    public void setUp() {
+        testObj = new OutputDeltas(folder.getRoot().toPath());
+        document.put("id", singletonList(URI));
+        document.put("title", singletonList("A"));
+        document.put("last_modified", singletonList("2016-01-01T00:00:00Z"));
+    }
+
+    @Test
+    public void testFirstOutputSetsEveryField() throws IOException {
+        final Map<String, Object> delta = testObj.delta(URI, "default", document).fields();
+        assertEquals(3, delta.size());
+        assertEquals(singletonMap("set", singletonList("A")), delta.get("title"));
+    }
+
+    @Test
+    public void testUnchangedOutputIsEmpty() throws IOException {
+        send("default");
+        assertTrue(testObj.delta(URI, "default", new HashMap<>(document)).fields().isEmpty());
+    }
+
+    @Test
+    public void testOnlyChangedFieldsAreSent() throws IOException {
+        send("default");
+        document.put("last_modified", singletonList("2016-01-02T00:00:00Z"));
+        document.remove("title");
+        document.put("subject", asList("x", "y"));
+        final Map<String, Object> delta = testObj.delta(URI, "default", document).fields();
+        assertEquals(3, delta.size());
+        assertEquals(singletonMap("set", singletonList("2016-01-02T00:00:00Z")), delta.get("last_modified"));
+        assertEquals(singletonMap("set", null), delta.get("title"));
+        assertEquals(singletonMap("set", asList("x", "y")), delta.get("subject"));
+    }
+
+    @Test
+    public void testUncommittedDeltaIsComputedAgain() throws IOException {
+        send("default");
+        document.put("title", singletonList("B"));
+        testObj.delta(URI, "default", document);
+        document.put("last_modified", singletonList("2016-01-02T00:00:00Z"));
+        // the title's change was never sent, so it is still part of the delta
+        assertEquals(2, testObj.delta(URI, "default", document).fields().size());
+    }
+
+    @Test
+    public void testProgramsAndForgottenResourcesStartOver() throws IOException {
+        send("default");
+        assertEquals(3, testObj.delta(URI, "deluxe", document).fields().size());
+        testObj.forget(URI, asList("default", "deluxe"));
+        assertEquals(3, testObj.delta(URI, "default", document).fields().size());
+    }
+
+    private void send(final String program) throws IOException {
+        testObj.commit(URI, program, testObj.delta(URI, program, document).hashes());
+    }
+}
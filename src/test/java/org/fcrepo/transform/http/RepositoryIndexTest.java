@@ -0,0 +1,127 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.http;
+
+import static com.hp.hpl.jena.graph.NodeFactory.createLiteral;
+import static com.hp.hpl.jena.graph.NodeFactory.createURI;
+import static com.hp.hpl.jena.graph.Triple.create;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.util.ReflectionTestUtils.getField;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import javax.ws.rs.core.SecurityContext;
+
+import org.fcrepo.kernel.api.observer.FedoraEvent;
+import org.fcrepo.transform.http.RepositoryIndex.Results;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.ResultSetFormatter;
+import com.hp.hpl.jena.tdb.TDBFactory;
+
+/**
+ * <p>RepositoryIndexTest class.</p>
+ *
+ * @author agent
+ */
+public class RepositoryIndexTest {
+
+    private RepositoryIndex testObj;
+
+    private Dataset dataset;
+
+    @Before
+    public void setUp() {
+        testObj = new RepositoryIndex();
+        dataset = TDBFactory.createDataset();
+        setField(testObj, "dataset", dataset);
+    }
+
+    @Test
+    public void testOnlyAdministratorsByDefault() {
+        final SecurityContext user = mock(SecurityContext.class);
+        final SecurityContext admin = mock(SecurityContext.class);
+        when(admin.isUserInRole(RepositoryIndex.ADMIN_ROLE)).thenReturn(true);
+
+        assertFalse(testObj.permits(null));
+        assertFalse(testObj.permits(user));
+        assertTrue(testObj.permits(admin));
+    }
+
+    @Test
+    public void testAnyUser() {
+        setField(testObj, "role", RepositoryIndex.ANY_USER);
+        assertTrue(testObj.permits(mock(SecurityContext.class)));
+    }
+
+    @Test
+    public void testResultsOutliveTheLock() {
+        index("info:fedora/a");
+        index("info:fedora/b");
+
+        try (final Results results = testObj.select(QueryFactory.create("SELECT ?s WHERE { ?s ?p ?o }"))) {
+            // the index is free to change, or close, before the results are read
+            testObj.stop();
+            assertEquals(2, ResultSetFormatter.consume(results.resultSet()));
+        }
+    }
+
+    @Test
+    public void testQueuesEachResourceOnce() throws InterruptedException {
+        final ThreadPoolExecutor indexer = (ThreadPoolExecutor) getField(testObj, "indexer");
+        final CountDownLatch busy = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        indexer.execute(() -> {
+            busy.countDown();
+            try {
+                release.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        busy.await();
+
+        testObj.onEvent(event("/container"));
+        testObj.onEvent(event("/container"));
+        testObj.onEvent(event("/container/#/hash"));
+        testObj.onEvent(event("/other"));
+
+        assertEquals(2, indexer.getQueue().size());
+        testObj.stop();
+    }
+
+    private static FedoraEvent event(final String path) {
+        final FedoraEvent event = mock(FedoraEvent.class);
+        when(event.getPath()).thenReturn(path);
+        return event;
+    }
+
+    private void index(final String uri) {
+        dataset.getNamedModel(uri).getGraph().add(create(createURI(uri),
+                createURI("http://purl.org/dc/elements/1.1/title"), createLiteral(uri)));
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.http;
+
+import static com.hp.hpl.jena.graph.NodeFactory.createLiteral;
+import static com.hp.hpl.jena.graph.NodeFactory.createURI;
+import static java.util.EnumSet.of;
+import static java.util.stream.Stream.of;
+import static org.fcrepo.kernel.api.RequiredRdfContext.PROPERTIES;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.fcrepo.kernel.api.RdfStream;
+import org.fcrepo.kernel.api.rdf.DefaultRdfStream;
+import org.fcrepo.transform.ResourceModel;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+
+/**
+ * <p>ResourceGraphCacheTest class.</p>
+ *
+ * @author agent
+ */
+public class ResourceGraphCacheTest {
+
+    private static final Node SUBJECT = createURI("http://localhost/rest/a/b");
+
+    private static final Node TITLE = createURI("http://purl.org/dc/elements/1.1/title");
+
+    private ResourceGraphCache testObj;
+
+    private AtomicInteger fetches;
+
+    private Supplier<RdfStream> triples;
+
+    @Before
+    public void setUp() {
+        testObj = new ResourceGraphCache(1000);
+        fetches = new AtomicInteger();
+        triples = () -> {
+            fetches.incrementAndGet();
+            return new DefaultRdfStream(SUBJECT, of(new Triple(SUBJECT, TITLE, createLiteral("b"))));
+        };
+    }
+
+    private ResourceModel model(final String etag) {
+        return model("user", etag);
+    }
+
+    private ResourceModel model(final String user, final String etag) {
+        return testObj.model("/a/b", SUBJECT.getURI(), of(PROPERTIES), user, etag, triples);
+    }
+
+    @Test
+    public void testUnchangedResourceIsFetchedOnce() {
+        try (final ResourceModel model = model("etag1")) {
+            assertEquals(1, model.model().size());
+        }
+        try (final ResourceModel model = model("etag1")) {
+            assertEquals(1, model.model().size());
+        }
+        assertEquals(1, fetches.get());
+        model("etag2").close();
+        assertEquals(2, fetches.get());
+    }
+
+    @Test
+    public void testGraphsAreCachedPerUser() {
+        model("user", "etag1").close();
+        model("other", "etag1").close();
+        model(null, "etag1").close();
+        assertEquals(3, fetches.get());
+        model("other", "etag1").close();
+        model(null, "etag1").close();
+        assertEquals(3, fetches.get());
+    }
+
+    @Test
+    public void testAdditionsDoNotReachTheCache() {
+        try (final ResourceModel model = model("etag1")) {
+            model.model().getGraph().add(new Triple(SUBJECT, TITLE, createLiteral("c")));
+            assertEquals(2, model.model().size());
+        }
+        try (final ResourceModel model = model("etag1")) {
+            assertTrue(model.model().getGraph().contains(SUBJECT, TITLE, createLiteral("b")));
+            assertFalse(model.model().getGraph().contains(SUBJECT, TITLE, createLiteral("c")));
+        }
+        assertEquals(1, fetches.get());
+    }
+
+    @Test
+    public void testInvalidationDropsResourceAndParent() {
+        model("etag1").close();
+        testObj.invalidate("/a/b/c");
+        model("etag1").close();
+        assertEquals(2, fetches.get());
+    }
+
+    @Test
+    public void testDisabled() {
+        assertTrue(testObj.enabled());
+        assertFalse(new ResourceGraphCache(0).enabled());
+    }
+}
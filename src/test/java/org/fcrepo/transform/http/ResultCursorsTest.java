@@ -0,0 +1,179 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.http;
+
+import static com.hp.hpl.jena.query.QueryExecutionFactory.create;
+import static com.hp.hpl.jena.rdf.model.ModelFactory.createDefaultModel;
+import static com.hp.hpl.jena.sparql.core.Var.alloc;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.fcrepo.transform.http.ResultCursors.Cursor;
+import org.fcrepo.transform.http.ResultCursors.Token;
+import org.fcrepo.transform.http.TransformMemoryBudget.Reservation;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.rdf.model.Model;
+
+/**
+ * <p>ResultCursorsTest class.</p>
+ *
+ * @author agent
+ */
+public class ResultCursorsTest {
+
+    private ResultCursors testObj;
+
+    private AtomicInteger closed;
+
+    private TransformMemoryBudget budget;
+
+    @Before
+    public void setUp() {
+        testObj = new ResultCursors(60, 2, 1024 * 1024);
+        budget = new TransformMemoryBudget(16 * 1024 * 1024, 0, 512);
+        closed = new AtomicInteger();
+    }
+
+    @After
+    public void tearDown() {
+        testObj.stop();
+    }
+
+    private Cursor cursor(final String user) {
+        return cursor(user, 5 * 512);
+    }
+
+    private Cursor cursor(final String user, final long bytes) {
+        final Model model = createDefaultModel();
+        for (int i = 0; i < 5; i++) {
+            model.add(model.createResource("info:fedora/" + i), model.createProperty("info:test#title"), "t" + i);
+        }
+        final QueryExecution execution = create("SELECT ?s WHERE { ?s ?p ?o } ORDER BY ?s", model);
+        final Reservation reservation = budget.reserve();
+        reservation.grow(bytes);
+        return new Cursor(execution, execution.execSelect(), closed::incrementAndGet, reservation, user);
+    }
+
+    @Test
+    public void testTokenRoundTrip() {
+        final Token token = Token.next("digest", "W/\"etag\"", 42);
+        final Token decoded = Token.decode(token.encode());
+        assertEquals("digest", decoded.digest());
+        assertEquals("W/\"etag\"", decoded.state());
+        assertEquals(42, decoded.offset());
+        assertEquals(token.encode(), decoded.encode());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNotAToken() {
+        Token.decode("bm90IGEgdG9rZW4");
+    }
+
+    @Test
+    public void testResumeWherePageStopped() {
+        final Cursor cursor = cursor("user");
+        assertEquals(2, cursor.next(2).size());
+        final Token token = Token.next("digest", "etag", cursor.offset());
+        testObj.park(token, cursor);
+
+        final Cursor resumed = testObj.resume(Token.decode(token.encode()), "user", budget);
+        assertSame(cursor, resumed);
+        assertEquals("info:fedora/2", resumed.next(1).get(0).get(alloc("s")).getURI());
+        assertNull("A cursor is resumed once", testObj.resume(token, "user", budget));
+        assertEquals(0, closed.get());
+    }
+
+    @Test
+    public void testOtherUsersDontResume() {
+        final Cursor cursor = cursor("user");
+        cursor.next(2);
+        final Token token = Token.next("digest", "etag", cursor.offset());
+        testObj.park(token, cursor);
+
+        assertNull(testObj.resume(token, "other", budget));
+        assertEquals(1, closed.get());
+    }
+
+    @Test
+    public void testSkip() {
+        final Cursor cursor = cursor("user");
+        cursor.skip(4);
+        assertEquals(4, cursor.offset());
+        assertEquals(1, cursor.next(3).size());
+        assertFalse(cursor.hasNext());
+    }
+
+    @Test
+    public void testParkedCursorsLeaveTheTransformBudget() {
+        final Cursor cursor = cursor("user");
+        final Token token = Token.next("digest", "etag", cursor.offset());
+        testObj.park(token, cursor);
+        assertEquals(0, budget.reserved());
+        assertEquals(5 * 512, testObj.parked());
+
+        testObj.resume(token, "user", budget).close();
+        assertEquals(0, testObj.parked());
+        assertEquals(1, closed.get());
+    }
+
+    @Test
+    public void testResumedCursorsAreChargedAgain() {
+        final Cursor cursor = cursor("user");
+        final Token token = Token.next("digest", "etag", cursor.offset());
+        testObj.park(token, cursor);
+
+        final Cursor resumed = testObj.resume(token, "user", budget);
+        assertEquals(0, testObj.parked());
+        assertEquals(1, budget.reservations());
+        assertTrue(budget.reserved() >= 5 * 512);
+
+        final Token next = Token.next("digest", "etag", resumed.offset());
+        testObj.park(next, resumed);
+        assertEquals(5 * 512, testObj.parked());
+        assertEquals(0, budget.reserved());
+        testObj.resume(next, "user", budget).close();
+        assertEquals(0, budget.reservations());
+        assertEquals(0, budget.reserved());
+    }
+
+    @Test
+    public void testCursorsOverTheirBudgetAreClosed() {
+        testObj.park(Token.next("digest", "etag", 0), cursor("user", 600 * 1024));
+        testObj.park(Token.next("digest", "etag", 0), cursor("user", 600 * 1024));
+        assertEquals(1, closed.get());
+        assertEquals(600 * 1024, testObj.parked());
+        assertEquals(0, budget.reserved());
+    }
+
+    @Test
+    public void testEvictedCursorsAreClosed() {
+        for (int i = 0; i < 3; i++) {
+            testObj.park(Token.next("digest", "etag", 0), cursor("user"));
+        }
+        assertTrue(closed.get() >= 1);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * <p>TransformCoalescerTest class.</p>
+ *
+ * @author agent
+ */
+public class TransformCoalescerTest {
+
+    private TransformCoalescer testObj;
+
+    private final AtomicInteger computations = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        testObj = new TransformCoalescer();
+    }
+
+    @Test
+    public void testCoalesceIdenticalRequests() throws InterruptedException, ExecutionException {
+        final CompletableFuture<byte[]> pending = new CompletableFuture<>();
+        final CompletableFuture<byte[]> leader = testObj.coalesce("key", result -> {
+            computations.incrementAndGet();
+            pending.thenAccept(result::complete);
+        });
+        final CompletableFuture<byte[]> follower = testObj.coalesce("key", result -> computations.incrementAndGet());
+
+        assertSame(leader, follower);
+        assertEquals(1, testObj.inFlight());
+
+        pending.complete("result".getBytes());
+        assertArrayEquals("result".getBytes(), follower.get());
+        assertEquals(1, computations.get());
+        assertEquals(0, testObj.inFlight());
+    }
+
+    @Test
+    public void testDistinctKeysAreIndependent() {
+        final CompletableFuture<byte[]> slow = testObj.coalesce("slow", result -> computations.incrementAndGet());
+        final CompletableFuture<byte[]> fast = testObj.coalesce("fast", result -> {
+            computations.incrementAndGet();
+            result.complete(new byte[0]);
+        });
+
+        assertTrue(fast.isDone());
+        assertFalse(slow.isDone());
+        assertEquals(2, computations.get());
+        assertEquals(1, testObj.inFlight());
+    }
+
+    @Test
+    public void testRecomputeAfterCompletion() {
+        testObj.coalesce("key", result -> {
+            computations.incrementAndGet();
+            result.complete(new byte[0]);
+        });
+        testObj.coalesce("key", result -> {
+            computations.incrementAndGet();
+            result.complete(new byte[0]);
+        });
+        assertEquals(2, computations.get());
+    }
+
+    @Test
+    public void testFailureIsShared() {
+        final IllegalStateException failure = new IllegalStateException("boom");
+        final CompletableFuture<byte[]> result = testObj.coalesce("key", r -> {
+            throw failure;
+        });
+        assertTrue(result.isCompletedExceptionally());
+        assertEquals(0, testObj.inFlight());
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.http;
+
+import static com.hp.hpl.jena.graph.NodeFactory.createLiteral;
+import static com.hp.hpl.jena.graph.NodeFactory.createURI;
+import static com.hp.hpl.jena.graph.Triple.create;
+import static java.util.stream.Stream.of;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.springframework.test.util.ReflectionTestUtils.getField;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.fcrepo.kernel.api.rdf.DefaultRdfStream;
+import org.fcrepo.transform.TransformMemoryException;
+import org.fcrepo.transform.http.TransformMemoryBudget.Reservation;
+import org.junit.Test;
+
+import com.hp.hpl.jena.graph.Node;
+
+/**
+ * <p>TransformMemoryBudgetTest class.</p>
+ *
+ * @author agent
+ */
+public class TransformMemoryBudgetTest {
+
+    private static final long MEGABYTE = 1024 * 1024;
+
+    private final TransformMemoryBudget testObj = new TransformMemoryBudget(2 * MEGABYTE, 50, 1000);
+
+    @Test
+    public void testReserveAndRelease() {
+        try (final Reservation reservation = testObj.reserve()) {
+            reservation.grow(10);
+            assertEquals(1, testObj.reservations());
+            assertEquals(MEGABYTE, testObj.reserved());
+        }
+        assertEquals(0, testObj.reservations());
+        assertEquals(0, testObj.reserved());
+    }
+
+    @Test(expected = TransformMemoryException.class)
+    public void testFailWhenLargerThanBudget() {
+        try (final Reservation reservation = testObj.reserve()) {
+            reservation.grow(3 * MEGABYTE);
+        }
+    }
+
+    @Test(expected = TransformMemoryException.class)
+    public void testFailFastWhenExhausted() {
+        try (final Reservation first = testObj.reserve(); final Reservation second = testObj.reserve()) {
+            first.grow(2 * MEGABYTE);
+            second.grow(1);
+        }
+    }
+
+    @Test
+    public void testWaitForRelease() throws InterruptedException, ExecutionException {
+        final TransformMemoryBudget patient = new TransformMemoryBudget(2 * MEGABYTE, 5000, 1000);
+        final Reservation first = patient.reserve();
+        first.grow(2 * MEGABYTE);
+
+        final CompletableFuture<Long> waiting = CompletableFuture.supplyAsync(() -> {
+            try (final Reservation second = patient.reserve()) {
+                second.grow(1);
+                return second.used();
+            }
+        });
+        first.close();
+        assertEquals(Long.valueOf(1), waiting.get());
+        assertEquals(0, patient.reserved());
+    }
+
+    @Test
+    public void testCloseWhileWaiting() throws InterruptedException, ExecutionException {
+        final TransformMemoryBudget patient = new TransformMemoryBudget(3 * MEGABYTE, 5000, 1000);
+        final Reservation second = patient.reserve();
+        final CompletableFuture<Void> waiting;
+        try (final Reservation first = patient.reserve()) {
+            first.grow(2 * MEGABYTE);
+            second.grow(1);
+            waiting = CompletableFuture.runAsync(() -> second.grow(MEGABYTE));
+            Thread.sleep(200);
+            // neither reading nor closing the reservation waits for the budget
+            assertEquals(1, second.used());
+            second.close();
+            // the memory it was waiting for goes straight back to the budget
+            waiting.get();
+            assertEquals(2 * MEGABYTE, patient.reserved());
+        }
+        assertEquals(0, patient.reservations());
+        assertEquals(0, patient.reserved());
+    }
+
+    @Test
+    public void testUnchargedWhenRefused() {
+        try (final Reservation reservation = testObj.reserve()) {
+            reservation.grow(10);
+            try {
+                reservation.grow(3 * MEGABYTE);
+            } catch (final TransformMemoryException e) {
+                assertEquals(10, reservation.used());
+                return;
+            }
+            fail("The budget granted more than its limit");
+        }
+    }
+
+    @Test
+    public void testGraphCacheHasItsOwnShare() {
+        final ResourceGraphCache graphCache = new ResourceGraphCache(250000);
+        setField(graphCache, "memoryBudget", testObj);
+        graphCache.start();
+        assertEquals(MEGABYTE / 1000, getField(graphCache, "capacity"));
+        try (final Reservation reservation = testObj.reserve()) {
+            reservation.grow(MEGABYTE);
+            try {
+                reservation.grow(1);
+            } catch (final TransformMemoryException e) {
+                return;
+            }
+            fail("The budget granted transforms the graph cache's share");
+        }
+    }
+
+    @Test
+    public void testTrackTriples() {
+        final Node subject = createURI("info:fedora/test");
+        try (final Reservation reservation = testObj.reserve()) {
+            final long count = testObj.track(reservation, new DefaultRdfStream(subject, of(
+                    create(subject, createURI("info:p"), createLiteral("a")),
+                    create(subject, createURI("info:p"), createLiteral("b"))))).count();
+            assertEquals(2, count);
+            assertEquals(2000, reservation.used());
+        }
+    }
+}
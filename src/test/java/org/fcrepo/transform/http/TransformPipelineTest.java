@@ -0,0 +1,203 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.http;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.fcrepo.transform.transformations.LDPathTransform.CONFIGURATION_FOLDER;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+
+import javax.jcr.Session;
+
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.fcrepo.kernel.api.models.FedoraResource;
+import org.fcrepo.kernel.api.observer.FedoraEvent;
+import org.fcrepo.kernel.api.services.NodeService;
+import org.fcrepo.transform.TransformSink;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * <p>TransformPipelineTest class.</p>
+ *
+ * @author agent
+ */
+public class TransformPipelineTest {
+
+    private final List<String> transformed = new CopyOnWriteArrayList<>();
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private CountDownLatch done;
+
+    private TransformPipeline testObj;
+
+    @Before
+    public void setUp() {
+        testObj = new TransformPipeline(singletonList("default"), 200, 2) {
+
+            @Override
+            void transform(final String path) {
+                transformed.add(path);
+                done.countDown();
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        testObj.stop();
+    }
+
+    @Test
+    public void testBurstIsDebounced() throws InterruptedException {
+        done = new CountDownLatch(2);
+        for (int i = 0; i < 5; i++) {
+            testObj.changed("/a");
+        }
+        testObj.changed("/b");
+        assertTrue(done.await(5, SECONDS));
+        Thread.sleep(400);
+        assertEquals(2, transformed.size());
+        assertTrue(transformed.containsAll(asList("/a", "/b")));
+        assertEquals(0, testObj.pending());
+    }
+
+    @Test
+    public void testEventsAreCoalescedByResource() throws InterruptedException {
+        done = new CountDownLatch(1);
+        testObj.onEvent(event("/a/#/hash"));
+        testObj.onEvent(event("/a/jcr:content"));
+        testObj.onEvent(event("/a"));
+        testObj.onEvent(event("/fedora:system/fedora:transform"));
+        assertTrue(done.await(5, SECONDS));
+        Thread.sleep(400);
+        assertEquals(singletonList("/a"), transformed);
+    }
+
+    @Test
+    public void testChangeWhileRunningRunsAgain() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        done = new CountDownLatch(2);
+        testObj.stop();
+        testObj = new TransformPipeline(singletonList("default"), 50, 2) {
+
+            @Override
+            void transform(final String path) {
+                transformed.add(path);
+                started.countDown();
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            }
+        };
+        testObj.changed("/a");
+        assertTrue(started.await(5, SECONDS));
+        for (int i = 0; i < 3; i++) {
+            testObj.changed("/a");
+            Thread.sleep(200);
+        }
+        // the second run waits for the first, rather than running beside it, and nothing is queued meanwhile
+        assertEquals(1, transformed.size());
+        assertEquals(0, testObj.pending());
+        release.countDown();
+        assertTrue(done.await(5, SECONDS));
+        Thread.sleep(200);
+        // changes during a run are made up for by a single run
+        assertEquals(asList("/a", "/a"), transformed);
+    }
+
+    @Test
+    public void testEventDuringDispatchIsNotLost() throws InterruptedException {
+        final ScheduledExecutorService timer = mock(ScheduledExecutorService.class);
+        final List<Runnable> scheduled = new ArrayList<>();
+        doAnswer(invocation -> {
+            scheduled.add((Runnable) invocation.getArguments()[0]);
+            // too late to cancel, as the dispatch is running
+            return mock(ScheduledFuture.class);
+        }).when(timer).schedule(any(Runnable.class), anyLong(), eq(MILLISECONDS));
+        setField(testObj, "timer", timer);
+        done = new CountDownLatch(1);
+
+        testObj.changed("/a");
+        testObj.changed("/a");
+        scheduled.get(0).run();
+        // the first dispatch leaves the second scheduled
+        assertEquals(1, testObj.pending());
+        scheduled.get(1).run();
+        assertTrue(done.await(5, SECONDS));
+        Thread.sleep(200);
+        assertEquals(singletonList("/a"), transformed);
+        assertEquals(0, testObj.pending());
+    }
+
+    @Test
+    public void testFailingProgramDoesNotStopTheOthers() {
+        final SessionFactory sessions = mock(SessionFactory.class);
+        final Session session = mock(Session.class);
+        final NodeService nodeService = mock(NodeService.class);
+        when(sessions.getInternalSession()).thenReturn(session);
+        when(nodeService.exists(session, "/a")).thenReturn(true);
+        when(nodeService.find(session, "/a")).thenReturn(mock(FedoraResource.class));
+        when(nodeService.exists(session, CONFIGURATION_FOLDER + "broken")).thenThrow(new IllegalStateException());
+        testObj.stop();
+        testObj = new TransformPipeline(asList("broken", "default"), 50, 1);
+        setField(testObj, "sessions", sessions);
+        setField(testObj, "nodeService", nodeService);
+        setField(testObj, "sink", mock(TransformSink.class));
+        testObj.transform("/a");
+        verify(nodeService).exists(session, CONFIGURATION_FOLDER + "default");
+        verify(session).logout();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSpoolRequired() {
+        testObj.stop();
+        testObj = new TransformPipeline(singletonList("default"), 50, 1);
+        testObj.start();
+    }
+
+    private static FedoraEvent event(final String path) {
+        final FedoraEvent event = mock(FedoraEvent.class);
+        when(event.getPath()).thenReturn(path);
+        return event;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.http;
+
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static javax.ws.rs.core.HttpHeaders.RETRY_AFTER;
+import static javax.ws.rs.core.Response.ok;
+import static javax.ws.rs.core.Response.Status.SERVICE_UNAVAILABLE;
+import static org.fcrepo.transform.http.TransformPriority.BULK;
+import static org.fcrepo.transform.http.TransformPriority.INTERACTIVE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.Response;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+
+/**
+ * <p>TransformSchedulerTest class.</p>
+ *
+ * @author agent
+ */
+public class TransformSchedulerTest {
+
+    @Mock
+    private AsyncResponse mockRunning;
+
+    @Mock
+    private AsyncResponse mockQueued;
+
+    @Mock
+    private AsyncResponse mockRejected;
+
+    private TransformScheduler testObj;
+
+    private final CountDownLatch started = new CountDownLatch(1);
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Before
+    public void setUp() {
+        initMocks(this);
+        testObj = new TransformScheduler(1, 7);
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        testObj.shutdown();
+    }
+
+    @Test
+    public void testSubmit() {
+        final Response response = ok("result").build();
+        testObj.submit(mockRunning, INTERACTIVE, () -> response);
+        verify(mockRunning, timeout(1000)).resume(response);
+    }
+
+    @Test
+    public void testSubmitFailure() {
+        final IllegalStateException failure = new IllegalStateException("boom");
+        testObj.submit(mockRunning, BULK, () -> {
+            throw failure;
+        });
+        verify(mockRunning, timeout(1000)).resume(failure);
+    }
+
+    @Test
+    public void testRejectWhenSaturated() throws InterruptedException {
+        testObj.configure(BULK, 1, 1, 1);
+        block(BULK);
+        testObj.submit(mockQueued, BULK, () -> ok().build());
+        assertEquals(1, testObj.queued(BULK));
+
+        testObj.submit(mockRejected, BULK, () -> ok().build());
+
+        final ArgumentCaptor<Response> captor = ArgumentCaptor.forClass(Response.class);
+        verify(mockRejected).resume(captor.capture());
+        assertEquals(SERVICE_UNAVAILABLE.getStatusCode(), captor.getValue().getStatus());
+        assertEquals(7, captor.getValue().getHeaders().getFirst(RETRY_AFTER));
+
+        release.countDown();
+        verify(mockQueued, timeout(1000)).resume(any(Response.class));
+    }
+
+    @Test
+    public void testWeightedFairQueuing() throws InterruptedException {
+        final List<String> order = new CopyOnWriteArrayList<>();
+        block(BULK);
+        final AsyncResponse last = mock(AsyncResponse.class);
+        testObj.submit(mock(AsyncResponse.class), BULK, record(order, "bulk-1"));
+        testObj.submit(last, BULK, record(order, "bulk-2"));
+        testObj.submit(mock(AsyncResponse.class), INTERACTIVE, record(order, "interactive-1"));
+        testObj.submit(mock(AsyncResponse.class), INTERACTIVE, record(order, "interactive-2"));
+        assertEquals(2, testObj.queued(BULK));
+        assertEquals(2, testObj.queued(INTERACTIVE));
+
+        release.countDown();
+        verify(last, timeout(1000)).resume(any(Response.class));
+        assertEquals(asList("interactive-1", "interactive-2", "bulk-1", "bulk-2"), order);
+    }
+
+    @Test
+    public void testPerClassConcurrency() throws InterruptedException {
+        testObj.shutdown();
+        testObj = new TransformScheduler(2, 7);
+        testObj.configure(BULK, 1, 1, 10);
+        block(BULK);
+
+        testObj.submit(mockQueued, BULK, () -> ok().build());
+        testObj.submit(mockRunning, INTERACTIVE, () -> ok().build());
+
+        verify(mockRunning, timeout(1000)).resume(any(Response.class));
+        assertEquals(1, testObj.running(BULK));
+        assertEquals(1, testObj.queued(BULK));
+    }
+
+    private void block(final TransformPriority priority) throws InterruptedException {
+        testObj.submit(mock(AsyncResponse.class), priority, () -> {
+            started.countDown();
+            release.await();
+            return ok().build();
+        });
+        assertTrue(started.await(1, SECONDS));
+    }
+
+    private static Callable<Response> record(final List<String> order, final String name) {
+        return () -> {
+            order.add(name);
+            return ok().build();
+        };
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.http;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+
+import org.fcrepo.kernel.api.models.FedoraBinary;
+import org.fcrepo.kernel.api.models.FedoraResource;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * <p>TransformViewsTest class.</p>
+ *
+ * @author agent
+ */
+public class TransformViewsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TransformViews testObj;
+
+    @Before
+    public void setUp() {
+        testObj = new TransformViews(singletonList("default/fedora:Resource"), folder.getRoot().toPath());
+    }
+
+    @Test
+    public void testViewIsServedOnlyInTheStateItWasComputedFrom() {
+        final byte[] output = "[{\"id\":[\"http://localhost/a\"]}]".getBytes(UTF_8);
+        assertNull(testObj.read("/a", "http://localhost/a", "default", "user", "etag1 etag2"));
+        testObj.write("/a", "http://localhost/a", "default", "user", "etag1 etag2", output);
+        assertArrayEquals(output, testObj.read("/a", "http://localhost/a", "default", "user", "etag1 etag2"));
+        assertNull(testObj.read("/a", "http://localhost/a", "default", "user", "etag3 etag2"));
+        assertNull(testObj.read("/a", "http://localhost/a", "deluxe", "user", "etag1 etag2"));
+        assertNull(testObj.read("/b", "http://localhost/a", "default", "user", "etag1 etag2"));
+    }
+
+    @Test
+    public void testViewIsServedOnlyToItsUserAtItsUri() {
+        final byte[] output = "[{\"id\":[\"http://localhost/a\"]}]".getBytes(UTF_8);
+        testObj.write("/a", "http://localhost/a", "default", "user", "etag1 etag2", output);
+        assertNull(testObj.read("/a", "http://localhost/a", "default", "other", "etag1 etag2"));
+        assertNull(testObj.read("/a", "https://example.org/a", "default", "user", "etag1 etag2"));
+    }
+
+    @Test
+    public void testInvalidateDropsEveryUsersViews() {
+        final byte[] output = "[]".getBytes(UTF_8);
+        testObj.write("/a", "http://localhost/a", "default", "user", "etag1 etag2", output);
+        testObj.write("/a", "http://localhost/a", "default", "other", "etag1 etag2", output);
+        testObj.write("/b", "http://localhost/b", "default", "user", "etag1 etag2", output);
+        testObj.invalidate("/a");
+        assertNull(testObj.read("/a", "http://localhost/a", "default", "user", "etag1 etag2"));
+        assertNull(testObj.read("/a", "http://localhost/a", "default", "other", "etag1 etag2"));
+        assertArrayEquals(output, testObj.read("/b", "http://localhost/b", "default", "user", "etag1 etag2"));
+        testObj.invalidate("/c");
+    }
+
+    @Test
+    public void testStateCoversResourceAndProgram() {
+        final FedoraResource resource = mock(FedoraResource.class);
+        final FedoraBinary program = mock(FedoraBinary.class);
+        when(resource.getEtagValue()).thenReturn("r1");
+        when(program.getEtagValue()).thenReturn("p1");
+        final String state = TransformViews.state(resource, program);
+        when(program.getEtagValue()).thenReturn("p2");
+        assertFalse(state.equals(TransformViews.state(resource, program)));
+    }
+
+    @Test
+    public void testEnabled() {
+        assertTrue(testObj.enabled());
+        assertFalse(new TransformViews(Collections.emptyList(), folder.getRoot().toPath()).enabled());
+        assertFalse(new TransformViews(singletonList("default/fedora:Resource"), null).enabled());
+    }
+}
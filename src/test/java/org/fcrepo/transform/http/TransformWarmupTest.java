@@ -0,0 +1,106 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.http;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+import java.io.ByteArrayInputStream;
+import java.util.stream.Stream;
+
+import javax.jcr.Session;
+
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.fcrepo.kernel.api.models.FedoraBinary;
+import org.fcrepo.kernel.api.models.FedoraResource;
+import org.fcrepo.kernel.api.services.NodeService;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+/**
+ * <p>TransformWarmupTest class.</p>
+ *
+ * @author agent
+ */
+public class TransformWarmupTest {
+
+    @Mock
+    private SessionFactory mockSessions;
+
+    @Mock
+    private Session mockSession;
+
+    @Mock
+    private NodeService mockNodeService;
+
+    @Mock
+    private FedoraResource mockFolder;
+
+    @Mock
+    private FedoraResource mockKey;
+
+    @Mock
+    private FedoraBinary mockProgram;
+
+    private TransformWarmup testObj;
+
+    @Before
+    public void setUp() {
+        initMocks(this);
+        testObj = new TransformWarmup(true, 2);
+        setField(testObj, "sessions", mockSessions);
+        setField(testObj, "nodeService", mockNodeService);
+        when(mockSessions.getInternalSession()).thenReturn(mockSession);
+    }
+
+    @Test
+    public void testWarmUpCompilesStoredPrograms() {
+        when(mockNodeService.exists(any(Session.class), anyString())).thenReturn(true);
+        when(mockNodeService.find(any(Session.class), anyString())).thenReturn(mockFolder);
+        when(mockFolder.getChildren()).thenReturn(Stream.of(mockKey));
+        when(mockKey.getChildren()).thenReturn(Stream.of(mockProgram));
+        when(mockProgram.getContent()).thenReturn(new ByteArrayInputStream("label = rdfs:label :: xsd:string ;"
+                .getBytes()));
+        testObj.warmUp();
+        verify(mockProgram).getContent();
+        verify(mockSession).logout();
+    }
+
+    @Test
+    public void testReadyOnceWarmedUp() throws InterruptedException {
+        assertFalse(testObj.ready());
+        testObj.start();
+        for (int attempt = 0; attempt < 100 && !testObj.ready(); attempt++) {
+            Thread.sleep(100);
+        }
+        testObj.stop();
+        assertTrue(testObj.ready());
+    }
+
+    @Test
+    public void testReadyWhenDisabled() {
+        assertTrue(new TransformWarmup(false, 0).ready());
+    }
+}
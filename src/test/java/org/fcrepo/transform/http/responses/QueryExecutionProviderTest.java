@@ -30,6 +30,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.lang.reflect.Type;
 
 import javax.ws.rs.WebApplicationException;
@@ -77,7 +78,7 @@ public class QueryExecutionProviderTest {
 
     @Test
     public void testWriteTo() throws WebApplicationException,
-            IllegalArgumentException {
+            IllegalArgumentException, IOException {
 
         final Query sparqlQuery =
             QueryFactory.create("SELECT ?x WHERE { ?x ?y ?z }");
@@ -29,6 +29,8 @@ import static com.hp.hpl.jena.sparql.resultset.ResultsFormat.FMT_RDF_TTL;
 import static com.hp.hpl.jena.sparql.resultset.ResultsFormat.FMT_RS_BIO;
 import static com.hp.hpl.jena.sparql.resultset.ResultsFormat.FMT_RS_CSV;
 import static com.hp.hpl.jena.sparql.resultset.ResultsFormat.FMT_RS_JSON;
+import static com.hp.hpl.jena.query.ResultSetFactory.copyResults;
+import static com.hp.hpl.jena.query.ResultSetFormatter.output;
 import static javax.ws.rs.core.MediaType.valueOf;
 import static org.apache.jena.riot.WebContent.contentTypeNTriples;
 import static org.apache.jena.riot.WebContent.contentTypeRDFXML;
@@ -41,12 +43,17 @@ import static org.apache.jena.riot.WebContent.contentTypeTurtleAlt2;
 import static org.fcrepo.kernel.api.RdfLexicon.JCR_NAMESPACE;
 import static org.fcrepo.kernel.modeshape.rdf.JcrRdfTools.getRDFNamespaceForJcrNamespace;
 import static org.fcrepo.transform.http.responses.ResultSetStreamingOutput.getResultsFormat;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.MockitoAnnotations.initMocks;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -59,7 +66,9 @@ import com.hp.hpl.jena.query.QueryExecution;
 import com.hp.hpl.jena.query.QueryExecutionFactory;
 import com.hp.hpl.jena.query.QueryFactory;
 import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.query.ResultSetRewindable;
 import com.hp.hpl.jena.sparql.core.DatasetImpl;
+import com.hp.hpl.jena.sparql.resultset.ResultsFormat;
 
 import javax.ws.rs.core.MediaType;
 
@@ -159,4 +168,81 @@ public class ResultSetStreamingOutputTest {
         assertTrue(testObj.getSize(null, null, null, null,
                 MediaType.APPLICATION_FORM_URLENCODED_TYPE) == -1);
     }
+
+    @Test
+    public void testCsvMatchesJena() throws Exception {
+        assertMatchesJena(contentTypeTextCSV, FMT_RS_CSV);
+    }
+
+    @Test
+    public void testTsvMatchesJena() throws Exception {
+        assertMatchesJena(contentTypeTextTSV, FMT_RS_TSV);
+    }
+
+    @Test
+    public void testWritesInChunks() throws Exception {
+        final List<Integer> writes = new ArrayList<>();
+        try (final ByteArrayOutputStream out = new ByteArrayOutputStream() {
+                    @Override
+                    public synchronized void write(final byte[] bytes, final int offset, final int length) {
+                        writes.add(length);
+                        super.write(bytes, offset, length);
+                    }
+                }) {
+            final ResultSetRewindable results = awkwardResults();
+            new ResultSetStreamingOutput(64).writeTo(results, null, null, null, valueOf(contentTypeTextCSV), null,
+                    out);
+            assertTrue(writes.size() > 1);
+            for (int i = 0; i < writes.size() - 1; i++) {
+                assertTrue(writes.get(i) <= 64);
+            }
+            results.reset();
+            assertEquals(jena(results, FMT_RS_CSV), out.toString("UTF-8"));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testWriteFailuresReachTheCaller() throws Exception {
+        final OutputStream out = new OutputStream() {
+            @Override
+            public void write(final int b) throws IOException {
+                throw new IOException("Connection reset");
+            }
+        };
+        new ResultSetStreamingOutput(64).writeTo(awkwardResults(), null, null, null, valueOf(contentTypeTextTSV),
+                null, out);
+    }
+
+    private void assertMatchesJena(final String mediaType, final ResultsFormat format) throws Exception {
+        final ResultSetRewindable results = awkwardResults();
+        try (final ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            testObj.writeTo(results, null, null, null, valueOf(mediaType), null, out);
+            results.reset();
+            assertArrayEquals(jena(results, format).getBytes("UTF-8"), out.toByteArray());
+        }
+    }
+
+    private static String jena(final ResultSet results, final ResultsFormat format) throws Exception {
+        try (final ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            output(out, results, format);
+            return out.toString("UTF-8");
+        }
+    }
+
+    /**
+     * Results holding every kind of term, and values that need quoting or escaping
+     */
+    private static ResultSetRewindable awkwardResults() {
+        final String query = "SELECT ?a ?b ?c WHERE { { VALUES (?a ?b ?c) { " +
+                "(<http://example.org/a,b> \"q\\\"uo,te\" \"tab\\there\"@en) " +
+                "(<http://example.org/\u00e9> \"line\\nbreak\" 42) " +
+                "(\"\" 1.5 \"2016-01-01T00:00:00Z\"^^<http://www.w3.org/2001/XMLSchema#dateTime>) " +
+                "(\"plain\" \"x\"^^<http://example.org/type> 1.0e3) " +
+                "(\"\u00e9\u2028\ud83d\ude00\" true \"cr\\rx\\\\y\") " +
+                "(\"\\u0001c\\bt\\fl\" \"\" \"a\\\"\\\"b\") } } " +
+                "UNION { BIND(BNODE(\"k\") AS ?a) BIND(?a AS ?c) } UNION { BIND(BNODE() AS ?b) } }";
+        try (final QueryExecution execution = QueryExecutionFactory.create(query, createDefaultModel())) {
+            return copyResults(execution.execSelect());
+        }
+    }
 }
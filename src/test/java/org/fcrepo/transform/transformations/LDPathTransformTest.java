@@ -20,10 +20,14 @@ package org.fcrepo.transform.transformations;
 import static com.hp.hpl.jena.graph.NodeFactory.createLiteral;
 import static com.hp.hpl.jena.graph.NodeFactory.createURI;
 import static com.hp.hpl.jena.graph.Triple.create;
+import static com.hp.hpl.jena.rdf.model.ModelFactory.createDefaultModel;
+import static java.util.Arrays.asList;
 import static java.util.stream.Stream.of;
 import static org.fcrepo.transform.transformations.LDPathTransform.CONFIGURATION_FOLDER;
 import static org.fcrepo.transform.transformations.LDPathTransform.getResourceTransform;
+import static org.fcrepo.kernel.api.RequiredRdfContext.LDP_CONTAINMENT;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -54,8 +58,13 @@ import org.fcrepo.kernel.api.models.FedoraResource;
 import org.fcrepo.kernel.api.rdf.DefaultRdfStream;
 import org.fcrepo.kernel.api.services.NodeService;
 import org.fcrepo.kernel.modeshape.FedoraResourceImpl;
+import org.fcrepo.transform.FetchPlan;
+import org.fcrepo.transform.ResourceLoader;
 import org.fcrepo.transform.TransformNotFoundException;
 
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
@@ -76,9 +85,6 @@ public class LDPathTransformTest {
     @Mock
     private Session mockSession;
 
-    @Mock
-    private InputStream mockInputStream;
-
     @Mock
     private NodeType mockNodeType;
 
@@ -91,6 +97,8 @@ public class LDPathTransformTest {
     @Mock
     private NamespaceRegistry mockRegistry;
 
+    private static final String PROGRAM = "title = dc:title :: xsd:string ;";
+
     private LDPathTransform testObj;
 
     @Before
@@ -146,12 +154,12 @@ public class LDPathTransformTest {
         final URI mockRdfType = UriBuilder.fromUri(customNsUri + "type").build();
         when(mockResource.getTypes()).thenReturn(Arrays.asList(mockRdfType));
 
-        when(mockChildConfig.getContent()).thenReturn(mockInputStream);
+        when(mockChildConfig.getContent()).thenReturn(new ByteArrayInputStream(PROGRAM.getBytes()));
 
         final LDPathTransform nodeTypeSpecificLdpathProgramStream =
                 getResourceTransform(mockResource, mockSession, mockNodeService, "some-program");
 
-        assertEquals(new LDPathTransform(mockInputStream), nodeTypeSpecificLdpathProgramStream);
+        assertEquals(new LDPathTransform(PROGRAM), nodeTypeSpecificLdpathProgramStream);
     }
 
     @Test
@@ -172,4 +180,113 @@ public class LDPathTransformTest {
         assertEquals(1, stringCollectionMap.get("title").size());
         assertTrue(stringCollectionMap.get("title").contains("some-title"));
     }
+
+    @Test
+    public void testAppliedToSeveralResources() {
+        testObj = new LDPathTransform(PROGRAM);
+        for (final String title : asList("one", "two")) {
+            final RdfStream rdfStream = new DefaultRdfStream(createURI(title), of(
+                    create(createURI(title), createURI("http://purl.org/dc/elements/1.1/title"),
+                            createLiteral(title))));
+            assertTrue(testObj.apply(rdfStream).get(0).get("title").contains(title));
+        }
+        assertEquals(testObj.digest(), testObj.withFields(asList("title")).digest());
+        assertFalse(testObj.equals(testObj.withFields(asList("title"))));
+    }
+
+    @Test
+    public void testProgramQueryFields() {
+        final RdfStream rdfStream = new DefaultRdfStream(createURI("abc"), of(
+                create(createURI("abc"),
+                        createURI("http://purl.org/dc/elements/1.1/title"),
+                        createLiteral("some-title"))));
+        final InputStream testReader = new ByteArrayInputStream(
+                "title = dc:title :: xsd:string ;\ncreator = dc:creator :: xsd:string ;".getBytes());
+
+        testObj = new LDPathTransform(testReader).withFields(asList("title", "unknown"));
+        final Map<String,Collection<Object>> stringCollectionMap = testObj.apply(rdfStream).get(0);
+
+        assertEquals(1, stringCollectionMap.size());
+        assertTrue(stringCollectionMap.get("title").contains("some-title"));
+        assertEquals(1, testObj.fetchPlan().predicates().size());
+    }
+
+    @Test
+    public void testProgramQueryLinkedResources() {
+        final RdfStream rdfStream = new DefaultRdfStream(createURI("info:fedora/abc"), of(
+                create(createURI("info:fedora/abc"),
+                        createURI("http://pcdm.org/models#hasMember"),
+                        createURI("info:fedora/def"))));
+        final ResourceLoader loader = new ResourceLoader() {
+
+            @Override
+            public boolean contains(final String uri) {
+                return uri.startsWith("info:fedora/");
+            }
+
+            @Override
+            public Stream<Triple> load(final String uri) {
+                return of(create(createURI(uri), createURI("http://purl.org/dc/elements/1.1/title"),
+                        createLiteral("title of " + uri)));
+            }
+        };
+        final InputStream testReader = new ByteArrayInputStream(
+                "@prefix pcdm : <http://pcdm.org/models#> ;\nmemberTitle = pcdm:hasMember / dc:title :: xsd:string ;"
+                        .getBytes());
+
+        testObj = new LDPathTransform(testReader).withResources(loader);
+        final Map<String,Collection<Object>> stringCollectionMap = testObj.apply(rdfStream).get(0);
+
+        assertTrue(stringCollectionMap.get("memberTitle").contains("title of info:fedora/def"));
+    }
+
+    @Test
+    public void testLinkedResourcesLeaveTopicModelAlone() {
+        final Model model = createDefaultModel();
+        model.getGraph().add(create(createURI("info:fedora/abc"), createURI("http://pcdm.org/models#hasMember"),
+                createURI("info:fedora/def")));
+        final ResourceLoader loader = new ResourceLoader() {
+
+            @Override
+            public boolean contains(final String uri) {
+                return uri.startsWith("info:fedora/");
+            }
+
+            @Override
+            public Stream<Triple> load(final String uri) {
+                // a linked resource may say things about the topic, which are not the topic's own triples
+                return of(create(createURI(uri), createURI("http://purl.org/dc/elements/1.1/title"),
+                        createLiteral("title of " + uri)), create(createURI("info:fedora/abc"),
+                        createURI("http://purl.org/dc/elements/1.1/subject"), createLiteral("from " + uri)));
+            }
+        };
+        testObj = new LDPathTransform("@prefix pcdm : <http://pcdm.org/models#> ;\n" +
+                "memberTitle = pcdm:hasMember / dc:title :: xsd:string ;\n" +
+                "subject = dc:subject :: xsd:string ;").withResources(loader);
+        final Map<String,Collection<Object>> output = testObj.evaluate(model, createURI("info:fedora/abc")).get(0);
+
+        assertTrue(output.get("memberTitle").contains("title of info:fedora/def"));
+        assertTrue(output.get("subject").isEmpty());
+        assertEquals(1, model.size());
+    }
+
+    @Test
+    public void testFetchPlan() {
+        final FetchPlan plan = new LDPathTransform(new ByteArrayInputStream(
+                ("title = dc:title :: xsd:string ;\n" +
+                        "part = dc:isPartOf[is-a <http://www.w3.org/ns/ldp#Container>] :: xsd:string ;")
+                        .getBytes())).fetchPlan();
+
+        assertFalse(plan.all());
+        assertEquals(3, plan.predicates().size());
+        assertTrue(plan.predicates().contains("http://purl.org/dc/elements/1.1/title"));
+        assertTrue(plan.predicates().contains("http://www.w3.org/1999/02/22-rdf-syntax-ns#type"));
+        assertFalse(plan.contexts().contains(LDP_CONTAINMENT));
+    }
+
+    @Test
+    public void testFetchPlanWildcard() {
+        assertTrue(new LDPathTransform(new ByteArrayInputStream("all = * :: xsd:string ;".getBytes()))
+                .fetchPlan().all());
+    }
 }
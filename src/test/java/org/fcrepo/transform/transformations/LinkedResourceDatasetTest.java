@@ -0,0 +1,86 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.transformations;
+
+import static com.hp.hpl.jena.graph.NodeFactory.createLiteral;
+import static com.hp.hpl.jena.graph.NodeFactory.createURI;
+import static com.hp.hpl.jena.graph.Triple.create;
+import static com.hp.hpl.jena.sparql.graph.GraphFactory.createGraphMem;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.fcrepo.transform.ResourceLoader;
+import org.junit.Test;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+
+/**
+ * <p>LinkedResourceDatasetTest class.</p>
+ *
+ * @author agent
+ */
+public class LinkedResourceDatasetTest {
+
+    private static final Node TITLE = createURI("http://purl.org/dc/elements/1.1/title");
+
+    private final List<String> loads = new ArrayList<>();
+
+    private final ResourceLoader loader = new ResourceLoader() {
+
+        @Override
+        public boolean contains(final String uri) {
+            return uri.startsWith("info:fedora/");
+        }
+
+        @Override
+        public Stream<Triple> load(final String uri) {
+            loads.add(uri);
+            return Stream.of(create(createURI(uri), TITLE, createLiteral(uri)));
+        }
+    };
+
+    @Test
+    public void testLoadsOnDemandOnce() {
+        final LinkedResourceDataset dataset =
+                new LinkedResourceDataset(createGraphMem(), "info:fedora/topic", loader, 10);
+
+        assertTrue(dataset.getDefaultGraph().contains(createURI("info:fedora/a"), TITLE, Node.ANY));
+        assertFalse(dataset.getDefaultGraph().contains(createURI("info:fedora/a#part"), TITLE, Node.ANY));
+        assertTrue(dataset.containsGraph(createURI("info:fedora/a")));
+        assertFalse(dataset.getDefaultGraph().contains(createURI("http://example.org/b"), TITLE, Node.ANY));
+        assertFalse(dataset.getDefaultGraph().contains(createURI("info:fedora/topic"), TITLE, Node.ANY));
+
+        assertEquals(1, loads.size());
+    }
+
+    @Test
+    public void testBudget() {
+        final LinkedResourceDataset dataset =
+                new LinkedResourceDataset(createGraphMem(), "info:fedora/topic", loader, 1);
+
+        assertTrue(dataset.containsGraph(createURI("info:fedora/a")));
+        assertFalse(dataset.containsGraph(createURI("info:fedora/b")));
+        assertEquals(1, loads.size());
+    }
+}
@@ -17,10 +17,15 @@
  */
 package org.fcrepo.transform.transformations;
 
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.ARQ;
 import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QuerySolution;
 import com.hp.hpl.jena.query.ResultSet;
 import org.fcrepo.kernel.api.RdfStream;
 import org.fcrepo.kernel.api.rdf.DefaultRdfStream;
+import org.fcrepo.transform.FetchPlan;
+import org.fcrepo.transform.ResourceLoader;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
@@ -32,16 +37,25 @@ import javax.jcr.Session;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
 
 import static com.hp.hpl.jena.graph.NodeFactory.createLiteral;
 import static com.hp.hpl.jena.graph.NodeFactory.createURI;
 import static com.hp.hpl.jena.graph.Triple.create;
 import static com.hp.hpl.jena.rdf.model.ResourceFactory.createProperty;
 import static com.hp.hpl.jena.rdf.model.ResourceFactory.createResource;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonMap;
 import static java.util.stream.Stream.of;
+import static org.fcrepo.kernel.api.RequiredRdfContext.LDP_CONTAINMENT;
+import static org.fcrepo.transform.transformations.SparqlQueryTransform.SPILL_ROWS_PROPERTY;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -90,10 +104,137 @@ public class SparqlQueryTransformTest {
     }
 
     @Test (expected = IllegalStateException.class)
-    public void testApplyException() {
-        final RdfStream model = mock(RdfStream.class);
-        testObj = new SparqlQueryTransform(null);
-        doThrow(IOException.class).when(model).collect(any());
-        testObj.apply(model);
+    public void testReadException() throws IOException {
+        final InputStream query = mock(InputStream.class);
+        doThrow(IOException.class).when(query).read(any(byte[].class));
+        doThrow(IOException.class).when(query).read(any(byte[].class), anyInt(), anyInt());
+        new SparqlQueryTransform(query);
+    }
+
+    @Test
+    public void testAppliedToSeveralResources() {
+        testObj = new SparqlQueryTransform(
+                "SELECT ?title WHERE { ?s <http://purl.org/dc/elements/1.1/title> ?title }");
+        for (final String title : asList("one", "two")) {
+            final RdfStream model = new DefaultRdfStream(createURI("info:fedora/" + title), of(
+                    create(createURI("info:fedora/" + title), createURI("http://purl.org/dc/elements/1.1/title"),
+                            createLiteral(title))));
+            try (final QueryExecution execution = testObj.apply(model)) {
+                assertEquals(title, execution.execSelect().nextSolution().get("title").asLiteral().getValue());
+            }
+        }
+    }
+
+    @Test
+    public void testFetchPlan() {
+        final FetchPlan plan = new SparqlQueryTransform(new ByteArrayInputStream(
+                ("SELECT ?title WHERE { ?s <http://purl.org/dc/elements/1.1/title> ?title " +
+                        "FILTER EXISTS { ?s <http://purl.org/dc/elements/1.1/creator>+ ?c } }").getBytes()))
+                .fetchPlan();
+
+        assertFalse(plan.all());
+        assertEquals(2, plan.predicates().size());
+        assertTrue(plan.predicates().contains("http://purl.org/dc/elements/1.1/creator"));
+        assertFalse(plan.contexts().contains(LDP_CONTAINMENT));
+    }
+
+    @Test
+    public void testFetchPlanVariablePredicate() {
+        assertTrue(new SparqlQueryTransform(new ByteArrayInputStream("SELECT * WHERE { ?s ?p ?o }".getBytes()))
+                .fetchPlan().all());
+    }
+
+    @Test
+    public void testApplyLinkedResources() {
+        final RdfStream model = new DefaultRdfStream(createURI("info:fedora/abc"), of(
+                create(createURI("info:fedora/abc"), createURI("http://www.w3.org/ns/ldp#contains"),
+                        createURI("info:fedora/abc/def"))));
+        final InputStream query = new ByteArrayInputStream(("SELECT ?title ?other WHERE {\n" +
+                "  <info:fedora/abc> <http://www.w3.org/ns/ldp#contains> ?child .\n" +
+                "  ?child <http://purl.org/dc/elements/1.1/title> ?title .\n" +
+                "  GRAPH <info:fedora/ghi> { ?s <http://purl.org/dc/elements/1.1/title> ?other }\n" +
+                "}").getBytes());
+        testObj = new SparqlQueryTransform(query).withResources(new ResourceLoader() {
+
+            @Override
+            public boolean contains(final String uri) {
+                return uri.startsWith("info:fedora/");
+            }
+
+            @Override
+            public Stream<Triple> load(final String uri) {
+                return of(create(createURI(uri), createURI("http://purl.org/dc/elements/1.1/title"),
+                        createLiteral("title of " + uri)));
+            }
+        });
+
+        try (final QueryExecution apply = testObj.apply(model)) {
+            final ResultSet resultSet = apply.execSelect();
+            assertTrue(resultSet.hasNext());
+            final QuerySolution solution = resultSet.nextSolution();
+            assertEquals("title of info:fedora/abc/def", solution.getLiteral("title").getString());
+            assertEquals("title of info:fedora/ghi", solution.getLiteral("other").getString());
+        }
+    }
+
+    @Test
+    public void testWithParameters() {
+        final SparqlQueryTransform compiled = new SparqlQueryTransform("PREFIX ex: <http://example.org/>\n" +
+                "SELECT ?s ?title WHERE { ?s <http://purl.org/dc/elements/1.1/title> ?title }");
+        for (final String book : asList("book1", "book2")) {
+            final RdfStream model = new DefaultRdfStream(createURI("http://example.org/book1"), of(
+                    create(createURI("http://example.org/book1"), createURI("http://purl.org/dc/elements/1.1/title"),
+                            createLiteral("one")),
+                    create(createURI("http://example.org/book2"), createURI("http://purl.org/dc/elements/1.1/title"),
+                            createLiteral("two"))));
+            testObj = compiled.withParameters(singletonMap("s", "ex:" + book));
+            try (final QueryExecution execution = testObj.apply(model)) {
+                final ResultSet results = execution.execSelect();
+                final QuerySolution solution = results.nextSolution();
+                assertEquals("http://example.org/" + book, solution.getResource("s").getURI());
+                assertEquals(book.equals("book1") ? "one" : "two", solution.getLiteral("title").getString());
+                assertFalse(results.hasNext());
+            }
+        }
+        assertEquals(compiled.digest(), testObj.digest());
+        assertEquals(compiled.fetchPlan(), testObj.fetchPlan());
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testUnknownParameter() {
+        new SparqlQueryTransform("SELECT ?s WHERE { ?s ?p ?o }").withParameters(singletonMap("x", "1"));
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testParameterNotATerm() {
+        new SparqlQueryTransform("SELECT ?s WHERE { ?s ?p ?o }").withParameters(singletonMap("o", "not a term"));
+    }
+
+    @Test
+    public void testSpillsOrderAndDistinct() {
+        System.setProperty(SPILL_ROWS_PROPERTY, "10");
+        try {
+            final List<Triple> triples = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                // each title twice, out of order
+                triples.add(create(createURI("info:fedora/abc/" + i),
+                        createURI("http://purl.org/dc/elements/1.1/title"),
+                        createLiteral(String.format("title %02d", (i * 37) % 50))));
+            }
+            testObj = new SparqlQueryTransform("SELECT DISTINCT ?title WHERE " +
+                    "{ ?s <http://purl.org/dc/elements/1.1/title> ?title } ORDER BY ?title");
+            try (final QueryExecution execution = testObj.apply(new DefaultRdfStream(createURI("info:fedora/abc"),
+                    triples.stream()))) {
+                assertEquals(10L, (long) execution.getContext().get(ARQ.spillToDiskThreshold));
+                final ResultSet results = execution.execSelect();
+                for (int i = 0; i < 50; i++) {
+                    assertEquals(String.format("title %02d", i),
+                            results.nextSolution().getLiteral("title").getString());
+                }
+                assertFalse(results.hasNext());
+            }
+        } finally {
+            System.clearProperty(SPILL_ROWS_PROPERTY);
+        }
     }
 }
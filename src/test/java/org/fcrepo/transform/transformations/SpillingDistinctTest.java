@@ -0,0 +1,69 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.transform.transformations;
+
+import static com.hp.hpl.jena.graph.NodeFactory.createLiteral;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingFactory;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIterPlainWrapper;
+
+/**
+ * <p>SpillingDistinctTest class.</p>
+ *
+ * @author agent
+ */
+public class SpillingDistinctTest {
+
+    private static final Var TITLE = Var.alloc("title");
+
+    @Test
+    public void testKeepsFirstOccurrencesInOrder() {
+        final List<String> titles = asList("e", "b", "e", "a", "d", "b", "c", "a", "f", "d", "c", "g", "e", "f");
+
+        assertEquals(asList("e", "b", "a", "d", "c", "f", "g"), distinct(titles, 3));
+    }
+
+    @Test
+    public void testUnderThreshold() {
+        assertEquals(asList("b", "a"), distinct(asList("b", "a", "b"), 10));
+    }
+
+    private static List<String> distinct(final List<String> titles, final long threshold) {
+        final List<Binding> rows = new ArrayList<>();
+        titles.forEach(title -> rows.add(BindingFactory.binding(TITLE, createLiteral(title))));
+        final QueryIterator distinct = new SpillingDistinct(new QueryIterPlainWrapper(rows.iterator()), threshold,
+                null);
+        try {
+            final List<String> returned = new ArrayList<>();
+            distinct.forEachRemaining(binding -> returned.add(binding.get(TITLE).getLiteralLexicalForm()));
+            return returned;
+        } finally {
+            distinct.close();
+        }
+    }
+}